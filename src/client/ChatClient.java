@@ -1,8 +1,32 @@
 ﻿package client;
 
+import main.java.com.securechat.common.Frame;
+import main.java.com.securechat.common.FrameCodec;
+import main.java.com.securechat.common.FrameDecoder;
+import main.java.com.securechat.common.MessageType;
+import utils.BufferPool;
+import utils.AesGcmCipher;
+import utils.EncryptionUtil;
+import utils.KeyExchange;
+import utils.MessageCipher;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import javax.net.ssl.SSLSocketFactory;
 import java.io.*;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
 import java.util.Scanner;
+import java.util.TreeSet;
 
 public class ChatClient {
     
@@ -12,25 +36,94 @@ public class ChatClient {
     private Socket socket;
     private PrintWriter out;
     private BufferedReader in;
+    private OutputStream rawOut;
+    private ReadableByteChannel rawIn;
+    private final FrameDecoder decoder = new FrameDecoder(BufferPool.DEFAULT);
     private String username;
+    private SecretKey roomKey;
+    private volatile MessageCipher roomCipher;
+    private volatile boolean suiteConfirmed;
+    private String cipherSuites = System.getProperty("chat.encryption.suites", "gcm,chacha20");
+    // Trusts the certificates in javax.net.ssl.trustStore; the JDK resumes sessions on reconnect
+    private final boolean useTls = Boolean.getBoolean("chat.tls");
+    // X25519 handshake at CONNECT; the server answers with the room key and a ticket
+    private final boolean keyExchange = !"false".equalsIgnoreCase(System.getProperty("chat.key.exchange"));
+    private KeyPair keyPair;
+    private byte[] keyShare;
+    // From the last handshake, presented on reconnect to skip the asymmetric step
+    private volatile byte[] resumptionSecret;
+    private volatile byte[] ticket;
+    // Who is online as of presenceVersion, kept current from the server's deltas
+    private final TreeSet<String> onlineUsers = new TreeSet<>();
+    private long presenceVersion;
     private volatile boolean running = false;
     
     private final String serverHost;
     private final int serverPort;
+    private final boolean binaryProtocol;
     
     public ChatClient(String host, int port) {
+        this(host, port, false);
+    }
+    
+    /**
+     * @param binaryProtocol use the length-prefixed binary protocol instead of text lines
+     */
+    public ChatClient(String host, int port, boolean binaryProtocol) {
         this.serverHost = host;
         this.serverPort = port;
+        this.binaryProtocol = binaryProtocol;
     }
     
     public boolean connect(String username) {
         try {
             this.username = username;
-            socket = new Socket(serverHost, serverPort);
-            out = new PrintWriter(socket.getOutputStream(), true);
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            
-            out.println("CONNECT:" + username);
+            suiteConfirmed = false;
+            if (keyExchange) {
+                keyPair = KeyExchange.generateKeyPair();
+                keyShare = KeyExchange.encodePublicKey(keyPair.getPublic());
+            }
+            byte[] resumeWith = ticket;
+            boolean offerSuites = roomKey != null || keyExchange;
+            socket = useTls
+                    ? SSLSocketFactory.getDefault().createSocket(serverHost, serverPort)
+                    : new Socket(serverHost, serverPort);
+            if (binaryProtocol) {
+                rawOut = new BufferedOutputStream(socket.getOutputStream());
+                rawIn = Channels.newChannel(socket.getInputStream());
+                rawOut.write(FrameCodec.PREAMBLE);
+                byte[] name = username.getBytes(StandardCharsets.UTF_8);
+                byte[] suites = cipherSuites.getBytes(StandardCharsets.UTF_8);
+                // Offline messages are acknowledged once shown, see onAckRequest()
+                int flags = FrameCodec.FLAG_ACKS;
+                if (keyExchange) {
+                    sendFrame(resumeWith == null
+                            ? FrameCodec.encode(MessageType.CONNECT, flags, name, suites, keyShare)
+                            : FrameCodec.encode(MessageType.CONNECT, flags, name, suites, keyShare, resumeWith));
+                } else if (offerSuites) {
+                    sendFrame(FrameCodec.encode(MessageType.CONNECT, flags, username, cipherSuites));
+                } else {
+                    sendFrame(FrameCodec.encode(MessageType.CONNECT, flags, username));
+                }
+            } else {
+                out = new PrintWriter(socket.getOutputStream(), true);
+                in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                
+                StringBuilder connect = new StringBuilder("CONNECT:").append(username);
+                if (offerSuites) {
+                    connect.append(";suites=").append(cipherSuites);
+                }
+                if (keyExchange) {
+                    connect.append(";key=").append(Base64.getEncoder().encodeToString(keyShare));
+                    if (resumeWith != null) {
+                        connect.append(";ticket=").append(Base64.getEncoder().encodeToString(resumeWith));
+                    }
+                }
+                connect.append(";acks=1");
+                out.println(connect);
+            }
+            // Picks up from the version seen before a reconnect, so only what changed is sent
+            subscribePresence();
             
             running = true;
             System.out.println("Connected to server at " + serverHost + ":" + serverPort);
@@ -50,9 +143,34 @@ public class ChatClient {
     private void listenForMessages() {
         while (running) {
             try {
-                String message = in.readLine();
+                String message = binaryProtocol ? readFrameAsText() : in.readLine();
                 if (message != null) {
-                    System.out.println(message);
+                    if (!suiteConfirmed && message.startsWith("SUITE:")) {
+                        useSuite(message.substring(6));
+                        continue;
+                    }
+                    if (message.startsWith("ACK:") && isId(message.substring(4))) {
+                        onAckRequest(message.substring(4));
+                        continue;
+                    }
+                    if (message.startsWith("USERS:") || message.startsWith("PRESENCE:")) {
+                        if (onPresenceLine(message)) {
+                            continue;
+                        }
+                    }
+                    if (keyPair != null && message.startsWith("SESSION:")) {
+                        String[] parts = message.split(":", 5);
+                        Base64.Decoder base64 = Base64.getDecoder();
+                        onSession("resumed".equals(parts[1]), base64.decode(parts[2]), base64.decode(parts[3]),
+                                parts.length > 4 ? base64.decode(parts[4]) : null);
+                        continue;
+                    }
+                    if (roomCipher != null && message.startsWith("ENC:")) {
+                        message = decryptOrNull(message.substring(4));
+                    }
+                    if (message != null) {
+                        System.out.println(message);
+                    }
                 }
             } catch (IOException e) {
                 if (running) {
@@ -62,6 +180,76 @@ public class ChatClient {
                 break;
             }
         }
+        // The decoder belongs to this thread
+        decoder.release();
+    }
+    
+    /**
+     * Read one binary frame and render it the way the text protocol would
+     */
+    private String readFrameAsText() throws IOException {
+        Frame frame = decoder.read(rawIn);
+        if (frame == null) {
+            throw new EOFException("Server closed the connection");
+        }
+        int last = frame.getFieldCount() - 1;
+        if (frame.getType() == MessageType.ACK && last >= 0) {
+            onAckRequest(frame.getString(0));
+            return null;
+        }
+        if (frame.getType() == MessageType.USER_LIST && last >= 0) {
+            List<String> users = new ArrayList<>();
+            for (int i = 1; i <= last; i++) {
+                users.add(frame.getString(i));
+            }
+            onUserList(parseId(frame.getString(0)), users);
+            return null;
+        }
+        if (frame.getType() == MessageType.PRESENCE && last >= 1) {
+            List<String> changes = new ArrayList<>();
+            for (int i = 2; i <= last; i++) {
+                changes.add(frame.getString(i));
+            }
+            onPresence(parseId(frame.getString(0)), parseId(frame.getString(1)), changes);
+            return null;
+        }
+        if (frame.getType() == MessageType.SESSION && keyPair != null && last >= 2) {
+            onSession("resumed".equals(frame.getString(0)), frame.getBytes(1), frame.getBytes(2),
+                    last >= 3 ? frame.getBytes(3) : null);
+            return null;
+        }
+        String content;
+        if (last < 0) {
+            content = "";
+        } else if (!frame.hasFlag(FrameCodec.FLAG_ENCRYPTED)) {
+            content = frame.getString(last);
+        } else if (roomCipher != null) {
+            ByteBuffer plain = ByteBuffer.allocate(frame.getFieldLength(last));
+            try {
+                roomCipher.decrypt(frame.getSlice(last), plain);
+            } catch (AEADBadTagException e) {
+                System.err.println("Dropped a message that failed authentication");
+                return null;
+            }
+            content = new String(plain.array(), 0, plain.position(), StandardCharsets.UTF_8);
+        } else {
+            content = Base64.getEncoder().encodeToString(frame.getBytes(last));
+        }
+        switch (frame.getType()) {
+            case GROUP_MESSAGE:
+                return frame.getString(0) + ": " + content;
+            case PRIVATE_MESSAGE:
+                return frame.getString(0) + " (private): " + content;
+            case CONNECT_ACK:
+                if (last >= 0) {
+                    useSuite(content);
+                }
+                return "Joined chat as " + username;
+            case ERROR:
+                return "ERROR:" + content;
+            default:
+                return content;
+        }
     }
     
     public void sendMessage(String message) {
@@ -70,22 +258,244 @@ public class ChatClient {
         }
     }
     
+    /**
+     * Confirm the offline messages printed so far; the server asks after each
+     * batch and sends it again on the next connect if the answer never arrives
+     */
+    private void onAckRequest(String id) {
+        if (binaryProtocol) {
+            sendFrame(FrameCodec.encode(MessageType.ACK, 0, id));
+        } else {
+            sendMessage("ACK:" + id);
+        }
+    }
+    
+    /**
+     * Ask for presence updates from the last version applied, or the full list if none
+     */
+    public void subscribePresence() {
+        long version;
+        synchronized (onlineUsers) {
+            version = presenceVersion;
+        }
+        if (binaryProtocol) {
+            sendFrame(FrameCodec.encode(MessageType.USER_LIST, 0, Long.toString(version)));
+        } else {
+            sendMessage(version == 0 ? "USERS" : "USERS:" + version);
+        }
+    }
+    
+    /**
+     * Users online as of the last presence update, sorted
+     */
+    public List<String> getOnlineUsers() {
+        synchronized (onlineUsers) {
+            return new ArrayList<>(onlineUsers);
+        }
+    }
+    
+    /**
+     * Apply a USERS:version:a,b or PRESENCE:from:to:+a,-b line
+     * @return false if it is not one, e.g. chat from a user named USERS
+     */
+    private boolean onPresenceLine(String line) {
+        String[] parts = line.split(":", 4);
+        if (parts[0].equals("USERS") && parts.length == 3 && isId(parts[1])) {
+            onUserList(Long.parseLong(parts[1]), splitUsers(parts[2]));
+            return true;
+        }
+        if (parts[0].equals("PRESENCE") && parts.length == 4 && isId(parts[1]) && isId(parts[2])) {
+            onPresence(Long.parseLong(parts[1]), Long.parseLong(parts[2]), splitUsers(parts[3]));
+            return true;
+        }
+        return false;
+    }
+    
+    /**
+     * Usernames cannot contain commas, so the text list splits unambiguously
+     */
+    private static List<String> splitUsers(String list) {
+        List<String> users = new ArrayList<>();
+        for (String user : list.split(",")) {
+            if (!user.isEmpty()) {
+                users.add(user);
+            }
+        }
+        return users;
+    }
+    
+    /**
+     * Replace the online list with a full snapshot
+     */
+    private void onUserList(long version, List<String> users) {
+        synchronized (onlineUsers) {
+            onlineUsers.clear();
+            onlineUsers.addAll(users);
+            presenceVersion = version;
+        }
+        System.out.println("Online: " + String.join(", ", users));
+    }
+    
+    /**
+     * Apply a delta if it starts at the version applied last; otherwise one was
+     * missed, so subscribe again from that version to get the gap or a snapshot
+     * @param changes +user for a join, -user for a leave
+     */
+    private void onPresence(long from, long to, List<String> changes) {
+        synchronized (onlineUsers) {
+            if (to <= presenceVersion) {
+                // Already applied, e.g. sent again after a resubscribe
+                return;
+            }
+            if (from == presenceVersion) {
+                for (String change : changes) {
+                    if (change.length() < 2) {
+                        continue;
+                    }
+                    String user = change.substring(1);
+                    boolean joined = change.charAt(0) == '+';
+                    if (joined) {
+                        onlineUsers.add(user);
+                    } else {
+                        onlineUsers.remove(user);
+                    }
+                    System.out.println(user + (joined ? " joined" : " left"));
+                }
+                presenceVersion = to;
+                return;
+            }
+        }
+        subscribePresence();
+    }
+    
+    private static long parseId(String value) {
+        return isId(value) ? Long.parseLong(value) : -1;
+    }
+    
+    private static boolean isId(String value) {
+        if (value.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            if (!Character.isDigit(value.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private synchronized void sendFrame(ByteBuffer frame) {
+        if (rawOut == null) return;
+        try {
+            rawOut.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+            rawOut.flush();
+        } catch (IOException e) {
+            System.err.println("Failed to send message: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Decrypt an ENC: payload, or return null if it fails authentication
+     */
+    private String decryptOrNull(String encrypted) {
+        try {
+            return roomCipher.decrypt(encrypted);
+        } catch (AEADBadTagException e) {
+            System.err.println("Dropped a message that failed authentication");
+            return null;
+        }
+    }
+    
+    /**
+     * Set the shared room key used to decrypt ENC: group broadcasts
+     * Call before connect(), unless the server hands the key out in the key exchange
+     */
+    public void setRoomKey(SecretKey roomKey) {
+        this.roomKey = roomKey;
+        this.roomCipher = roomKey == null ? null : EncryptionUtil.newCipher(cipherSuites.split(",")[0], roomKey);
+    }
+    
+    /**
+     * Set the cipher suites to offer, most preferred first (default "gcm,chacha20",
+     * or -Dchat.encryption.suites); e.g. "chacha20,gcm" on CPUs without AES instructions
+     */
+    public void setCipherSuites(String cipherSuites) {
+        this.cipherSuites = cipherSuites;
+        setRoomKey(roomKey);
+    }
+    
+    /**
+     * Finish the key exchange from the server's SESSION reply
+     * Derives the session key, keeps the new ticket for the next connect and takes
+     * over the room key if the server sent one
+     */
+    private void onSession(boolean resumed, byte[] serverShare, byte[] newTicket, byte[] sealedRoomKey) {
+        try {
+            byte[] secret = resumed
+                    ? resumptionSecret
+                    : KeyExchange.sharedSecret(keyPair.getPrivate(), serverShare);
+            if (secret == null) {
+                System.err.println("Server resumed a session this client does not know");
+                return;
+            }
+            SecretKey sessionKey = KeyExchange.sessionKey(secret, keyShare, serverShare);
+            resumptionSecret = KeyExchange.resumptionSecret(secret, keyShare, serverShare);
+            ticket = newTicket;
+            keyPair = null;
+            if (sealedRoomKey != null) {
+                byte[] key = new AesGcmCipher(sessionKey).decrypt(sealedRoomKey);
+                setRoomKey(new SecretKeySpec(key, "AES"));
+            }
+        } catch (InvalidKeyException | AEADBadTagException e) {
+            System.err.println("Key exchange failed: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Switch to the cipher suite the server chose
+     */
+    private void useSuite(String name) {
+        suiteConfirmed = true;
+        if (roomKey == null) {
+            return;
+        }
+        if (EncryptionUtil.getSuite(name) == null) {
+            System.err.println("Server chose unsupported cipher suite " + name);
+            return;
+        }
+        roomCipher = EncryptionUtil.newCipher(name, roomKey);
+    }
+    
     public void sendGroupMessage(String content) {
-        sendMessage("GROUP:" + content);
+        if (binaryProtocol) {
+            sendFrame(FrameCodec.encode(MessageType.GROUP_MESSAGE, 0, content));
+        } else {
+            sendMessage("GROUP:" + content);
+        }
     }
     
     public void sendPrivateMessage(String content, String recipientId) {
-        sendMessage("PRIVATE:" + recipientId + ":" + content);
+        if (binaryProtocol) {
+            sendFrame(FrameCodec.encode(MessageType.PRIVATE_MESSAGE, 0, recipientId, content));
+        } else {
+            sendMessage("PRIVATE:" + recipientId + ":" + content);
+        }
     }
     
     public void disconnect() {
         running = false;
         try {
             if (username != null) {
-                sendMessage("DISCONNECT:" + username);
+                if (binaryProtocol) {
+                    sendFrame(FrameCodec.encode(MessageType.DISCONNECT, 0, new byte[0][]));
+                } else {
+                    sendMessage("DISCONNECT:" + username);
+                }
             }
             if (in != null) in.close();
             if (out != null) out.close();
+            if (rawIn != null) rawIn.close();
+            if (rawOut != null) rawOut.close();
             if (socket != null && !socket.isClosed()) socket.close();
             System.out.println("Disconnected from server");
         } catch (IOException e) {
@@ -107,7 +517,13 @@ public class ChatClient {
             username = "User" + System.currentTimeMillis();
         }
         
-        ChatClient client = new ChatClient(DEFAULT_HOST, DEFAULT_PORT);
+        boolean binary = "binary".equalsIgnoreCase(System.getProperty("chat.protocol"));
+        ChatClient client = new ChatClient(DEFAULT_HOST, DEFAULT_PORT, binary);
+        
+        String roomKey = System.getProperty("chat.room.key");
+        if (roomKey != null && !roomKey.isBlank()) {
+            client.setRoomKey(EncryptionUtil.stringToKey(roomKey));
+        }
         
         if (!client.connect(username)) {
             System.err.println("Failed to connect to server. Make sure the server is running.");
@@ -115,6 +531,7 @@ public class ChatClient {
         }
         
         System.out.println("Type message and press Enter to send");
+        System.out.println("/users - Show who is online");
         System.out.println("/quit - Exit chat");
         System.out.println();
         
@@ -125,6 +542,8 @@ public class ChatClient {
             
             if (input.equalsIgnoreCase("/quit")) {
                 break;
+            } else if (input.equalsIgnoreCase("/users")) {
+                System.out.println("Online: " + String.join(", ", client.getOnlineUsers()));
             } else {
                 client.sendGroupMessage(input);
             }
@@ -0,0 +1,121 @@
+package main.java.com.securechat.common;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A decoded binary protocol frame: message type, flags and length-prefixed fields
+ *
+ * A frame is a view over the buffer it was decoded from: fields are recorded as
+ * offsets and only copied or turned into Strings when asked. Frames handed out by
+ * a FrameDecoder are reused, so they are only valid until the next decode.
+ */
+public class Frame {
+
+    private MessageType type;
+    private int flags;
+    private ByteBuffer buffer;
+    private int[] offsets = new int[4];
+    private int[] lengths = new int[4];
+    private int fieldCount;
+
+    void reset(MessageType type, int flags, ByteBuffer buffer) {
+        this.type = type;
+        this.flags = flags;
+        this.buffer = buffer;
+        this.fieldCount = 0;
+    }
+
+    void addField(int offset, int length) {
+        if (fieldCount == offsets.length) {
+            offsets = Arrays.copyOf(offsets, fieldCount * 2);
+            lengths = Arrays.copyOf(lengths, fieldCount * 2);
+        }
+        offsets[fieldCount] = offset;
+        lengths[fieldCount] = length;
+        fieldCount++;
+    }
+
+    public MessageType getType() {
+        return type;
+    }
+
+    public int getFlags() {
+        return flags;
+    }
+
+    public boolean hasFlag(int flag) {
+        return (flags & flag) != 0;
+    }
+
+    public int getFieldCount() {
+        return fieldCount;
+    }
+
+    public int getFieldLength(int index) {
+        return lengths[index];
+    }
+
+    /**
+     * Get the absolute offset of a field in getBuffer()
+     */
+    public int getFieldOffset(int index) {
+        return offsets[index];
+    }
+
+    /**
+     * Get the buffer this frame was decoded from
+     */
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Get a field as a view over the underlying buffer, without copying
+     */
+    public ByteBuffer getSlice(int index) {
+        return buffer.slice(offsets[index], lengths[index]);
+    }
+
+    /**
+     * Get a copy of a field's bytes
+     */
+    public byte[] getBytes(int index) {
+        byte[] bytes = new byte[lengths[index]];
+        buffer.get(offsets[index], bytes);
+        return bytes;
+    }
+
+    /**
+     * Decode a field as a UTF-8 string, or null if the frame has no such field
+     */
+    public String getString(int index) {
+        return index < fieldCount ? FrameCodec.decodeUtf8(buffer, offsets[index], lengths[index]) : null;
+    }
+
+    /**
+     * Copy this frame into one that owns its data and survives buffer reuse
+     */
+    public Frame detach() {
+        int start = fieldCount == 0 ? 0 : offsets[0];
+        int end = fieldCount == 0 ? 0 : offsets[fieldCount - 1] + lengths[fieldCount - 1];
+        ByteBuffer copy = ByteBuffer.allocate(end - start);
+        copy.put(0, buffer, start, end - start);
+
+        Frame detached = new Frame();
+        detached.reset(type, flags, copy);
+        for (int i = 0; i < fieldCount; i++) {
+            detached.addField(offsets[i] - start, lengths[i]);
+        }
+        return detached;
+    }
+
+    @Override
+    public String toString() {
+        return "Frame{" +
+                "type=" + type +
+                ", flags=" + flags +
+                ", fields=" + fieldCount +
+                '}';
+    }
+}
@@ -0,0 +1,211 @@
+package main.java.com.securechat.common;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encoder/decoder for the length-prefixed binary wire protocol
+ * Used by both ChatClient and the server connections
+ *
+ * A client selects the binary protocol by sending PREAMBLE (magic byte + version)
+ * before its CONNECT frame; text clients start with an ASCII letter instead.
+ *
+ * Frame layout:
+ *   varint  length   number of bytes that follow
+ *   byte    type     MessageType ordinal
+ *   byte    flags    FLAG_* bits
+ *   fields           repeated { varint length, bytes }
+ *
+ * Fields by type:
+ *   CONNECT          username [+ comma-separated cipher suite preferences
+ *                    [+ X25519 key share [+ resumption ticket]]]
+ *   GROUP_MESSAGE    content (client to server), sender + content (server to client)
+ *   PRIVATE_MESSAGE  recipient + content (client to server), sender + content (server to client)
+ *   SERVER_MESSAGE   text
+ *   ERROR            text
+ *   CONNECT_ACK      [negotiated cipher suite, if the client offered any]
+ *   SESSION          mode + server share + ticket [+ sealed room key], see SessionHandshake
+ *   ACK              id of the last offline message shown (both directions)
+ *   DISCONNECT, HEARTBEAT  no fields
+ *
+ * With FLAG_ENCRYPTED the content field holds raw ciphertext (no Base64).
+ */
+public final class FrameCodec {
+
+    public static final byte MAGIC = (byte) 0xB1;
+    public static final byte VERSION = 1;
+    public static final byte[] PREAMBLE = {MAGIC, VERSION};
+
+    public static final int FLAG_ENCRYPTED = 0x01;
+    // On CONNECT: the client answers ACK requests, see OfflineDelivery
+    public static final int FLAG_ACKS = 0x02;
+
+    public static final int MAX_FRAME_LENGTH = 1 << 20;
+
+    private static final MessageType[] TYPES = MessageType.values();
+    private static final ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[1024]);
+
+    private FrameCodec() {
+    }
+
+    /**
+     * Encode a frame with UTF-8 string fields
+     */
+    public static ByteBuffer encode(MessageType type, int flags, String... fields) {
+        byte[][] bytes = new byte[fields.length][];
+        for (int i = 0; i < fields.length; i++) {
+            bytes[i] = fields[i].getBytes(StandardCharsets.UTF_8);
+        }
+        return encode(type, flags, bytes);
+    }
+
+    /**
+     * Encode a frame with raw byte fields into a flipped heap buffer
+     */
+    public static ByteBuffer encode(MessageType type, int flags, byte[]... fields) {
+        int bodyLength = 2;
+        for (byte[] field : fields) {
+            bodyLength += varintSize(field.length) + field.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(varintSize(bodyLength) + bodyLength);
+        writeVarint(buffer, bodyLength);
+        buffer.put((byte) type.ordinal());
+        buffer.put((byte) flags);
+        for (byte[] field : fields) {
+            writeVarint(buffer, field.length);
+            buffer.put(field);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Decode one frame from the buffer into a new Frame view over it
+     * @return the frame, or null if the buffer does not yet hold a complete frame
+     *         (in which case its position is left unchanged)
+     */
+    public static Frame decode(ByteBuffer buffer) throws ProtocolException {
+        Frame frame = new Frame();
+        return decode(buffer, frame) ? frame : null;
+    }
+
+    /**
+     * Decode one frame in place, recording field offsets in the given frame
+     * @return false if the buffer does not yet hold a complete frame
+     */
+    static boolean decode(ByteBuffer buffer, Frame frame) throws ProtocolException {
+        int start = buffer.position();
+        int length = readVarint(buffer);
+        if (length == -1) {
+            buffer.position(start);
+            return false;
+        }
+        if (length < 2 || length > MAX_FRAME_LENGTH) {
+            throw new ProtocolException("Invalid frame length: " + length);
+        }
+        if (buffer.remaining() < length) {
+            buffer.position(start);
+            return false;
+        }
+        int end = buffer.position() + length;
+        frame.reset(typeOf(buffer.get()), buffer.get() & 0xFF, buffer);
+
+        while (buffer.position() < end) {
+            int fieldLength = readVarint(buffer);
+            if (fieldLength < 0 || buffer.position() + fieldLength > end) {
+                throw new ProtocolException("Malformed field in " + frame.getType() + " frame");
+            }
+            frame.addField(buffer.position(), fieldLength);
+            buffer.position(buffer.position() + fieldLength);
+        }
+        return true;
+    }
+
+    /**
+     * Total size (length prefix included) of the frame starting at the buffer's
+     * position, without consuming anything
+     * @return the size, or -1 if the length prefix is not complete yet
+     */
+    public static int peekFrameSize(ByteBuffer buffer) throws ProtocolException {
+        int start = buffer.position();
+        int length = readVarint(buffer);
+        int prefix = buffer.position() - start;
+        buffer.position(start);
+        if (length == -1) {
+            return -1;
+        }
+        if (length < 2 || length > MAX_FRAME_LENGTH) {
+            throw new ProtocolException("Invalid frame length: " + length);
+        }
+        return prefix + length;
+    }
+
+    /**
+     * Decode UTF-8 bytes from any buffer (heap or direct) without changing its position
+     * Direct buffers are copied through a per-thread scratch array, so the String is the
+     * only allocation
+     */
+    public static String decodeUtf8(ByteBuffer buffer, int offset, int length) {
+        if (buffer.hasArray()) {
+            return new String(buffer.array(), buffer.arrayOffset() + offset, length, StandardCharsets.UTF_8);
+        }
+        byte[] scratch = SCRATCH.get();
+        if (scratch.length < length) {
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+            SCRATCH.set(scratch);
+        }
+        buffer.get(offset, scratch, 0, length);
+        return new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Map a type byte back to its MessageType
+     */
+    public static MessageType typeOf(byte ordinal) throws ProtocolException {
+        int index = ordinal & 0xFF;
+        if (index >= TYPES.length) {
+            throw new ProtocolException("Unknown message type: " + index);
+        }
+        return TYPES[index];
+    }
+
+    public static void writeVarint(ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    /**
+     * Read an unsigned varint
+     * @return the value, or -1 if the buffer ends before the varint does
+     */
+    public static int readVarint(ByteBuffer buffer) throws ProtocolException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            byte b = buffer.get();
+            if (shift == 28 && (b & 0xF0) != 0) {
+                break;
+            }
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new ProtocolException("Varint too long");
+    }
+
+    public static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+}
@@ -0,0 +1,92 @@
+package main.java.com.securechat.common;
+
+import utils.BufferPool;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Finds binary frames in place and hands them out as a reused Frame view
+ *
+ * Non-blocking callers own the buffer and call decode(); blocking callers use
+ * read(), which reads the channel into a pooled direct buffer. In both cases no
+ * bytes are copied and no objects are allocated per frame unless a field is
+ * turned into a String or a frame is larger than a pooled buffer.
+ */
+public class FrameDecoder {
+
+    private final Frame frame = new Frame();
+    private final BufferPool pool;
+    private ByteBuffer buffer;
+
+    public FrameDecoder(BufferPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Decode the next complete frame from a buffer in read mode
+     * The returned frame is reused and valid until the next call
+     * @return the frame, or null if more bytes are needed
+     */
+    public Frame decode(ByteBuffer in) throws ProtocolException {
+        return FrameCodec.decode(in, frame) ? frame : null;
+    }
+
+    /**
+     * Read the next frame from a blocking channel
+     * The returned frame is reused and valid until the next call
+     * @return the frame, or null at end of stream
+     */
+    public Frame read(ReadableByteChannel channel) throws IOException {
+        if (buffer == null) {
+            buffer = pool.acquire();
+            buffer.flip();
+        }
+        while (true) {
+            if (FrameCodec.decode(buffer, frame)) {
+                return frame;
+            }
+            prepareForRead();
+            int read = channel.read(buffer);
+            buffer.flip();
+            if (read < 0) {
+                if (buffer.hasRemaining()) {
+                    throw new EOFException("Truncated frame");
+                }
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Compact unread bytes to the front, growing past the pooled size only for
+     * a frame that cannot fit
+     */
+    private void prepareForRead() throws ProtocolException {
+        int needed = FrameCodec.peekFrameSize(buffer);
+        if (needed > buffer.capacity()) {
+            ByteBuffer larger = ByteBuffer.allocateDirect(needed);
+            larger.put(buffer);
+            pool.release(buffer);
+            buffer = larger;
+        } else if (!buffer.hasRemaining() && buffer.capacity() != pool.bufferSize()) {
+            // Back to small frames: trade the oversized buffer for a pooled one
+            buffer = pool.acquire();
+        } else {
+            buffer.compact();
+        }
+    }
+
+    /**
+     * Return the read buffer to the pool
+     */
+    public void release() {
+        if (buffer != null) {
+            pool.release(buffer);
+            buffer = null;
+        }
+    }
+}
@@ -1,16 +1,22 @@
 package main.java.com.securechat.common;
 
 import java.io.Serializable;
+import java.time.Instant;
 import java.time.LocalDateTime;
-import java.util.UUID;
+import java.time.ZoneId;
 
 /**
  * Represents a chat message that can be sent between clients
  * Supports both group and private messaging
+ *
+ * Messages are identified by a time-ordered 64-bit id from MessageIdGenerator;
+ * getMessageId() renders it as a string for existing callers. The timestamp is
+ * derived from the id unless one is set explicitly.
  */
 public class Message implements Serializable {
     private static final long serialVersionUID = 1L;
 
+    private long id;
     private String messageId;
     private String senderId;
     private String senderName;
@@ -21,8 +27,7 @@ public class Message implements Serializable {
     private boolean encrypted;
 
     public Message() {
-        this.messageId = UUID.randomUUID().toString();
-        this.timestamp = LocalDateTime.now();
+        this.id = MessageIdGenerator.getDefault().nextId();
     }
 
     public Message(String senderId, String senderName, String content, MessageType type) {
@@ -34,7 +39,23 @@ public class Message implements Serializable {
     }
 
     // Getters and Setters
+    public long getId() {
+        return id;
+    }
+
+    public void setId(long id) {
+        this.id = id;
+        this.messageId = null;
+    }
+
+    /**
+     * Get the message id as a string
+     * Ids set through setMessageId() are returned as given
+     */
     public String getMessageId() {
+        if (messageId == null) {
+            messageId = Long.toString(id);
+        }
         return messageId;
     }
 
@@ -83,6 +104,10 @@ public class Message implements Serializable {
     }
 
     public LocalDateTime getTimestamp() {
+        if (timestamp == null) {
+            timestamp = LocalDateTime.ofInstant(
+                    Instant.ofEpochMilli(MessageIdGenerator.timestampOf(id)), ZoneId.systemDefault());
+        }
         return timestamp;
     }
 
@@ -101,12 +126,12 @@ public class Message implements Serializable {
     @Override
     public String toString() {
         return "Message{" +
-                "messageId='" + messageId + '\'' +
+                "messageId='" + getMessageId() + '\'' +
                 ", senderId='" + senderId + '\'' +
                 ", senderName='" + senderName + '\'' +
                 ", recipientId='" + recipientId + '\'' +
                 ", type=" + type +
-                ", timestamp=" + timestamp +
+                ", timestamp=" + getTimestamp() +
                 ", encrypted=" + encrypted +
                 '}';
     }
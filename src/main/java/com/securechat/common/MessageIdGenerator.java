@@ -0,0 +1,94 @@
+package main.java.com.securechat.common;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Snowflake-style generator of time-ordered 64-bit message IDs
+ *
+ * Layout (high to low bits):
+ *   1   unused sign bit
+ *   41  milliseconds since EPOCH (about 69 years)
+ *   10  node id
+ *   12  sequence within the millisecond
+ *
+ * IDs from one generator strictly increase, so they sort by creation time and a
+ * time window maps to an ID range (see firstIdAt). A burst of more than 4096 IDs
+ * in one millisecond, or a clock that steps backwards, borrows from the next
+ * millisecond instead of blocking or repeating.
+ */
+public final class MessageIdGenerator {
+
+    /** 2024-01-01T00:00:00Z */
+    public static final long EPOCH = 1704067200000L;
+
+    public static final int NODE_BITS = 10;
+    public static final int SEQUENCE_BITS = 12;
+    public static final int MAX_NODE_ID = (1 << NODE_BITS) - 1;
+
+    private static final int TIMESTAMP_SHIFT = NODE_BITS + SEQUENCE_BITS;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+
+    private static volatile MessageIdGenerator defaultGenerator = new MessageIdGenerator(0);
+
+    private final long nodeBits;
+    // Last issued (timestamp << SEQUENCE_BITS | sequence), without the node bits
+    private final AtomicLong last = new AtomicLong();
+
+    public MessageIdGenerator(int nodeId) {
+        if (nodeId < 0 || nodeId > MAX_NODE_ID) {
+            throw new IllegalArgumentException("Node id must be between 0 and " + MAX_NODE_ID + ": " + nodeId);
+        }
+        this.nodeBits = (long) nodeId << SEQUENCE_BITS;
+    }
+
+    /**
+     * Get the process-wide generator used by Message and the server
+     */
+    public static MessageIdGenerator getDefault() {
+        return defaultGenerator;
+    }
+
+    /**
+     * Replace the process-wide generator, e.g. with this server's configured node id
+     */
+    public static void setDefault(MessageIdGenerator generator) {
+        defaultGenerator = generator;
+    }
+
+    /**
+     * Issue the next ID
+     */
+    public long nextId() {
+        long now = (System.currentTimeMillis() - EPOCH) << SEQUENCE_BITS;
+        while (true) {
+            long previous = last.get();
+            long next = Math.max(previous + 1, now);
+            if (last.compareAndSet(previous, next)) {
+                return (next >>> SEQUENCE_BITS) << TIMESTAMP_SHIFT | nodeBits | (next & SEQUENCE_MASK);
+            }
+        }
+    }
+
+    /**
+     * Get the creation time of an ID in epoch milliseconds
+     */
+    public static long timestampOf(long id) {
+        return (id >>> TIMESTAMP_SHIFT) + EPOCH;
+    }
+
+    public static int nodeOf(long id) {
+        return (int) (id >>> SEQUENCE_BITS) & MAX_NODE_ID;
+    }
+
+    public static int sequenceOf(long id) {
+        return (int) (id & SEQUENCE_MASK);
+    }
+
+    /**
+     * Get the smallest ID any node can issue at the given epoch millisecond,
+     * for turning a time range into an ID range
+     */
+    public static long firstIdAt(long timestamp) {
+        return Math.max(0, timestamp - EPOCH) << TIMESTAMP_SHIFT;
+    }
+}
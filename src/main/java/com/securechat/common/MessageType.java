@@ -17,5 +17,10 @@ public enum MessageType {
     ERROR,          // Error message
     
     // General
-    HEARTBEAT       // Keep-alive message
+    HEARTBEAT,      // Keep-alive message
+    
+    // Server -> Client, added last so existing binary type ordinals stay the same
+    SESSION,        // Key exchange reply with a resumption ticket
+    PRESENCE,       // Users who joined or left between two membership versions
+    ACK             // Offline delivery receipt, requested by the server and echoed by the client
 }
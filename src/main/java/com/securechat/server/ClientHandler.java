@@ -1,44 +1,93 @@
 package main.java.com.securechat.server;
 
+import main.java.com.securechat.common.Frame;
+import main.java.com.securechat.common.FrameCodec;
+import main.java.com.securechat.common.FrameDecoder;
+
 import server.ChatServer;
+import server.ClientConnection;
+import server.ClientRegistry;
+import server.OutboundQueue;
+import server.WireMessage;
+import utils.BufferPool;
+import utils.CipherSuite;
 
+import javax.net.ssl.SSLSocket;
 import java.io.*;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 
 /**
  * MODULE 1: Server Setup - Handle multiple clients using ServerSocket + threads
  * Handles communication with a single client in a separate thread
  * Team Member 1 should implement this class
+ *
+ * Outgoing frames go through a bounded OutboundQueue drained by a separate
+ * writer task, so a client with a full TCP window never blocks the thread
+ * that broadcasts to it. Nothing on the write path uses synchronized, so a
+ * virtual thread blocked on a slow socket does not pin its carrier.
  */
-public class ClientHandler implements Runnable {
+public class ClientHandler implements Runnable, ClientConnection {
 
     private final Socket clientSocket;
     private final ChatServer server;
-    private PrintWriter out;
+    private final OutboundQueue outbound;
+    private volatile OutputStream out;
+    private volatile WritableByteChannel outChannel;
     private BufferedReader in;
-    private String username;
+    private volatile String username;
+    private volatile CipherSuite cipherSuite;
+    private volatile boolean acknowledging;
+    private volatile int sessionId = ClientRegistry.NO_SESSION;
     private volatile boolean running = true;
+    private volatile boolean binaryProtocol;
 
     public ClientHandler(Socket socket, ChatServer server) {
         this.clientSocket = socket;
         this.server = server;
+        this.outbound = server.newOutboundQueue();
     }
 
     @Override
     public void run() {
         try {
             // Initialize streams
-            out = new PrintWriter(clientSocket.getOutputStream(), true);
-            in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
+            out = clientSocket.getOutputStream();
+            // A TLS socket layered over an accepted one reports the raw, unencrypted channel
+            SocketChannel socketChannel = clientSocket instanceof SSLSocket ? null : clientSocket.getChannel();
+            outChannel = socketChannel != null ? socketChannel : Channels.newChannel(out);
+            InputStream input = clientSocket.getInputStream();
+            ReadableByteChannel inChannel = socketChannel != null ? socketChannel : Channels.newChannel(input);
+            server.executeWriter(this::writeLoop);
 
             System.out.println("Client connected from: " + clientSocket.getRemoteSocketAddress());
 
+            // Binary clients open with FrameCodec.PREAMBLE, text clients with a command
+            ByteBuffer first = ByteBuffer.allocate(1);
+            if (inChannel.read(first) < 0) {
+                return;
+            }
+            if (first.get(0) == FrameCodec.MAGIC) {
+                binaryProtocol = true;
+                readFrames(inChannel);
+                return;
+            }
+            input = new SequenceInputStream(new ByteArrayInputStream(first.array()), input);
+            in = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+
             // Main message handling loop
             while (running) {
                 try {
                     String message = in.readLine();
                     if (message != null) {
-                        handleMessage(message);
+                        if (!server.getProtocolHandler().handle(this, message)) {
+                            running = false;
+                        }
                     } else {
                         break;
                     }
@@ -55,57 +104,135 @@ public class ClientHandler implements Runnable {
     }
 
     /**
-     * Process incoming message based on type
-     * Protocol: TYPE:data
-     * CONNECT:username
-     * GROUP:message
-     * PRIVATE:recipient:message
-     * DISCONNECT:username
-     */
-    private void handleMessage(String message) {
-        System.out.println("Received message: " + message);
-        
-        String[] parts = message.split(":", 2);
-        if (parts.length < 1) return;
-        
-        String type = parts[0];
-        
-        switch (type) {
-            case "CONNECT":
-                if (parts.length > 1) {
-                    this.username = parts[1];
-                    System.out.println("User connected: " + username);
-                }
-                break;
-            case "GROUP":
-                if (parts.length > 1 && username != null) {
-                    server.broadcastMessage(username + ": " + parts[1]);
-                }
-                break;
-            case "PRIVATE":
-                String[] privateParts = parts[1].split(":", 2);
-                if (privateParts.length == 2 && username != null) {
-                    server.sendPrivateMessage(username + " (private): " + privateParts[1], privateParts[0]);
+     * Message loop for clients using the binary frame protocol
+     * Frames are decoded in place from a pooled direct buffer
+     */
+    private void readFrames(ReadableByteChannel channel) {
+        FrameDecoder decoder = new FrameDecoder(BufferPool.DEFAULT);
+        try {
+            ByteBuffer version = ByteBuffer.allocate(1);
+            if (channel.read(version) < 0) {
+                return;
+            }
+            while (running) {
+                Frame frame = decoder.read(channel);
+                if (frame == null || !server.getProtocolHandler().handle(this, frame)) {
+                    break;
                 }
-                break;
-            case "DISCONNECT":
-                running = false;
-                break;
+            }
+        } catch (IOException e) {
+            System.err.println("Error reading message: " + e.getMessage());
+        } finally {
+            decoder.release();
         }
     }
 
     /**
      * Send a message to this client
      */
+    @Override
     public void sendMessage(String message) {
-        if (out != null) {
-            out.println(message);
+        send(WireMessage.server(message, null).frameFor(this));
+    }
+
+    /**
+     * Check whether this client negotiated the binary frame protocol
+     */
+    @Override
+    public boolean isBinaryProtocol() {
+        return binaryProtocol;
+    }
+
+    /**
+     * Get the cipher suite negotiated at CONNECT
+     */
+    @Override
+    public CipherSuite getCipherSuite() {
+        return cipherSuite;
+    }
+
+    /**
+     * Set the cipher suite negotiated at CONNECT
+     */
+    @Override
+    public void setCipherSuite(CipherSuite cipherSuite) {
+        this.cipherSuite = cipherSuite;
+    }
+
+    /**
+     * Check whether this client acknowledges offline messages
+     */
+    @Override
+    public boolean isAcknowledging() {
+        return acknowledging;
+    }
+
+    /**
+     * Set at CONNECT from the client's acks option
+     */
+    @Override
+    public void setAcknowledging(boolean acknowledging) {
+        this.acknowledging = acknowledging;
+    }
+
+    /**
+     * Queue a pre-encoded frame for this client
+     * A full queue is handled by the configured SlowConsumerPolicy
+     */
+    @Override
+    public void send(ByteBuffer frame, boolean droppable) {
+        if (!outbound.offer(frame, droppable)) {
+            if (running) {
+                System.err.println("Slow consumer " + username + ", disconnecting");
+                stop();
+            }
         }
     }
 
+    /**
+     * Drain the outbound queue to the socket; runs on its own task so a
+     * blocked write only ever stalls this client
+     */
+    private void writeLoop() {
+        WritableByteChannel channel = outChannel;
+        try {
+            ByteBuffer frame;
+            while ((frame = outbound.take()) != null) {
+                // Write straight from the (possibly shared) buffer through the socket channel
+                while (frame.hasRemaining()) {
+                    channel.write(frame);
+                }
+            }
+        } catch (IOException e) {
+            if (running) {
+                System.err.println("Error sending message to " + username + ": " + e.getMessage());
+                stop();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Get the number of frames waiting to be written to this client
+     */
+    @Override
+    public int getOutboundQueueDepth() {
+        return outbound.depth();
+    }
+
+    /**
+     * Get the number of frames discarded unwritten because the connection closed
+     */
+    @Override
+    public long getLostFrameCount() {
+        return outbound.lostFrames();
+    }
+
     /**
      * Get the username associated with this client handler
      */
+    @Override
     public String getUsername() {
         return username;
     }
@@ -113,15 +240,39 @@ public class ClientHandler implements Runnable {
     /**
      * Set the username for this client handler
      */
+    @Override
     public void setUsername(String username) {
         this.username = username;
     }
 
+    /**
+     * Get the registry session id for this client handler
+     */
+    @Override
+    public int getSessionId() {
+        return sessionId;
+    }
+
+    /**
+     * Set the registry session id for this client handler
+     */
+    @Override
+    public void setSessionId(int sessionId) {
+        this.sessionId = sessionId;
+    }
+
     /**
      * Stop the client handler
      */
+    @Override
     public void stop() {
         running = false;
+        try {
+            // Unblock the reader thread waiting in readLine()
+            clientSocket.close();
+        } catch (IOException e) {
+            System.err.println("Error closing client socket: " + e.getMessage());
+        }
     }
 
     /**
@@ -130,6 +281,7 @@ public class ClientHandler implements Runnable {
     private void cleanup() {
         try {
             running = false;
+            outbound.close();
             if (username != null) {
                 server.removeClient(this);
                 System.out.println("Client disconnected: " + username);
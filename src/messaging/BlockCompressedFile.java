@@ -0,0 +1,241 @@
+package messaging;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Seekable, block-compressed copy of a closed log file
+ *
+ * The source is cut into blocks of about BLOCK_SIZE bytes at record or line
+ * boundaries and each block is deflated on its own, so a reader inflates only
+ * the block holding the offset it wants and offsets into the original file
+ * stay valid. Layout (big-endian):
+ *   int magic "SCBZ", short version, short reserved
+ *   deflated blocks
+ *   block table: per block long start, int length, long fileOffset, int compressedLength
+ *   trailer: long tableOffset, int blockCount, int magic
+ *
+ * readBlock() is thread-safe; read() keeps the last block for one sequential reader.
+ */
+final class BlockCompressedFile {
+
+    static final int BLOCK_SIZE = 64 * 1024;
+
+    private static final int MAGIC = 0x5343425A; // "SCBZ"
+    private static final short VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final int TABLE_ENTRY_SIZE = 24;
+    private static final int TRAILER_SIZE = 16;
+
+    /**
+     * Where the block starting at start ends: a record or line boundary after it, at most limit
+     */
+    interface Boundary {
+        int blockEnd(ByteBuffer source, int start, int limit);
+    }
+
+    private final Path path;
+    private final long[] starts;
+    private final int[] lengths;
+    private final long[] fileOffsets;
+    private final int[] compressedLengths;
+    private final long length;
+
+    private int cachedBlock = -1;
+    private ByteBuffer cached;
+
+    private BlockCompressedFile(Path path, long[] starts, int[] lengths, long[] fileOffsets, int[] compressedLengths) {
+        this.path = path;
+        this.starts = starts;
+        this.lengths = lengths;
+        this.fileOffsets = fileOffsets;
+        this.compressedLengths = compressedLengths;
+        int n = starts.length;
+        this.length = n == 0 ? 0 : starts[n - 1] + lengths[n - 1];
+    }
+
+    /**
+     * Compress source[0, limit) into target
+     * Written to a temporary file, forced and then moved into place, so target
+     * is either absent or complete
+     */
+    static void write(ByteBuffer source, Path target, Boundary boundary) throws IOException {
+        Path temporary = target.resolveSibling(target.getFileName() + ".tmp");
+        int limit = source.limit();
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try (FileChannel out = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putShort(VERSION);
+            header.clear();
+            writeFully(out, header);
+            ByteBuffer table = ByteBuffer.allocate(Math.max(16, limit / BLOCK_SIZE + 1) * TABLE_ENTRY_SIZE);
+            byte[] compressed = new byte[BLOCK_SIZE + BLOCK_SIZE / 8];
+            int blocks = 0;
+            long fileOffset = HEADER_SIZE;
+            for (int start = 0; start < limit; ) {
+                int end = boundary.blockEnd(source, start, limit);
+                ByteBuffer block = source.duplicate();
+                block.limit(end).position(start);
+                deflater.reset();
+                deflater.setInput(block);
+                deflater.finish();
+                int compressedLength = 0;
+                while (!deflater.finished()) {
+                    if (compressedLength == compressed.length) {
+                        compressed = Arrays.copyOf(compressed, compressed.length * 2);
+                    }
+                    compressedLength += deflater.deflate(compressed, compressedLength, compressed.length - compressedLength);
+                }
+                writeFully(out, ByteBuffer.wrap(compressed, 0, compressedLength));
+                if (table.remaining() < TABLE_ENTRY_SIZE) {
+                    table = ByteBuffer.allocate(table.capacity() * 2).put(table.flip());
+                }
+                table.putLong(start).putInt(end - start).putLong(fileOffset).putInt(compressedLength);
+                fileOffset += compressedLength;
+                blocks++;
+                start = end;
+            }
+            table.flip();
+            writeFully(out, table);
+            ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE).putLong(fileOffset).putInt(blocks).putInt(MAGIC);
+            trailer.flip();
+            writeFully(out, trailer);
+            out.force(true);
+        } finally {
+            deflater.end();
+        }
+        Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            out.write(data);
+        }
+    }
+
+    /**
+     * Read the block table of a compressed file
+     */
+    static BlockCompressedFile open(Path path) throws IOException {
+        try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = in.size();
+            if (size < HEADER_SIZE + TRAILER_SIZE) {
+                throw new IOException("Compressed log " + path + " is too short");
+            }
+            ByteBuffer trailer = readFully(in, size - TRAILER_SIZE, TRAILER_SIZE);
+            long tableOffset = trailer.getLong();
+            int blocks = trailer.getInt();
+            if (trailer.getInt() != MAGIC || blocks < 0
+                    || tableOffset + (long) blocks * TABLE_ENTRY_SIZE != size - TRAILER_SIZE) {
+                throw new IOException("Not a compressed log: " + path);
+            }
+            ByteBuffer table = readFully(in, tableOffset, blocks * TABLE_ENTRY_SIZE);
+            long[] starts = new long[blocks];
+            int[] lengths = new int[blocks];
+            long[] fileOffsets = new long[blocks];
+            int[] compressedLengths = new int[blocks];
+            for (int i = 0; i < blocks; i++) {
+                starts[i] = table.getLong();
+                lengths[i] = table.getInt();
+                fileOffsets[i] = table.getLong();
+                compressedLengths[i] = table.getInt();
+            }
+            return new BlockCompressedFile(path, starts, lengths, fileOffsets, compressedLengths);
+        }
+    }
+
+    private static ByteBuffer readFully(FileChannel in, long position, int length) throws IOException {
+        ByteBuffer data = ByteBuffer.allocate(length);
+        while (data.hasRemaining()) {
+            if (in.read(data, position + data.position()) < 0) {
+                throw new IOException("Unexpected end of compressed log");
+            }
+        }
+        data.flip();
+        return data;
+    }
+
+    /**
+     * Length of the original file
+     */
+    long length() {
+        return length;
+    }
+
+    int blockCount() {
+        return starts.length;
+    }
+
+    long blockStart(int block) {
+        return starts[block];
+    }
+
+    /**
+     * Index of the block holding an offset of the original file, or -1 past the end
+     */
+    int blockFor(long offset) {
+        if (offset < 0 || offset >= length) {
+            return -1;
+        }
+        int i = Arrays.binarySearch(starts, offset);
+        return i >= 0 ? i : -i - 2;
+    }
+
+    /**
+     * Inflate one block into a new buffer whose index 0 is blockStart(block)
+     */
+    ByteBuffer readBlock(int block) throws IOException {
+        byte[] compressed;
+        try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+            compressed = readFully(in, fileOffsets[block], compressedLengths[block]).array();
+        }
+        byte[] data = new byte[lengths[block]];
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(compressed);
+            int inflated = 0;
+            while (inflated < data.length) {
+                int n = inflater.inflate(data, inflated, data.length - inflated);
+                if (n == 0 && (inflater.finished() || inflater.needsInput())) {
+                    throw new IOException("Compressed log block " + block + " of " + path + " is truncated");
+                }
+                inflated += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Compressed log block " + block + " of " + path + " is damaged", e);
+        } finally {
+            inflater.end();
+        }
+        return ByteBuffer.wrap(data);
+    }
+
+    /**
+     * Copy bytes of the original file at position into dst, like FileChannel.read
+     * @return bytes copied, or -1 at the end
+     */
+    int read(ByteBuffer dst, long position) throws IOException {
+        int block = blockFor(position);
+        if (block < 0) {
+            return -1;
+        }
+        if (block != cachedBlock) {
+            cached = readBlock(block);
+            cachedBlock = block;
+        }
+        ByteBuffer source = cached.duplicate();
+        source.position((int) (position - starts[block]));
+        int n = Math.min(source.remaining(), dst.remaining());
+        source.limit(source.position() + n);
+        dst.put(source);
+        return n;
+    }
+}
@@ -0,0 +1,33 @@
+package messaging;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One page of message history plus the token that continues after it
+ */
+public final class HistoryPage {
+
+    private final List<String> messages;
+    private final String continuationToken;
+
+    HistoryPage(List<String> messages, String continuationToken) {
+        this.messages = Collections.unmodifiableList(messages);
+        this.continuationToken = continuationToken;
+    }
+
+    public List<String> getMessages() {
+        return messages;
+    }
+
+    /**
+     * Get the token for the next page, or null if this is the last one
+     */
+    public String getContinuationToken() {
+        return continuationToken;
+    }
+
+    public boolean hasMore() {
+        return continuationToken != null;
+    }
+}
@@ -0,0 +1,218 @@
+package messaging;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * One immutable, memory-mapped part of a SearchIndex covering a run of documents
+ *
+ * Layout (big-endian):
+ *   header (48 bytes): int magic "SCTX", short version, short reserved,
+ *     int docStart, int docCount, long minTimestamp, long maxTimestamp,
+ *     int termCount, int reserved, long dictionaryOffset
+ *   postings: per term, document numbers as varint deltas, the first from docStart - 1
+ *   dictionary: int entry offset per term in UTF-8 byte order, then entries of
+ *     varint termLength, term bytes, varint docFrequency, varint postingsOffset, varint postingsLength
+ *
+ * Lookups binary-search the dictionary in place, so an open segment costs no heap
+ * beyond its mapping.
+ */
+final class IndexSegment {
+
+    static final String EXTENSION = ".tix";
+
+    private static final int MAGIC = 0x53435458; // "SCTX"
+    private static final short VERSION = 1;
+    private static final int HEADER_SIZE = 48;
+
+    private final Path path;
+    private final MappedByteBuffer buffer;
+    private final int docStart;
+    private final int docCount;
+    private final long minTimestamp;
+    private final long maxTimestamp;
+    private final int termCount;
+    private final int dictionaryOffset;
+
+    private IndexSegment(Path path, MappedByteBuffer buffer) {
+        this.path = path;
+        this.buffer = buffer;
+        this.docStart = buffer.getInt(8);
+        this.docCount = buffer.getInt(12);
+        this.minTimestamp = buffer.getLong(16);
+        this.maxTimestamp = buffer.getLong(24);
+        this.termCount = buffer.getInt(32);
+        this.dictionaryOffset = (int) buffer.getLong(40);
+    }
+
+    static String fileName(int docStart) {
+        return String.format("%010d%s", docStart, EXTENSION);
+    }
+
+    /**
+     * Write a segment from terms sorted in UTF-8 byte order and their encoded postings
+     * Written to a temporary file and moved into place
+     */
+    static IndexSegment write(Path directory, int docStart, int docCount, long minTimestamp, long maxTimestamp,
+                              byte[][] terms, SearchIndex.PostingList[] postings) throws IOException {
+        Path path = directory.resolve(fileName(docStart));
+        Path temporary = directory.resolve(fileName(docStart) + ".tmp");
+        long postingsBytes = 0;
+        for (SearchIndex.PostingList list : postings) {
+            postingsBytes += list.size();
+        }
+        long dictionaryOffset = HEADER_SIZE + postingsBytes;
+        try (OutputStream file = Files.newOutputStream(temporary);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 64 * 1024))) {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeShort(0);
+            out.writeInt(docStart);
+            out.writeInt(docCount);
+            out.writeLong(minTimestamp);
+            out.writeLong(maxTimestamp);
+            out.writeInt(terms.length);
+            out.writeInt(0);
+            out.writeLong(dictionaryOffset);
+            for (SearchIndex.PostingList list : postings) {
+                list.writeTo(out);
+            }
+            // Entry offsets, then the entries themselves
+            long entryOffset = dictionaryOffset + 4L * terms.length;
+            long postingsOffset = HEADER_SIZE;
+            byte[][] entries = new byte[terms.length][];
+            for (int i = 0; i < terms.length; i++) {
+                ByteBuffer entry = ByteBuffer.allocate(terms[i].length + 20);
+                putVarInt(entry, terms[i].length);
+                entry.put(terms[i]);
+                putVarInt(entry, postings[i].count());
+                putVarInt(entry, (int) postingsOffset);
+                putVarInt(entry, postings[i].size());
+                entries[i] = Arrays.copyOf(entry.array(), entry.position());
+                out.writeInt((int) entryOffset);
+                entryOffset += entries[i].length;
+                postingsOffset += postings[i].size();
+            }
+            if (entryOffset > Integer.MAX_VALUE) {
+                throw new IOException("Search index segment too large: " + entryOffset + " bytes");
+            }
+            for (byte[] entry : entries) {
+                out.write(entry);
+            }
+        }
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        return open(path);
+    }
+
+    static IndexSegment open(Path path) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE) {
+                throw new IOException("Search index segment " + path + " is too short");
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (buffer.getInt(0) != MAGIC || buffer.getShort(4) != VERSION
+                || buffer.getLong(40) + 4L * buffer.getInt(32) > buffer.capacity()) {
+            throw new IOException("Not a version " + VERSION + " search index segment: " + path);
+        }
+        return new IndexSegment(path, buffer);
+    }
+
+    /**
+     * Document numbers containing a term, ascending, or null if it does not occur
+     */
+    int[] postings(byte[] term) {
+        ByteBuffer view = buffer.duplicate();
+        int low = 0;
+        int high = termCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            view.position(view.getInt(dictionaryOffset + 4 * mid));
+            int length = getVarInt(view);
+            int cmp = compare(view, view.position(), length, term);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                view.position(view.position() + length);
+                int count = getVarInt(view);
+                int offset = getVarInt(view);
+                getVarInt(view);
+                view.position(offset);
+                int[] docs = new int[count];
+                int doc = docStart - 1;
+                for (int i = 0; i < count; i++) {
+                    doc += getVarInt(view);
+                    docs[i] = doc;
+                }
+                return docs;
+            }
+        }
+        return null;
+    }
+
+    private static int compare(ByteBuffer buffer, int offset, int length, byte[] term) {
+        int n = Math.min(length, term.length);
+        for (int i = 0; i < n; i++) {
+            int cmp = Byte.compareUnsigned(buffer.get(offset + i), term[i]);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return length - term.length;
+    }
+
+    static void putVarInt(ByteBuffer out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    static int getVarInt(ByteBuffer in) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    void delete() throws IOException {
+        Files.deleteIfExists(path);
+    }
+
+    int getDocStart() {
+        return docStart;
+    }
+
+    int getDocEnd() {
+        return docStart + docCount;
+    }
+
+    long getMinTimestamp() {
+        return minTimestamp;
+    }
+
+    long getMaxTimestamp() {
+        return maxTimestamp;
+    }
+}
@@ -0,0 +1,163 @@
+package messaging;
+
+import java.io.Closeable;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Pull-style reader over a SegmentedLog
+ *
+ * Walks a snapshot of the segments one record at a time, reading only the
+ * index blocks that can match, so a reader holds a single record view no
+ * matter how much history it covers. The position after the current record
+ * (segment base id plus offset) can be saved and passed to seek() to resume
+ * a later cursor with the same bounds.
+ *
+ * Not thread-safe; each reader opens its own cursor.
+ */
+public final class LogCursor implements Closeable {
+
+    private final Iterator<LogSegment> segments;
+    private final long fromId;
+    private final long fromTimestamp;
+    private final long toTimestamp;
+    private final LogRecord record = new LogRecord();
+
+    private LogSegment segment;
+    private LogSegment.Window window;
+    private int[] ranges;
+    private int position;
+    private long seekBaseId = Long.MIN_VALUE;
+    private int seekPosition;
+    private boolean closed;
+
+    LogCursor(List<LogSegment> segments, long fromId, long fromTimestamp, long toTimestamp) {
+        // Iterating a CopyOnWriteArrayList works on a snapshot
+        this.segments = segments.iterator();
+        this.fromId = fromId;
+        this.fromTimestamp = fromTimestamp;
+        this.toTimestamp = toTimestamp;
+    }
+
+    /**
+     * Resume from a position saved with getSegmentBaseId() and getPosition()
+     * Must be called before the first next(). If that segment is gone the cursor
+     * starts at the next one.
+     */
+    public void seek(long segmentBaseId, int position) {
+        if (segment != null) {
+            throw new IllegalStateException("Cursor already started");
+        }
+        this.seekBaseId = segmentBaseId;
+        this.seekPosition = position;
+    }
+
+    /**
+     * Advance to the next matching record
+     * @return false once the log is exhausted or the cursor is closed
+     */
+    public boolean next() {
+        while (!closed) {
+            if (ranges != null) {
+                // Nothing in [stop, tail) can match
+                if (position >= ranges[1] && position < ranges[2]) {
+                    position = ranges[2];
+                }
+                if (position < ranges[3]) {
+                    if (!moveWindow()) {
+                        continue;
+                    }
+                    int local = position - window.start;
+                    int length = window.buffer.getInt(local + LogRecord.LENGTH_OFFSET);
+                    record.wrap(window.buffer, local, length);
+                    position += length;
+                    if (matches(record)) {
+                        return true;
+                    }
+                    continue;
+                }
+            }
+            if (!nextSegment()) {
+                close();
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Make sure the window covers position; a compressed segment that cannot be
+     * read (e.g. removed by retention meanwhile) is skipped
+     */
+    private boolean moveWindow() {
+        if (window != null && position >= window.start && position < window.end) {
+            return true;
+        }
+        try {
+            window = segment.window(position);
+            return true;
+        } catch (UncheckedIOException e) {
+            System.err.println("Skipping unreadable log segment " + segment.getPath() + ": " + e.getMessage());
+            ranges = null;
+            return false;
+        }
+    }
+
+    private boolean nextSegment() {
+        while (segments.hasNext()) {
+            LogSegment candidate = segments.next();
+            if (candidate.getBaseId() < seekBaseId || canSkip(candidate)) {
+                continue;
+            }
+            segment = candidate;
+            window = null;
+            ranges = fromId == Long.MIN_VALUE ? candidate.rangeBetween(fromTimestamp, toTimestamp)
+                    : candidate.rangeFromId(fromId);
+            position = ranges[0];
+            if (candidate.getBaseId() == seekBaseId) {
+                position = Math.max(position, seekPosition);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private boolean canSkip(LogSegment candidate) {
+        return candidate.isSealed() && (candidate.getMaxId() < fromId
+                || candidate.getMaxTimestamp() < fromTimestamp || candidate.getMinTimestamp() >= toTimestamp);
+    }
+
+    private boolean matches(LogRecord r) {
+        long timestamp = r.getTimestamp();
+        return r.getId() >= fromId && timestamp >= fromTimestamp && timestamp < toTimestamp;
+    }
+
+    /**
+     * Current record; valid until the next call to next()
+     */
+    public LogRecord record() {
+        return record;
+    }
+
+    /**
+     * Base id of the segment holding the current record
+     */
+    public long getSegmentBaseId() {
+        return segment == null ? seekBaseId : segment.getBaseId();
+    }
+
+    /**
+     * Offset just after the current record
+     */
+    public int getPosition() {
+        return segment == null ? seekPosition : position;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        segment = null;
+        window = null;
+        ranges = null;
+    }
+}
@@ -0,0 +1,105 @@
+package messaging;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads the lines of a text log through a fixed buffer, tracking the byte
+ * offset of the next line so a later reader can resume exactly there
+ *
+ * A trailing line without its separator is still being written and is not
+ * returned. Compressed day files are read a block at a time with the same
+ * offsets as the original.
+ */
+final class LogLineReader implements Closeable {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final FileChannel channel;
+    private final BlockCompressedFile compressed;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private final ByteArrayOutputStream longLine = new ByteArrayOutputStream();
+    private long fileOffset;
+    private long lineOffset;
+    private boolean endOfFile;
+
+    LogLineReader(Path file, long offset) throws IOException {
+        this(FileChannel.open(file, StandardOpenOption.READ), null, offset);
+    }
+
+    LogLineReader(BlockCompressedFile file, long offset) {
+        this(null, file, offset);
+    }
+
+    private LogLineReader(FileChannel channel, BlockCompressedFile compressed, long offset) {
+        this.channel = channel;
+        this.compressed = compressed;
+        this.fileOffset = offset;
+        this.lineOffset = offset;
+        buffer.flip();
+    }
+
+    /**
+     * Read the next complete line without its separator
+     * @return the line, or null at the end of the file
+     */
+    String readLine() throws IOException {
+        longLine.reset();
+        while (true) {
+            int start = buffer.position();
+            for (int i = start; i < buffer.limit(); i++) {
+                if (buffer.get(i) == '\n') {
+                    int end = i > start && buffer.get(i - 1) == '\r' ? i - 1 : i;
+                    lineOffset += longLine.size() + (i + 1 - start);
+                    buffer.position(i + 1);
+                    return decode(start, end);
+                }
+            }
+            // No separator in the buffer: keep the partial line and read more
+            longLine.write(buffer.array(), start, buffer.limit() - start);
+            buffer.clear();
+            int read = endOfFile ? -1
+                    : channel != null ? channel.read(buffer, fileOffset) : compressed.read(buffer, fileOffset);
+            buffer.flip();
+            if (read <= 0) {
+                endOfFile = true;
+                return null;
+            }
+            fileOffset += read;
+        }
+    }
+
+    private String decode(int start, int end) {
+        if (longLine.size() == 0) {
+            return new String(buffer.array(), start, end - start, StandardCharsets.UTF_8);
+        }
+        longLine.write(buffer.array(), start, end - start);
+        byte[] bytes = longLine.toByteArray();
+        int length = bytes.length;
+        // A "\r\n" split across reads leaves the '\r' in the saved part
+        if (end == start && length > 0 && bytes[length - 1] == '\r') {
+            length--;
+        }
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Offset of the line the next readLine() returns
+     */
+    long getOffset() {
+        return lineOffset;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+    }
+}
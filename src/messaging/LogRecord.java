@@ -0,0 +1,133 @@
+package messaging;
+
+import main.java.com.securechat.common.FrameCodec;
+import main.java.com.securechat.common.MessageType;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A view of one record in a SegmentedLog
+ *
+ * Record layout (big-endian, 32-byte header):
+ *   int    length          whole record including the header; 0 marks the end of a segment
+ *   int    crc             CRC-32C of everything after this field
+ *   long   id              message id
+ *   long   timestamp       epoch milliseconds
+ *   byte   type            MessageType ordinal
+ *   byte   reserved
+ *   short  senderLength
+ *   short  recipientLength
+ *   short  reserved
+ *   bytes  sender, recipient (UTF-8), content
+ *
+ * Instances are reused while iterating: read the fields inside the visitor and
+ * copy anything that must outlive the call.
+ */
+public final class LogRecord {
+
+    static final int HEADER_SIZE = 32;
+    static final int LENGTH_OFFSET = 0;
+    static final int CRC_OFFSET = 4;
+    static final int ID_OFFSET = 8;
+    static final int TIMESTAMP_OFFSET = 16;
+    static final int TYPE_OFFSET = 24;
+    static final int SENDER_LENGTH_OFFSET = 26;
+    static final int RECIPIENT_LENGTH_OFFSET = 28;
+
+    private static final MessageType[] TYPES = MessageType.values();
+
+    private ByteBuffer buffer;
+    private int offset;
+    private int length;
+
+    LogRecord() {
+    }
+
+    void wrap(ByteBuffer buffer, int offset, int length) {
+        this.buffer = buffer;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    public long getId() {
+        return buffer.getLong(offset + ID_OFFSET);
+    }
+
+    public long getTimestamp() {
+        return buffer.getLong(offset + TIMESTAMP_OFFSET);
+    }
+
+    public MessageType getType() {
+        int ordinal = buffer.get(offset + TYPE_OFFSET);
+        return ordinal >= 0 && ordinal < TYPES.length ? TYPES[ordinal] : null;
+    }
+
+    /**
+     * Get the sender, or null for server messages
+     */
+    public String getSender() {
+        int senderLength = senderLength();
+        return senderLength == 0 ? null : FrameCodec.decodeUtf8(buffer, offset + HEADER_SIZE, senderLength);
+    }
+
+    /**
+     * Get the recipient of a private message, or null
+     */
+    public String getRecipient() {
+        int recipientLength = recipientLength();
+        return recipientLength == 0 ? null
+                : FrameCodec.decodeUtf8(buffer, offset + HEADER_SIZE + senderLength(), recipientLength);
+    }
+
+    /**
+     * Get the buffer holding the content; bytes are at getContentOffset() for getContentLength()
+     */
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    public int getContentOffset() {
+        return offset + HEADER_SIZE + senderLength() + recipientLength();
+    }
+
+    public int getContentLength() {
+        return length - HEADER_SIZE - senderLength() - recipientLength();
+    }
+
+    public String getContentString() {
+        return FrameCodec.decodeUtf8(buffer, getContentOffset(), getContentLength());
+    }
+
+    /**
+     * Size of the whole record on disk
+     */
+    public int getLength() {
+        return length;
+    }
+
+    private int senderLength() {
+        return buffer.getShort(offset + SENDER_LENGTH_OFFSET) & 0xFFFF;
+    }
+
+    private int recipientLength() {
+        return buffer.getShort(offset + RECIPIENT_LENGTH_OFFSET) & 0xFFFF;
+    }
+
+    /**
+     * Size of a record with the given field lengths
+     */
+    static int sizeOf(int senderLength, int recipientLength, int contentLength) {
+        return HEADER_SIZE + senderLength + recipientLength + contentLength;
+    }
+
+    @Override
+    public String toString() {
+        return "LogRecord{" +
+                "id=" + getId() +
+                ", type=" + getType() +
+                ", sender='" + getSender() + '\'' +
+                ", timestamp=" + getTimestamp() +
+                ", contentLength=" + getContentLength() +
+                '}';
+    }
+}
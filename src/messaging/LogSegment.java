@@ -0,0 +1,604 @@
+package messaging;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+
+/**
+ * One fixed-size, memory-mapped segment file of a SegmentedLog
+ *
+ * Header (64 bytes, big-endian):
+ *   int   magic "SCLG", short version, short flags (SEALED, CLEAN)
+ *   long  baseId (id of the first record, also the file name), long createdAt
+ *   int   length (end of the last record, valid when SEALED or CLEAN)
+ *   int   synced (records before this offset were forced to disk)
+ *   long  minId, maxId, minTimestamp, maxTimestamp (valid when SEALED or CLEAN)
+ * followed by LogRecords and zero fill.
+ *
+ * Records hold ids and timestamps that are only nearly sorted (messages from
+ * different threads can reach the writer slightly out of order), so readers
+ * use the min/max bounds rather than the base id to skip segments.
+ *
+ * A SparseIndex alongside the segment records every indexInterval records
+ * as a block, so range reads start and stop near the matching records instead
+ * of walking the whole file. Only the last, not yet indexed block is scanned
+ * record by record.
+ *
+ * After a crash only records past the synced checkpoint can be torn, so
+ * recovery walks earlier records by length and CRC-checks just the unsynced
+ * tail, then zeroes everything after the last intact record so stale bytes
+ * can never be read back as records once appends resume.
+ *
+ * A sealed segment can be replaced by a block-compressed copy (.segz) that
+ * keeps the same offsets, so its index and saved cursor positions stay valid;
+ * readers then inflate one block at a time through window().
+ *
+ * Only the writer thread appends. Readers see records up to the volatile
+ * committed offset, which is published after each record is complete.
+ */
+final class LogSegment {
+
+    static final String EXTENSION = ".seg";
+    static final String COMPRESSED_EXTENSION = ".segz";
+    static final int HEADER_SIZE = 64;
+
+    private static final int MAGIC = 0x53434C47; // "SCLG"
+    private static final short VERSION = 1;
+    private static final short FLAG_SEALED = 1;
+    private static final short FLAG_CLEAN = 2;
+
+    private static final int FLAGS_OFFSET = 6;
+    private static final int BASE_ID_OFFSET = 8;
+    private static final int CREATED_AT_OFFSET = 16;
+    private static final int LENGTH_OFFSET = 24;
+    private static final int SYNCED_OFFSET = 28;
+    private static final int MIN_ID_OFFSET = 32;
+    private static final int MAX_ID_OFFSET = 40;
+    private static final int MIN_TIMESTAMP_OFFSET = 48;
+    private static final int MAX_TIMESTAMP_OFFSET = 56;
+
+    private final Path path;
+    private final MappedByteBuffer buffer;
+    private final BlockCompressedFile compressed;
+    private final long baseId;
+    private final long createdAt;
+    private final CRC32C crc = new CRC32C();
+    private final ByteBuffer crcView;
+    private final int indexInterval;
+
+    private SparseIndex index;
+
+    private volatile int committed;
+    private volatile boolean sealed;
+    private int syncedTo;
+    private long minId = Long.MAX_VALUE;
+    private long maxId = Long.MIN_VALUE;
+    private long minTimestamp = Long.MAX_VALUE;
+    private long maxTimestamp = Long.MIN_VALUE;
+
+    // Block being filled, added to the index once it holds indexInterval records
+    private int blockStart = HEADER_SIZE;
+    private int blockCount;
+    private long blockMinId = Long.MAX_VALUE;
+    private long blockMaxId = Long.MIN_VALUE;
+    private long blockMinTimestamp = Long.MAX_VALUE;
+    private long blockMaxTimestamp = Long.MIN_VALUE;
+
+    private LogSegment(Path path, MappedByteBuffer buffer, int indexInterval) {
+        this(path, buffer, buffer, null, indexInterval);
+    }
+
+    private LogSegment(Path path, ByteBuffer header, MappedByteBuffer buffer, BlockCompressedFile compressed,
+                       int indexInterval) {
+        this.path = path;
+        this.buffer = buffer;
+        this.compressed = compressed;
+        this.baseId = header.getLong(BASE_ID_OFFSET);
+        this.createdAt = header.getLong(CREATED_AT_OFFSET);
+        this.crcView = buffer == null ? null : buffer.duplicate();
+        this.indexInterval = indexInterval;
+    }
+
+    /**
+     * Part of a segment held in memory; buffer index 0 is segment offset start
+     */
+    static final class Window {
+        final ByteBuffer buffer;
+        final int start;
+        final int end;
+
+        Window(ByteBuffer buffer, int start, int end) {
+            this.buffer = buffer;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    /**
+     * Create and map a new segment file named after its first record id
+     */
+    static LogSegment create(Path directory, long baseId, long createdAt, int capacity,
+                             int indexInterval) throws IOException {
+        Path path = directory.resolve(fileName(baseId));
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        }
+        buffer.putInt(0, MAGIC);
+        buffer.putShort(4, VERSION);
+        buffer.putLong(BASE_ID_OFFSET, baseId);
+        buffer.putLong(CREATED_AT_OFFSET, createdAt);
+        buffer.force(0, HEADER_SIZE);
+        LogSegment segment = new LogSegment(path, buffer, indexInterval);
+        segment.index = new SparseIndex(SparseIndex.pathFor(path));
+        segment.committed = HEADER_SIZE;
+        segment.syncedTo = HEADER_SIZE;
+        return segment;
+    }
+
+    /**
+     * Map an existing segment file
+     * Sealed and cleanly closed segments trust their header; others are scanned
+     * up to the first record that is missing or fails its CRC. The sparse index
+     * is loaded for sealed and clean segments and rebuilt for the rest
+     */
+    static LogSegment open(Path path, int indexInterval) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            if (channel.size() < HEADER_SIZE) {
+                throw new IOException("Log segment " + path + " is too short");
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+        }
+        if (buffer.getInt(0) != MAGIC || buffer.getShort(4) != VERSION) {
+            throw new IOException("Not a version " + VERSION + " log segment: " + path);
+        }
+        LogSegment segment = new LogSegment(path, buffer, indexInterval);
+        Path indexPath = SparseIndex.pathFor(path);
+        short flags = buffer.getShort(FLAGS_OFFSET);
+        if ((flags & (FLAG_SEALED | FLAG_CLEAN)) != 0) {
+            segment.readTrailer(buffer);
+            segment.index = SparseIndex.load(indexPath, segment.committed);
+        }
+        if (segment.index != null) {
+            segment.blockStart = segment.committed;
+        } else {
+            segment.index = new SparseIndex(indexPath);
+            segment.recover((flags & (FLAG_SEALED | FLAG_CLEAN)) != 0);
+        }
+        segment.syncedTo = segment.committed;
+        segment.sealed = (flags & FLAG_SEALED) != 0;
+        if (segment.sealed) {
+            // Rewrite a missing or damaged index; nothing to do if it loaded
+            segment.closeBlock();
+            segment.persistIndex();
+            segment.closeIndex();
+        }
+        return segment;
+    }
+
+    /**
+     * Open the compressed copy of a sealed segment
+     */
+    static LogSegment openCompressed(Path path, int indexInterval) throws IOException {
+        BlockCompressedFile file = BlockCompressedFile.open(path);
+        ByteBuffer header = file.blockCount() == 0 ? null : file.readBlock(0);
+        if (header == null || header.limit() < HEADER_SIZE || header.getInt(0) != MAGIC
+                || header.getShort(4) != VERSION || (header.getShort(FLAGS_OFFSET) & FLAG_SEALED) == 0) {
+            throw new IOException("Not a sealed version " + VERSION + " log segment: " + path);
+        }
+        LogSegment segment = new LogSegment(path, header, null, file, indexInterval);
+        segment.readTrailer(header);
+        segment.sealed = true;
+        Path indexPath = SparseIndex.pathFor(path);
+        segment.index = SparseIndex.load(indexPath, segment.committed);
+        if (segment.index == null) {
+            segment.index = new SparseIndex(indexPath);
+            segment.reindex();
+            segment.closeBlock();
+            segment.persistIndex();
+            segment.closeIndex();
+        }
+        return segment;
+    }
+
+    private void readTrailer(ByteBuffer header) {
+        committed = header.getInt(LENGTH_OFFSET);
+        minId = header.getLong(MIN_ID_OFFSET);
+        maxId = header.getLong(MAX_ID_OFFSET);
+        minTimestamp = header.getLong(MIN_TIMESTAMP_OFFSET);
+        maxTimestamp = header.getLong(MAX_TIMESTAMP_OFFSET);
+    }
+
+    /**
+     * Rebuild the index of a compressed segment, a block at a time
+     */
+    private void reindex() {
+        Window window = null;
+        int position = HEADER_SIZE;
+        while (position < committed) {
+            if (window == null || position >= window.end) {
+                window = window(position);
+            }
+            int local = position - window.start;
+            int length = window.buffer.getInt(local + LogRecord.LENGTH_OFFSET);
+            track(window.buffer.getLong(local + LogRecord.ID_OFFSET),
+                    window.buffer.getLong(local + LogRecord.TIMESTAMP_OFFSET), position + length);
+            position += length;
+        }
+    }
+
+    static String fileName(long baseId) {
+        return String.format("%020d%s", baseId, EXTENSION);
+    }
+
+    /**
+     * Rebuild the committed offset, bounds and index from the records
+     * Segments that were not closed cleanly also lose their torn tail
+     */
+    private void recover(boolean trusted) {
+        long started = System.nanoTime();
+        if (trusted) {
+            // Only the index was lost: the header length bounds the records
+            int length = buffer.getInt(LENGTH_OFFSET);
+            committed = scanValidEnd(length, length);
+            return;
+        }
+        committed = scanValidEnd(Math.max(buffer.getInt(SYNCED_OFFSET), HEADER_SIZE), buffer.capacity());
+        int discarded = zeroTail(committed);
+        System.out.println("Recovered log segment " + path.getFileName() + ": " + (committed - HEADER_SIZE)
+                + " bytes of records, " + discarded + " torn bytes discarded in "
+                + (System.nanoTime() - started) / 1_000_000 + " ms");
+    }
+
+    /**
+     * Find the end of the last intact record, collecting id and time bounds and
+     * index blocks on the way
+     * Records ending before the checkpoint were already forced to disk, so only
+     * later ones need their CRC checked
+     */
+    private int scanValidEnd(int checkpoint, int limit) {
+        int position = HEADER_SIZE;
+        while (position + LogRecord.HEADER_SIZE <= limit) {
+            int length = buffer.getInt(position + LogRecord.LENGTH_OFFSET);
+            if (length < LogRecord.HEADER_SIZE || length > limit - position) {
+                break;
+            }
+            if (position + length > checkpoint
+                    && buffer.getInt(position + LogRecord.CRC_OFFSET) != checksum(position, length)) {
+                break;
+            }
+            track(buffer.getLong(position + LogRecord.ID_OFFSET),
+                    buffer.getLong(position + LogRecord.TIMESTAMP_OFFSET), position + length);
+            position += length;
+        }
+        return position;
+    }
+
+    /**
+     * Zero whatever follows the valid records, reading first so untouched
+     * (sparse) pages are not written
+     * @return the number of non-zero bytes cleared
+     */
+    private int zeroTail(int from) {
+        int limit = buffer.capacity();
+        int dirtyStart = -1;
+        int dirtyEnd = -1;
+        int cleared = 0;
+        for (int position = from; position < limit; position++) {
+            // Step a long at a time once aligned
+            if ((position & 7) == 0 && position + 8 <= limit && buffer.getLong(position) == 0) {
+                position += 7;
+                continue;
+            }
+            if (buffer.get(position) != 0) {
+                buffer.put(position, (byte) 0);
+                cleared++;
+                if (dirtyStart < 0) {
+                    dirtyStart = position;
+                }
+                dirtyEnd = position + 1;
+            }
+        }
+        if (dirtyStart >= 0) {
+            buffer.force(dirtyStart, dirtyEnd - dirtyStart);
+        }
+        return cleared;
+    }
+
+    /**
+     * Append a record
+     * @return false if it does not fit in the space left
+     */
+    boolean append(long id, long timestamp, byte type, byte[] sender, byte[] recipient,
+                   ByteBuffer content, int contentOffset, int contentLength) {
+        int length = LogRecord.sizeOf(sender.length, recipient.length, contentLength);
+        int position = committed;
+        if (length > buffer.capacity() - position) {
+            return false;
+        }
+        buffer.putLong(position + LogRecord.ID_OFFSET, id);
+        buffer.putLong(position + LogRecord.TIMESTAMP_OFFSET, timestamp);
+        buffer.put(position + LogRecord.TYPE_OFFSET, type);
+        buffer.putShort(position + LogRecord.SENDER_LENGTH_OFFSET, (short) sender.length);
+        buffer.putShort(position + LogRecord.RECIPIENT_LENGTH_OFFSET, (short) recipient.length);
+        int body = position + LogRecord.HEADER_SIZE;
+        buffer.put(body, sender);
+        buffer.put(body + sender.length, recipient);
+        buffer.put(body + sender.length + recipient.length, content, contentOffset, contentLength);
+        buffer.putInt(position + LogRecord.CRC_OFFSET, checksum(position, length));
+        // Length goes last: until it is set the record reads as the end of the segment
+        buffer.putInt(position + LogRecord.LENGTH_OFFSET, length);
+        committed = position + length;
+        track(id, timestamp, position + length);
+        return true;
+    }
+
+    private int checksum(int position, int length) {
+        crcView.limit(position + length).position(position + LogRecord.CRC_OFFSET + 4);
+        crc.reset();
+        crc.update(crcView);
+        return (int) crc.getValue();
+    }
+
+    private void track(long id, long timestamp, int end) {
+        minId = Math.min(minId, id);
+        maxId = Math.max(maxId, id);
+        minTimestamp = Math.min(minTimestamp, timestamp);
+        maxTimestamp = Math.max(maxTimestamp, timestamp);
+        blockMinId = Math.min(blockMinId, id);
+        blockMaxId = Math.max(blockMaxId, id);
+        blockMinTimestamp = Math.min(blockMinTimestamp, timestamp);
+        blockMaxTimestamp = Math.max(blockMaxTimestamp, timestamp);
+        if (++blockCount == indexInterval) {
+            closeBlock(end);
+        }
+    }
+
+    private void closeBlock() {
+        closeBlock(committed);
+    }
+
+    /**
+     * Add the block being filled to the index, ending it at end
+     */
+    private void closeBlock(int end) {
+        if (blockCount == 0) {
+            return;
+        }
+        index.add(blockStart, end, blockMinId, blockMaxId, blockMinTimestamp, blockMaxTimestamp);
+        blockStart = end;
+        blockCount = 0;
+        blockMinId = Long.MAX_VALUE;
+        blockMaxId = Long.MIN_VALUE;
+        blockMinTimestamp = Long.MAX_VALUE;
+        blockMaxTimestamp = Long.MIN_VALUE;
+    }
+
+    private void persistIndex() {
+        try {
+            index.persist();
+            index.force();
+        } catch (IOException e) {
+            // The index is rebuilt from the records when it does not match on open
+            System.err.println("Error writing index for log segment " + path + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Force records appended since the last sync to disk
+     * Index entries are written too but not forced; they are only trusted once
+     * the segment is sealed or clean
+     */
+    void sync() {
+        int end = committed;
+        if (end > syncedTo) {
+            buffer.force(syncedTo, end - syncedTo);
+            syncedTo = end;
+            // Written only after the records are durable, so recovery can trust what precedes it
+            buffer.putInt(SYNCED_OFFSET, end);
+            buffer.force(0, HEADER_SIZE);
+            try {
+                index.persist();
+            } catch (IOException e) {
+                System.err.println("Error writing index for log segment " + path + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Stop appending and record the final length and bounds in the header
+     */
+    void seal() {
+        writeTrailer(FLAG_SEALED);
+        sealed = true;
+        closeIndex();
+    }
+
+    /**
+     * Record the length and bounds so the next open need not scan; appending clears it
+     */
+    void markClean() {
+        writeTrailer(FLAG_CLEAN);
+        closeIndex();
+    }
+
+    /**
+     * Clear the clean flag before the first append after opening
+     */
+    void markDirty() {
+        if (buffer.getShort(FLAGS_OFFSET) != 0) {
+            buffer.putShort(FLAGS_OFFSET, (short) 0);
+            buffer.force(0, HEADER_SIZE);
+        }
+    }
+
+    private void writeTrailer(short flag) {
+        sync();
+        // The index must cover every record before the header says it can be trusted
+        closeBlock();
+        persistIndex();
+        buffer.putInt(LENGTH_OFFSET, committed);
+        buffer.putLong(MIN_ID_OFFSET, minId);
+        buffer.putLong(MAX_ID_OFFSET, maxId);
+        buffer.putLong(MIN_TIMESTAMP_OFFSET, minTimestamp);
+        buffer.putLong(MAX_TIMESTAMP_OFFSET, maxTimestamp);
+        buffer.putShort(FLAGS_OFFSET, flag);
+        buffer.force(0, HEADER_SIZE);
+    }
+
+    private void closeIndex() {
+        try {
+            index.close();
+        } catch (IOException e) {
+            System.err.println("Error closing index for log segment " + path + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Offsets of the records that can have timestamps in [from, to), as
+     * {start, stop, tail, end}: only [start, stop) and [tail, end) need reading,
+     * and readers must still filter the neighbours sharing their index blocks
+     */
+    int[] rangeBetween(long from, long to) {
+        // Take the index view before committed so the tail covers what it does not
+        SparseIndex.View view = index.view();
+        int tail = view.indexedEnd();
+        int end = committed;
+        int start = view.startForTimestamp(from);
+        int stop = view.endForTimestamp(to);
+        return stop == tail ? new int[] {start, end, end, end} : new int[] {start, stop, tail, end};
+    }
+
+    /**
+     * Offsets of the records that can have ids >= fromId, in the form of rangeBetween
+     */
+    int[] rangeFromId(long fromId) {
+        SparseIndex.View view = index.view();
+        int end = committed;
+        return new int[] {view.startForId(fromId), end, end, end};
+    }
+
+    /**
+     * Readable part of the segment around position, independent of other readers
+     * Mapped segments return the whole file; compressed ones inflate the block
+     * holding position, which always contains whole records
+     */
+    Window window(int position) {
+        if (compressed == null) {
+            return new Window(buffer.duplicate(), 0, buffer.capacity());
+        }
+        int block = compressed.blockFor(position);
+        if (block < 0) {
+            throw new IllegalArgumentException("Offset " + position + " is past the end of " + path);
+        }
+        try {
+            ByteBuffer data = compressed.readBlock(block);
+            int start = (int) compressed.blockStart(block);
+            return new Window(data, start, start + data.limit());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Write a block-compressed copy of this sealed segment next to it
+     * The caller swaps the returned segment in for readers and then deletes this one
+     */
+    LogSegment compress() throws IOException {
+        if (!sealed || compressed != null) {
+            throw new IllegalStateException("Only sealed, uncompressed segments can be compressed: " + path);
+        }
+        ByteBuffer source = buffer.duplicate();
+        source.limit(committed);
+        Path target = path.resolveSibling(String.format("%020d%s", baseId, COMPRESSED_EXTENSION));
+        BlockCompressedFile.write(source, target, LogSegment::recordBlockEnd);
+        return openCompressed(target, indexInterval);
+    }
+
+    /**
+     * Cut compression blocks after whole records; the header shares the first block
+     */
+    private static int recordBlockEnd(ByteBuffer source, int start, int limit) {
+        int end = start == 0 ? HEADER_SIZE : start;
+        while (end < limit) {
+            int length = source.getInt(end + LogRecord.LENGTH_OFFSET);
+            if (end > start && end + length - start > BlockCompressedFile.BLOCK_SIZE) {
+                break;
+            }
+            end += length;
+        }
+        return end;
+    }
+
+    /**
+     * Delete the segment and its index; readers already holding it can finish
+     * with mapped segments, since the mapping outlives the file
+     */
+    void delete() throws IOException {
+        Files.deleteIfExists(path);
+        Files.deleteIfExists(SparseIndex.pathFor(path));
+    }
+
+    /**
+     * Bytes the segment and its index take on disk
+     */
+    long getDiskBytes() throws IOException {
+        Path indexPath = SparseIndex.pathFor(path);
+        return Files.size(path) + (Files.exists(indexPath) ? Files.size(indexPath) : 0);
+    }
+
+    boolean isCompressed() {
+        return compressed != null;
+    }
+
+    Path getPath() {
+        return path;
+    }
+
+    long getBaseId() {
+        return baseId;
+    }
+
+    long getCreatedAt() {
+        return createdAt;
+    }
+
+    boolean isEmpty() {
+        return committed == HEADER_SIZE;
+    }
+
+    boolean isSealed() {
+        return sealed;
+    }
+
+    int getCommitted() {
+        return committed;
+    }
+
+    /**
+     * Id and time bounds; only stable once the segment is sealed
+     */
+    long getMinId() {
+        return minId;
+    }
+
+    long getMaxId() {
+        return maxId;
+    }
+
+    long getMinTimestamp() {
+        return minTimestamp;
+    }
+
+    long getMaxTimestamp() {
+        return maxTimestamp;
+    }
+}
@@ -1,37 +1,177 @@
 package messaging;
 
+import main.java.com.securechat.common.Message;
+import main.java.com.securechat.common.MessageIdGenerator;
+import main.java.com.securechat.common.MessageType;
+
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * MODULE 5: Message Logging Module - Store chats in a file/database
  * Handles logging and persistence of chat messages
  * Team Member 5 should implement this class
- * 
+ *
  * Java Version: 17 LTS (Long Term Support)
  * Requires JDK 17 or higher
+ *
+ * Logging is asynchronous with group commit. Callers only copy the content and
+ * add an entry to a lock-free queue; a single writer thread formats entries,
+ * appends them in batches to a long-lived FileChannel for the day's file and
+ * fsyncs once per sync interval or sync byte threshold, whichever comes first.
+ * A crash can lose at most the entries since the last sync. When the queue holds
+ * maxPending entries new ones are dropped and counted, so a stalled disk never
+ * blocks message routing.
+ *
+ * Entries go to daily text files, or with a SegmentedLog to binary records in
+ * memory-mapped segments. History reads render both the same way and stream
+ * through a cursor, or page with continuation tokens, so a reader never holds
+ * more than the entries it asked for.
+ *
+ * With search enabled the writer also feeds every entry to a SearchIndex in
+ * <logDirectory>/search, so search() finds words, phrases and senders without
+ * scanning the log.
  */
-public class MessageLogger {
+public class MessageLogger implements AutoCloseable {
     
     private static final String LOG_DIRECTORY = "chat_history";
     private static final String LOG_FILE_EXTENSION = ".log";
+    private static final String COMPRESSED_FILE_EXTENSION = ".logz";
     private static final DateTimeFormatter FILE_DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd");
     private static final DateTimeFormatter MESSAGE_TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static final int MESSAGE_TIME_LENGTH = 19;
+    private static final String SEARCH_DIRECTORY = "search";
+    // Written after the final sync of a clean close, so the next start skips recovery
+    private static final String CLEAN_MARKER = "clean_shutdown";
+    private static final byte SEARCH_MODE_TEXT = 1;
+    private static final byte SEARCH_MODE_BINARY = 2;
+    private static final int SEARCH_SKIP_BYTES = 64 * 1024;
+    
+    private static final long DEFAULT_SYNC_INTERVAL_MILLIS = 1000;
+    private static final long DEFAULT_SYNC_BYTES = 1024 * 1024;
+    private static final int DEFAULT_MAX_PENDING = 65536;
+    private static final int BATCH_BYTES = 256 * 1024;
+    private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+    private static final byte[] GROUP_SEPARATOR = ": ".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] PRIVATE_SEPARATOR = " -> ".getBytes(StandardCharsets.UTF_8);
     
     private final Path logDirectory;
-    private boolean loggingEnabled;
+    private final SegmentedLog binaryLog;
+    private final SearchIndex searchIndex;
+    private final long syncIntervalNanos;
+    private final long syncBytes;
+    private final int maxPending;
+    private final ConcurrentLinkedQueue<Entry> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread writer;
+    private volatile boolean writerParked;
+    private volatile boolean loggingEnabled;
+    private volatile boolean closed;
+    private ScheduledExecutorService maintenance;
+    
+    // Owned by the writer thread
+    private final ByteBuffer batch = ByteBuffer.allocateDirect(BATCH_BYTES);
+    private final ZoneId zone = ZoneId.systemDefault();
+    private FileChannel channel;
+    private long fileOffset;
+    private long fileDay;
+    private long dayStart;
+    private long dayEnd;
+    private long unsyncedBytes;
+    private long lastSync;
+    private boolean writeFailed;
+    private long reportedDrops;
+    private long cachedSecond = Long.MIN_VALUE;
+    private byte[] cachedTimePrefix;
     
     public MessageLogger() {
-        this.logDirectory = Paths.get(LOG_DIRECTORY);
+        this(Paths.get(LOG_DIRECTORY), DEFAULT_SYNC_INTERVAL_MILLIS, DEFAULT_SYNC_BYTES, DEFAULT_MAX_PENDING);
+    }
+    
+    /**
+     * @param syncIntervalMillis longest time an entry waits for fsync
+     * @param syncBytes fsync early once this many bytes are unsynced
+     * @param maxPending entries the queue holds before new ones are dropped
+     */
+    public MessageLogger(Path logDirectory, long syncIntervalMillis, long syncBytes, int maxPending) {
+        this(logDirectory, null, syncIntervalMillis, syncBytes, maxPending, 0);
+    }
+    
+    /**
+     * @param searchFlushDocs messages the search index holds in memory before writing a segment, 0 for no index
+     */
+    public MessageLogger(Path logDirectory, long syncIntervalMillis, long syncBytes, int maxPending,
+                         int searchFlushDocs) {
+        this(logDirectory, null, syncIntervalMillis, syncBytes, maxPending, searchFlushDocs);
+    }
+    
+    /**
+     * Log to a binary segmented log instead of text files
+     * The logger owns the log and closes it in close()
+     */
+    public MessageLogger(SegmentedLog binaryLog, long syncIntervalMillis, long syncBytes, int maxPending) {
+        this(binaryLog.getDirectory(), binaryLog, syncIntervalMillis, syncBytes, maxPending, 0);
+    }
+    
+    public MessageLogger(SegmentedLog binaryLog, long syncIntervalMillis, long syncBytes, int maxPending,
+                         int searchFlushDocs) {
+        this(binaryLog.getDirectory(), binaryLog, syncIntervalMillis, syncBytes, maxPending, searchFlushDocs);
+    }
+    
+    private MessageLogger(Path logDirectory, SegmentedLog binaryLog, long syncIntervalMillis, long syncBytes,
+                          int maxPending, int searchFlushDocs) {
+        this.logDirectory = logDirectory;
+        this.binaryLog = binaryLog;
+        this.syncIntervalNanos = syncIntervalMillis * 1_000_000L;
+        this.syncBytes = syncBytes;
+        this.maxPending = maxPending;
         this.loggingEnabled = true;
         initializeLogDirectory();
+        if (binaryLog == null && loggingEnabled) {
+            recoverTextLog();
+        }
+        this.searchIndex = searchFlushDocs > 0 && loggingEnabled ? openSearchIndex(searchFlushDocs) : null;
+        this.writer = new Thread(this::runWriter, "message-logger");
+        this.writer.setDaemon(true);
+        if (loggingEnabled) {
+            writer.start();
+        }
     }
     
     /**
@@ -51,70 +191,1256 @@ public class MessageLogger {
     
     /**
      * Log a message to file
+     * Returns once the message is queued; it reaches the file on the writer thread
      * @param message Message to log
      */
     public void logMessage(String message) {
         if (!loggingEnabled) {
             return;
         }
-        
+        long id = MessageIdGenerator.getDefault().nextId();
+        enqueue(new Entry(id, MessageIdGenerator.timestampOf(id), MessageType.SERVER_MESSAGE, message,
+                null, null, null, null));
+    }
+    
+    /**
+     * Log a routed chat message, copying its content slice so the caller can reuse the buffer
+     * Written as "sender: content", or "sender -> recipient: content" for private messages
+     */
+    public void logMessage(long id, long timestamp, MessageType type, String sender, String recipient,
+                           ByteBuffer content, int offset, int length) {
+        if (!loggingEnabled) {
+            return;
+        }
+        byte[] bytes = new byte[length];
+        content.get(offset, bytes);
+        enqueue(new Entry(id, timestamp, type, null, sender,
+                type == MessageType.PRIVATE_MESSAGE ? recipient : null, bytes, null));
+    }
+    
+    private void enqueue(Entry entry) {
+        if (pending.incrementAndGet() > maxPending || closed) {
+            pending.decrementAndGet();
+            dropped.incrementAndGet();
+            return;
+        }
+        queue.offer(entry);
+        if (writerParked) {
+            LockSupport.unpark(writer);
+        }
+    }
+    
+    /**
+     * Block until everything logged so far is written and synced to disk
+     */
+    public void flush() {
+        onWriter(() -> {
+            sync();
+            return null;
+        });
+    }
+    
+    /**
+     * Number of messages dropped because the queue was full or the logger closed
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+    
+    /**
+     * Run an action on the writer thread after everything queued before it,
+     * or directly if the writer is not running
+     */
+    @SuppressWarnings("unchecked")
+    private <T> T onWriter(Supplier<T> action) {
+        if (closed || !writer.isAlive()) {
+            // After close() the writer drains and exits; wait for it so files are not shared
+            awaitWriter();
+            return action.get();
+        }
+        Entry entry = new Entry(0, 0, null, null, null, null, null, (Supplier<Object>) action);
+        pending.incrementAndGet();
+        queue.offer(entry);
+        LockSupport.unpark(writer);
+        if (closed) {
+            // close() ran since the check above and the writer may already have
+            // made its last pass over the queue; if it did not take the entry, run it here
+            awaitWriter();
+            if (queue.remove(entry)) {
+                pending.decrementAndGet();
+                return action.get();
+            }
+        }
+        return (T) entry.done.join();
+    }
+    
+    private void runWriter() {
+        lastSync = System.nanoTime();
+        while (true) {
+            Entry entry = queue.poll();
+            if (entry == null) {
+                writeBatch();
+                if (closed && queue.isEmpty()) {
+                    break;
+                }
+                if (unsyncedBytes > 0 && System.nanoTime() - lastSync >= syncIntervalNanos) {
+                    sync();
+                }
+                reportDrops();
+                writerParked = true;
+                if (queue.isEmpty() && !closed) {
+                    LockSupport.parkNanos(this, syncIntervalNanos);
+                }
+                writerParked = false;
+                continue;
+            }
+            pending.decrementAndGet();
+            if (entry.action != null) {
+                writeBatch();
+                try {
+                    entry.done.complete(entry.action.get());
+                } catch (RuntimeException e) {
+                    entry.done.completeExceptionally(e);
+                }
+                continue;
+            }
+            append(entry);
+            if (unsyncedBytes >= syncBytes) {
+                writeBatch();
+                sync();
+            }
+        }
+        sync();
+        closeChannel();
+        if (binaryLog == null && !writeFailed) {
+            markCleanShutdown();
+        }
+        if (searchIndex != null) {
+            try {
+                searchIndex.close();
+            } catch (IOException e) {
+                System.err.println("Failed to close search index: " + e.getMessage());
+            }
+        }
+        if (binaryLog != null) {
+            binaryLog.close();
+        }
+        completeLeftovers();
+    }
+    
+    /**
+     * Settle entries queued while the writer was exiting, so no onWriter() caller
+     * waits forever; actions run here against the closed logger, as they would
+     * for a caller arriving after close()
+     */
+    private void completeLeftovers() {
+        Entry entry;
+        while ((entry = queue.poll()) != null) {
+            pending.decrementAndGet();
+            if (entry.action == null) {
+                dropped.incrementAndGet();
+                continue;
+            }
+            try {
+                entry.done.complete(entry.action.get());
+            } catch (RuntimeException e) {
+                entry.done.completeExceptionally(e);
+            }
+        }
+    }
+    
+    /**
+     * Record that every text log was synced and closed
+     */
+    private void markCleanShutdown() {
         try {
-            // TODO: Full implementation by Team Member 5
-            String logFileName = getLogFileName();
-            Path logFile = logDirectory.resolve(logFileName);
-            
-            String logEntry = formatLogEntry(message);
-            
-            // Append to file
-            Files.writeString(logFile, logEntry + System.lineSeparator(), 
-                            StandardOpenOption.CREATE, StandardOpenOption.APPEND);
-            
-            // Message logged successfully
-            
+            Files.write(logDirectory.resolve(CLEAN_MARKER), new byte[0]);
+        } catch (IOException e) {
+            System.err.println("Failed to mark message log closed: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Cut a torn tail off the most recently written text log
+     * Skipped when the last run closed cleanly; the marker it left is removed
+     * first, durably, so a crash of this run is recovered on the next start.
+     * Only the file open at a crash can be torn, and only in what was written
+     * since its last sync, which is at most syncBytes plus one batch. That
+     * window is checked for zero fill running to the end of the file, which a
+     * filesystem leaves where data never reached the disk, and for a final line
+     * without its separator; both are cut off. Zero bytes followed by more data
+     * are message content and are kept.
+     */
+    private void recoverTextLog() {
+        try {
+            if (Files.deleteIfExists(logDirectory.resolve(CLEAN_MARKER))) {
+                try (FileChannel directory = FileChannel.open(logDirectory, StandardOpenOption.READ)) {
+                    directory.force(true);
+                } catch (IOException e) {
+                    // Not every platform can sync a directory; recover to be safe
+                    System.err.println("Failed to sync log directory, checking logs: " + e.getMessage());
+                    scanTextLog();
+                }
+                return;
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to read clean shutdown marker: " + e.getMessage());
+        }
+        scanTextLog();
+    }
+    
+    private void scanTextLog() {
+        long started = System.nanoTime();
+        Path newest = null;
+        FileTime newestTime = null;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(logDirectory, "chat_*" + LOG_FILE_EXTENSION)) {
+            for (Path file : files) {
+                FileTime modified = Files.getLastModifiedTime(file);
+                if (newestTime == null || modified.compareTo(newestTime) > 0) {
+                    newest = file;
+                    newestTime = modified;
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to list message logs: " + e.getMessage());
+            return;
+        }
+        if (newest == null) {
+            return;
+        }
+        try (FileChannel file = FileChannel.open(newest, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = file.size();
+            int window = (int) Math.min(size, Math.min(syncBytes + BATCH_BYTES, Integer.MAX_VALUE - 8));
+            ByteBuffer tail = ByteBuffer.allocate(window);
+            long windowStart = size - window;
+            while (tail.hasRemaining()) {
+                if (file.read(tail, windowStart + tail.position()) < 0) {
+                    break;
+                }
+            }
+            int dataEnd = tail.position();
+            while (dataEnd > 0 && tail.get(dataEnd - 1) == 0) {
+                dataEnd--;
+            }
+            int validEnd = dataEnd;
+            while (validEnd > 0 && tail.get(validEnd - 1) != '\n') {
+                validEnd--;
+            }
+            if (validEnd == window) {
+                return;
+            }
+            if (validEnd == 0 && windowStart > 0) {
+                System.err.println("Message log " + newest + " has a torn line longer than the sync window");
+                return;
+            }
+            file.truncate(windowStart + validEnd);
+            file.force(true);
+            System.out.println("Recovered message log " + newest.getFileName() + ": discarded "
+                    + (window - validEnd) + " torn bytes in " + (System.nanoTime() - started) / 1_000_000 + " ms");
+        } catch (IOException e) {
+            System.err.println("Failed to recover message log " + newest + ": " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Open the search index and add what was logged after its last segment
+     * @return null if the index cannot be opened; logging goes on without it
+     */
+    private SearchIndex openSearchIndex(int flushDocs) {
+        long started = System.nanoTime();
+        try {
+            SearchIndex index = SearchIndex.open(logDirectory.resolve(SEARCH_DIRECTORY),
+                    binaryLog != null ? SEARCH_MODE_BINARY : SEARCH_MODE_TEXT, flushDocs);
+            SearchIndex.Doc last = index.lastDoc();
+            int added = binaryLog != null ? catchUpBinary(index, last) : catchUpText(index, last);
+            if (added > 0) {
+                System.out.println("Indexed " + added + " logged messages for search in "
+                        + (System.nanoTime() - started) / 1_000_000 + " ms");
+            }
+            return index;
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Failed to open search index, search is disabled: " + e.getMessage());
+            return null;
+        }
+    }
+    
+    private int catchUpBinary(SearchIndex index, SearchIndex.Doc last) {
+        int added = 0;
+        try (LogCursor cursor = binaryLog.cursorBetween(Long.MIN_VALUE, Long.MAX_VALUE)) {
+            if (last != null) {
+                cursor.seek(last.fileKey, (int) last.offset);
+            }
+            while (cursor.next()) {
+                LogRecord record = cursor.record();
+                int offset = cursor.getPosition() - record.getLength();
+                if (last != null && cursor.getSegmentBaseId() == last.fileKey && offset == last.offset) {
+                    continue;
+                }
+                index.add(record.getId(), record.getTimestamp(), cursor.getSegmentBaseId(), offset,
+                        record.getSender(), record.getContentString());
+                added++;
+                if (index.isFull()) {
+                    index.flush();
+                }
+            }
+        }
+        return added;
+    }
+    
+    /**
+     * Re-index text history from the last indexed line; ids are not stored in
+     * text files and lines continuing a multi-line message are not indexed
+     */
+    private int catchUpText(SearchIndex index, SearchIndex.Doc last) throws IOException {
+        int added = 0;
+        for (LocalDate day : listDays()) {
+            boolean resume = last != null && day.toEpochDay() == last.fileKey;
+            if (last != null && day.toEpochDay() < last.fileKey) {
+                continue;
+            }
+            try (LogLineReader reader = openDay(day, resume ? last.offset : 0)) {
+                if (reader == null) {
+                    continue;
+                }
+                if (resume) {
+                    reader.readLine();
+                }
+                long offset = reader.getOffset();
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    long timestamp = lineTimestamp(line);
+                    if (timestamp != Long.MIN_VALUE) {
+                        String sender = lineSender(line);
+                        index.add(0, timestamp, day.toEpochDay(), offset, sender, lineContent(line, sender));
+                        added++;
+                        if (index.isFull()) {
+                            index.flush();
+                        }
+                    }
+                    offset = reader.getOffset();
+                }
+            }
+        }
+        return added;
+    }
+    
+    /**
+     * Time of a "[yyyy-MM-dd HH:mm:ss] ..." line, or Long.MIN_VALUE for a continuation line
+     */
+    private long lineTimestamp(String line) {
+        if (line.length() <= MESSAGE_TIME_LENGTH || line.charAt(0) != '['
+                || line.charAt(MESSAGE_TIME_LENGTH + 1) != ']') {
+            return Long.MIN_VALUE;
+        }
+        try {
+            return LocalDateTime.parse(line.substring(1, MESSAGE_TIME_LENGTH + 1), MESSAGE_TIME_FORMAT)
+                    .atZone(zone).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return Long.MIN_VALUE;
+        }
+    }
+    
+    /**
+     * Sender of a "sender: content" or "sender -> recipient: content" line, or null for server messages
+     */
+    private static String lineSender(String line) {
+        int start = MESSAGE_TIME_LENGTH + 3;
+        int colon = line.indexOf(": ", start);
+        if (colon < 0) {
+            return null;
+        }
+        int arrow = line.indexOf(" -> ", start);
+        int end = arrow >= 0 && arrow < colon ? arrow : colon;
+        // User names have no spaces; anything else is server text
+        return end > start && line.indexOf(' ', start) >= end ? line.substring(start, end) : null;
+    }
+    
+    private static String lineContent(String line, String sender) {
+        int start = MESSAGE_TIME_LENGTH + 3;
+        return sender == null ? line.substring(Math.min(start, line.length()))
+                : line.substring(line.indexOf(": ", start) + 2);
+    }
+    
+    /**
+     * Format one entry into the batch, switching files at midnight
+     */
+    private void append(Entry entry) {
+        if (binaryLog != null) {
+            appendRecord(entry);
+            return;
+        }
+        if (entry.timestamp < dayStart || entry.timestamp >= dayEnd || channel == null) {
+            openFileFor(entry.timestamp);
+            if (channel == null) {
+                return;
+            }
+        }
+        long lineOffset = fileOffset + batch.position();
+        put(timePrefix(entry.timestamp));
+        if (entry.text != null) {
+            put(entry.text.getBytes(StandardCharsets.UTF_8));
+        } else {
+            put(entry.sender.getBytes(StandardCharsets.UTF_8));
+            if (entry.recipient != null) {
+                put(PRIVATE_SEPARATOR);
+                put(entry.recipient.getBytes(StandardCharsets.UTF_8));
+            }
+            put(GROUP_SEPARATOR);
+            put(entry.content);
+        }
+        put(LINE_SEPARATOR);
+        index(entry, fileDay, lineOffset);
+    }
+    
+    /**
+     * Append an entry to the binary log; the mapped segment replaces the batch buffer
+     */
+    private void appendRecord(Entry entry) {
+        byte[] content = entry.text != null ? entry.text.getBytes(StandardCharsets.UTF_8) : entry.content;
+        try {
+            unsyncedBytes += binaryLog.append(entry.id, entry.timestamp, entry.type, entry.sender,
+                    entry.recipient, ByteBuffer.wrap(content), 0, content.length);
+            index(entry, binaryLog.getLastSegmentBaseId(), binaryLog.getLastRecordOffset());
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Failed to log message: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Add a written entry to the search index
+     * A full index is only written out once the log holds everything it refers to
+     */
+    private void index(Entry entry, long fileKey, long offset) {
+        if (searchIndex == null) {
+            return;
+        }
+        searchIndex.add(entry.id, entry.timestamp, fileKey, offset, entry.sender,
+                entry.text != null ? entry.text : new String(entry.content, StandardCharsets.UTF_8));
+        if (searchIndex.isFull()) {
+            writeBatch();
+            sync();
+            searchIndex.flush();
+        }
+    }
+    
+    private void put(byte[] bytes) {
+        if (batch.remaining() < bytes.length) {
+            writeBatch();
+            if (bytes.length > batch.capacity()) {
+                write(ByteBuffer.wrap(bytes));
+                return;
+            }
+        }
+        batch.put(bytes);
+    }
+    
+    /**
+     * Get "[yyyy-MM-dd HH:mm:ss] " for a timestamp, formatted once per second
+     */
+    private byte[] timePrefix(long timestamp) {
+        long second = Math.floorDiv(timestamp, 1000);
+        if (second != cachedSecond) {
+            LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochMilli(timestamp), zone);
+            cachedTimePrefix = ("[" + time.format(MESSAGE_TIME_FORMAT) + "] ").getBytes(StandardCharsets.UTF_8);
+            cachedSecond = second;
+        }
+        return cachedTimePrefix;
+    }
+    
+    /**
+     * Hand the batch to the OS; it becomes durable at the next sync()
+     */
+    private void writeBatch() {
+        if (batch.position() == 0) {
+            return;
+        }
+        batch.flip();
+        write(batch);
+        batch.clear();
+    }
+    
+    private void write(ByteBuffer buffer) {
+        int length = buffer.remaining();
+        try {
+            while (buffer.hasRemaining()) {
+                fileOffset += channel.write(buffer);
+            }
+            unsyncedBytes += length;
         } catch (IOException e) {
+            writeFailed = true;
             System.err.println("Failed to log message: " + e.getMessage());
         }
     }
     
+    private void sync() {
+        lastSync = System.nanoTime();
+        if (binaryLog != null && unsyncedBytes > 0) {
+            binaryLog.sync();
+            unsyncedBytes = 0;
+        }
+        if (channel == null || unsyncedBytes == 0) {
+            return;
+        }
+        try {
+            channel.force(false);
+        } catch (IOException e) {
+            writeFailed = true;
+            System.err.println("Failed to sync message log: " + e.getMessage());
+        }
+        unsyncedBytes = 0;
+    }
+    
+    private void openFileFor(long timestamp) {
+        writeBatch();
+        sync();
+        closeChannel();
+        LocalDate date = LocalDate.ofInstant(Instant.ofEpochMilli(timestamp), zone);
+        dayStart = date.atStartOfDay(zone).toInstant().toEpochMilli();
+        dayEnd = date.plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli();
+        try {
+            channel = FileChannel.open(logDirectory.resolve(getLogFileName(date)),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            fileOffset = channel.size();
+            fileDay = date.toEpochDay();
+        } catch (IOException e) {
+            System.err.println("Failed to open message log: " + e.getMessage());
+        }
+    }
+    
+    private void closeChannel() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("Failed to close message log: " + e.getMessage());
+        }
+        channel = null;
+        dayStart = 0;
+        dayEnd = 0;
+    }
+    
+    private void reportDrops() {
+        long total = dropped.get();
+        if (total != reportedDrops) {
+            System.err.println("Message log queue full, dropped " + (total - reportedDrops) + " messages");
+            reportedDrops = total;
+        }
+    }
+    
     /**
-     * Format a message for logging
+     * Get log file name for a date
      */
-    private String formatLogEntry(String message) {
-        LocalDateTime now = LocalDateTime.now();
-        return String.format("[%s] %s",
-            now.format(MESSAGE_TIME_FORMAT),
-            message
-        );
+    private String getLogFileName(LocalDate date) {
+        return "chat_" + date.format(FILE_DATE_FORMAT) + LOG_FILE_EXTENSION;
     }
     
     /**
-     * Get log file name based on current date
+     * Get the block-compressed log file name for a date
      */
-    private String getLogFileName() {
-        return "chat_" + LocalDateTime.now().format(FILE_DATE_FORMAT) + LOG_FILE_EXTENSION;
+    private String getCompressedFileName(LocalDate date) {
+        return "chat_" + date.format(FILE_DATE_FORMAT) + COMPRESSED_FILE_EXTENSION;
+    }
+    
+    /**
+     * Start the background job that compresses closed history and applies retention
+     * Binary logs compress sealed segments; text logs compress day files from
+     * before yesterday, which the writer no longer touches
+     * @param maxAgeMillis delete history older than this, 0 to keep it
+     * @param maxBytes delete the oldest history while the log takes more, 0 for no limit
+     * @param compress whether to compress closed files
+     * @param intervalMillis time between runs
+     */
+    public synchronized void startMaintenance(long maxAgeMillis, long maxBytes, boolean compress,
+                                              long intervalMillis) {
+        if (maintenance != null || closed) {
+            return;
+        }
+        maintenance = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "message-log-maintenance");
+            thread.setDaemon(true);
+            return thread;
+        });
+        maintenance.scheduleWithFixedDelay(() -> runMaintenance(maxAgeMillis, maxBytes, compress),
+                Math.min(intervalMillis, 60_000), intervalMillis, TimeUnit.MILLISECONDS);
+    }
+    
+    private void runMaintenance(long maxAgeMillis, long maxBytes, boolean compress) {
+        // Retention first, so nothing about to be deleted is compressed
+        try {
+            if (binaryLog != null) {
+                if (maxAgeMillis > 0 || maxBytes > 0) {
+                    int deleted = binaryLog.applyRetention(maxAgeMillis, maxBytes, System.currentTimeMillis());
+                    if (deleted > 0) {
+                        System.out.println("Deleted " + deleted + " expired message log segments");
+                        deleteSearchSegmentsBefore(binaryLog.getOldestTimestamp());
+                    }
+                }
+                if (compress) {
+                    long saved = binaryLog.compressSealed();
+                    if (saved != 0) {
+                        System.out.println("Compressed message log segments, saved " + saved + " bytes");
+                    }
+                }
+                return;
+            }
+            if (maxAgeMillis > 0 || maxBytes > 0) {
+                onWriter(() -> {
+                    deleteExpiredDays(maxAgeMillis, maxBytes);
+                    return null;
+                });
+                List<LocalDate> days = listDays();
+                if (!days.isEmpty()) {
+                    deleteSearchSegmentsBefore(days.get(0).atStartOfDay(zone).toInstant().toEpochMilli());
+                }
+            }
+            if (compress) {
+                LocalDate yesterday = LocalDate.now(zone).minusDays(1);
+                for (LocalDate day : listDays()) {
+                    if (day.isBefore(yesterday) && Files.exists(logDirectory.resolve(getLogFileName(day)))) {
+                        compressDay(day);
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Message log maintenance failed: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Drop search index segments that only refer to deleted history
+     */
+    private void deleteSearchSegmentsBefore(long oldestTimestamp) throws IOException {
+        if (searchIndex == null) {
+            return;
+        }
+        int deleted = searchIndex.deleteSegmentsBefore(oldestTimestamp);
+        if (deleted > 0) {
+            System.out.println("Deleted " + deleted + " search index segments for expired history");
+        }
+    }
+    
+    /**
+     * Days that have a log file, oldest first
+     */
+    private List<LocalDate> listDays() throws IOException {
+        TreeSet<LocalDate> days = new TreeSet<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(logDirectory, "chat_*")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(".tmp")) {
+                    // Left by an interrupted compression
+                    Files.deleteIfExists(file);
+                    continue;
+                }
+                int dot = name.indexOf('.');
+                try {
+                    days.add(LocalDate.parse(name.substring("chat_".length(), dot < 0 ? name.length() : dot),
+                            FILE_DATE_FORMAT));
+                } catch (DateTimeParseException e) {
+                    // Not one of ours
+                }
+            }
+        }
+        return new ArrayList<>(days);
+    }
+    
+    /**
+     * Write a block-compressed copy of a closed day file, then swap it in on the
+     * writer thread unless the file changed meanwhile
+     */
+    private void compressDay(LocalDate day) throws IOException {
+        Path logFile = logDirectory.resolve(getLogFileName(day));
+        Path compressedFile = logDirectory.resolve(getCompressedFileName(day));
+        long size = Files.size(logFile);
+        FileTime modified = Files.getLastModifiedTime(logFile);
+        if (size > Integer.MAX_VALUE) {
+            System.err.println("Message log " + logFile + " is too large to compress");
+            return;
+        }
+        try (FileChannel in = FileChannel.open(logFile, StandardOpenOption.READ)) {
+            BlockCompressedFile.write(in.map(FileChannel.MapMode.READ_ONLY, 0, size), compressedFile,
+                    MessageLogger::lineBlockEnd);
+        }
+        boolean swapped = onWriter(() -> {
+            try {
+                boolean open = channel != null && day.atStartOfDay(zone).toInstant().toEpochMilli() == dayStart;
+                if (open || Files.size(logFile) != size || !Files.getLastModifiedTime(logFile).equals(modified)) {
+                    Files.delete(compressedFile);
+                    return false;
+                }
+                Files.delete(logFile);
+                return true;
+            } catch (IOException e) {
+                System.err.println("Failed to replace " + logFile + " with its compressed copy: " + e.getMessage());
+                return false;
+            }
+        });
+        if (swapped) {
+            System.out.println("Compressed history for: " + day.format(FILE_DATE_FORMAT) + " (" + size + " -> "
+                    + Files.size(compressedFile) + " bytes)");
+        }
+    }
+    
+    /**
+     * Cut compression blocks after whole lines so each block can be read alone
+     */
+    private static int lineBlockEnd(ByteBuffer source, int start, int limit) {
+        int end = Math.min(start + BlockCompressedFile.BLOCK_SIZE, limit);
+        if (end == limit) {
+            return limit;
+        }
+        for (int i = end - 1; i > start; i--) {
+            if (source.get(i) == '\n') {
+                return i + 1;
+            }
+        }
+        // One line longer than a block
+        for (int i = end; i < limit; i++) {
+            if (source.get(i) == '\n') {
+                return i + 1;
+            }
+        }
+        return limit;
+    }
+    
+    /**
+     * Delete the oldest day files while they are past the age limit or the
+     * history is over the size limit; runs on the writer thread and never
+     * touches today's or the open file
+     */
+    private void deleteExpiredDays(long maxAgeMillis, long maxBytes) {
+        try {
+            List<LocalDate> days = listDays();
+            long total = 0;
+            for (LocalDate day : days) {
+                total += dayBytes(day);
+            }
+            long cutoff = System.currentTimeMillis() - maxAgeMillis;
+            LocalDate today = LocalDate.now(zone);
+            for (LocalDate day : days) {
+                long end = day.plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli();
+                boolean open = channel != null && day.atStartOfDay(zone).toInstant().toEpochMilli() == dayStart;
+                if (!day.isBefore(today) || open) {
+                    break;
+                }
+                boolean expired = maxAgeMillis > 0 && end <= cutoff;
+                if (!expired && (maxBytes <= 0 || total <= maxBytes)) {
+                    break;
+                }
+                total -= dayBytes(day);
+                Files.deleteIfExists(logDirectory.resolve(getLogFileName(day)));
+                Files.deleteIfExists(logDirectory.resolve(getCompressedFileName(day)));
+                System.out.println("Deleted expired history for: " + day.format(FILE_DATE_FORMAT));
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to apply history retention: " + e.getMessage());
+        }
+    }
+    
+    private long dayBytes(LocalDate day) throws IOException {
+        long bytes = 0;
+        for (Path file : new Path[] {logDirectory.resolve(getLogFileName(day)),
+                logDirectory.resolve(getCompressedFileName(day))}) {
+            if (Files.exists(file)) {
+                bytes += Files.size(file);
+            }
+        }
+        return bytes;
     }
     
     /**
      * Retrieve message history for a specific date
+     * Loads the whole day; use streamMessageHistory or getMessageHistoryPage for busy days
      * @param date Date to retrieve history for
      * @return List of log entries
      */
     public List<String> getMessageHistory(LocalDateTime date) {
-        List<String> history = new ArrayList<>();
+        LocalDateTime start = date.toLocalDate().atStartOfDay();
+        return getMessageHistory(start, start.plusDays(1));
+    }
+    
+    /**
+     * Retrieve messages logged in [from, to), e.g. between 14:00 and 14:05
+     */
+    public List<String> getMessageHistory(LocalDateTime from, LocalDateTime to) {
+        try (Stream<String> history = streamMessageHistory(from, to)) {
+            return history.collect(Collectors.toList());
+        }
+    }
+    
+    /**
+     * Stream messages logged in [from, to) without loading them all
+     * Entries are read through a cursor as the stream is consumed; close the
+     * stream (try-with-resources) to release it
+     */
+    public Stream<String> streamMessageHistory(LocalDateTime from, LocalDateTime to) {
+        flush();
+        HistoryCursor cursor = openCursor(from, to, null);
+        Spliterator<String> entries = new Spliterators.AbstractSpliterator<String>(Long.MAX_VALUE,
+                Spliterator.ORDERED | Spliterator.NONNULL) {
+            @Override
+            public boolean tryAdvance(Consumer<? super String> action) {
+                String entry = cursor.next();
+                if (entry == null) {
+                    return false;
+                }
+                action.accept(entry);
+                return true;
+            }
+        };
+        return StreamSupport.stream(entries, false).onClose(cursor::close);
+    }
+    
+    /**
+     * Read one page of the messages logged in [from, to)
+     * Each page reads only its own entries, so scrollback costs the same at any depth
+     * @param limit most entries to return
+     * @param continuationToken null for the first page, then the previous page's token
+     */
+    public HistoryPage getMessageHistoryPage(LocalDateTime from, LocalDateTime to, int limit,
+                                             String continuationToken) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("Page limit must be positive: " + limit);
+        }
+        flush();
+        List<String> entries = new ArrayList<>(Math.min(limit, 1024));
+        try (HistoryCursor cursor = openCursor(from, to, continuationToken)) {
+            while (true) {
+                String token = cursor.token();
+                String entry = cursor.next();
+                if (entry == null) {
+                    return new HistoryPage(entries, null);
+                }
+                if (entries.size() == limit) {
+                    return new HistoryPage(entries, token);
+                }
+                entries.add(entry);
+            }
+        }
+    }
+    
+    /**
+     * Retrieve up to limit messages with ids above afterId, in log order
+     * Only the binary log stores ids; text logs return an empty list
+     */
+    public List<String> getMessagesAfter(long afterId, int limit) {
+        List<String> messages = new ArrayList<>();
+        if (binaryLog == null || limit <= 0 || afterId == Long.MAX_VALUE) {
+            return messages;
+        }
+        flush();
+        binaryLog.forEach(afterId + 1, record -> {
+            messages.add(formatRecord(record));
+            return messages.size() < limit;
+        });
+        return messages;
+    }
+    
+    /**
+     * Retrieve the newest messages logged before a point that pass a filter, oldest first
+     * Reads backwards after a single flush, so recent scrollback only touches
+     * recent history: the binary log in growing time windows found through its
+     * index, text logs one day file at a time, each read once
+     * @param beforeTimestamp only messages logged before this time (epoch millis)
+     * @param beforeId only messages with lower ids; text logs do not store ids and use the time alone
+     * @param maxLookbackMillis how far before beforeTimestamp to look
+     */
+    public List<Message> getMessagesBefore(long beforeTimestamp, long beforeId, int limit, long maxLookbackMillis,
+                                           Predicate<Message> filter) {
+        ArrayDeque<Message> newest = new ArrayDeque<>();
+        if (limit <= 0) {
+            return new ArrayList<>();
+        }
+        flush();
+        long earliest = beforeTimestamp - maxLookbackMillis;
+        long to = beforeTimestamp;
+        long window = 60_000;
+        while (to > earliest && newest.size() < limit) {
+            long from = Math.max(earliest, binaryLog != null ? to - window : startOfDay(to - 1));
+            int wanted = limit - newest.size();
+            ArrayDeque<Message> found = new ArrayDeque<>();
+            forEachMessageBetween(from, to, message -> {
+                if (message.getId() < beforeId && filter.test(message)) {
+                    found.addLast(message);
+                    if (found.size() > wanted) {
+                        found.pollFirst();
+                    }
+                }
+            });
+            while (!found.isEmpty()) {
+                newest.addFirst(found.pollLast());
+            }
+            to = from;
+            window *= 4;
+        }
+        return new ArrayList<>(newest);
+    }
+    
+    private long startOfDay(long timestamp) {
+        return LocalDate.ofInstant(Instant.ofEpochMilli(timestamp), zone).atStartOfDay(zone).toInstant().toEpochMilli();
+    }
+    
+    /**
+     * Visit the messages logged in [from, to) in log order, without flushing
+     * Text entries get their time from the line and an id of 0
+     */
+    private void forEachMessageBetween(long from, long to, Consumer<Message> visitor) {
+        if (binaryLog != null) {
+            binaryLog.forEachBetween(from, to, record -> {
+                Message message = new Message(record.getSender(), record.getSender(), record.getContentString(),
+                        record.getType());
+                message.setId(record.getId());
+                message.setRecipientId(record.getRecipient());
+                visitor.accept(message);
+                return true;
+            });
+            return;
+        }
+        Message pending = null;
+        try (HistoryCursor cursor = openCursor(LocalDateTime.ofInstant(Instant.ofEpochMilli(from), zone),
+                LocalDateTime.ofInstant(Instant.ofEpochMilli(to), zone), null)) {
+            String line;
+            while ((line = cursor.next()) != null) {
+                long timestamp = lineTimestamp(line);
+                if (timestamp == Long.MIN_VALUE) {
+                    // Continues a multi-line message
+                    if (pending != null) {
+                        pending.setContent(pending.getContent() + System.lineSeparator() + line);
+                    }
+                    continue;
+                }
+                if (pending != null) {
+                    visitor.accept(pending);
+                }
+                pending = parseLine(line, timestamp);
+            }
+        }
+        if (pending != null) {
+            visitor.accept(pending);
+        }
+    }
+    
+    /**
+     * Turn a text log line back into a message
+     */
+    private Message parseLine(String line, long timestamp) {
+        String sender = lineSender(line);
+        String recipient = null;
+        if (sender != null) {
+            int arrow = MESSAGE_TIME_LENGTH + 3 + sender.length();
+            if (line.startsWith(" -> ", arrow)) {
+                recipient = line.substring(arrow + 4, line.indexOf(": ", arrow));
+            }
+        }
+        MessageType type = sender == null ? MessageType.SERVER_MESSAGE
+                : recipient == null ? MessageType.GROUP_MESSAGE : MessageType.PRIVATE_MESSAGE;
+        Message message = new Message(sender, sender, lineContent(line, sender), type);
+        message.setId(0);
+        message.setRecipientId(recipient);
+        message.setTimestamp(LocalDateTime.ofInstant(Instant.ofEpochMilli(timestamp), zone));
+        return message;
+    }
+    
+    /**
+     * Search history without scanning it
+     * Every word of the query must appear in a match and "quoted phrases" must
+     * appear in order; words are letters and digits, matched case-insensitively
+     * @param query words and quoted phrases, or null to match on sender and time only
+     * @param sender only messages from this user, or null
+     * @param from start of the time range, or null for no lower bound
+     * @param to end of the time range (exclusive), or null for no upper bound
+     * @param limit most entries to return
+     * @return the oldest matching entries, rendered like history entries; empty if search is disabled
+     */
+    public List<String> search(String query, String sender, LocalDateTime from, LocalDateTime to, int limit) {
+        List<String> results = new ArrayList<>();
+        if (searchIndex == null || limit <= 0) {
+            return results;
+        }
+        SearchIndex.Query parsed = SearchIndex.parse(query, sender,
+                from == null ? Long.MIN_VALUE : from.atZone(zone).toInstant().toEpochMilli(),
+                to == null ? Long.MAX_VALUE : to.atZone(zone).toInstant().toEpochMilli());
+        SearchIndex.Snapshot snapshot = onWriter(() -> searchIndex.snapshot(parsed));
+        try (SearchResultReader reader = new SearchResultReader(parsed)) {
+            searchIndex.forEachMatch(snapshot, parsed, doc -> {
+                String entry = reader.read(doc);
+                if (entry != null) {
+                    results.add(entry);
+                }
+                return results.size() < limit;
+            });
+        } catch (IOException | UncheckedIOException e) {
+            System.err.println("Failed to search message history: " + e.getMessage());
+        }
+        return results;
+    }
+    
+    /**
+     * Reads and checks the entries search hits point at
+     * Hits come in log order, so text lines of the same day are read forward
+     * through one reader instead of reopening the file for each
+     */
+    private final class SearchResultReader implements AutoCloseable {
+        
+        private final SearchIndex.Query query;
+        private LogLineReader reader;
+        private long day = Long.MIN_VALUE;
+        
+        SearchResultReader(SearchIndex.Query query) {
+            this.query = query;
+        }
+        
+        /**
+         * @return the rendered entry, or null if it is gone or fails a phrase
+         */
+        String read(SearchIndex.Doc doc) {
+            try {
+                return binaryLog != null ? readRecord(doc) : readLine(doc);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        
+        private String readRecord(SearchIndex.Doc doc) {
+            String[] entry = new String[1];
+            binaryLog.readAt(doc.fileKey, (int) doc.offset, record -> {
+                if (record.getId() == doc.id && SearchIndex.matchesPhrases(record.getContentString(), query)) {
+                    entry[0] = formatRecord(record);
+                }
+            });
+            return entry[0];
+        }
+        
+        private String readLine(SearchIndex.Doc doc) throws IOException {
+            if (reader == null || doc.fileKey != day || doc.offset < reader.getOffset()
+                    || doc.offset - reader.getOffset() > SEARCH_SKIP_BYTES) {
+                close();
+                reader = openDay(LocalDate.ofEpochDay(doc.fileKey), doc.offset);
+                day = doc.fileKey;
+                if (reader == null) {
+                    return null;
+                }
+            }
+            while (reader.getOffset() < doc.offset) {
+                if (reader.readLine() == null) {
+                    return null;
+                }
+            }
+            String line = reader.getOffset() == doc.offset ? reader.readLine() : null;
+            // A cleared and rewritten day can put another line at the same offset
+            String time = LocalDateTime.ofInstant(Instant.ofEpochMilli(doc.timestamp), zone).format(MESSAGE_TIME_FORMAT);
+            if (line == null || !line.startsWith(time, 1)) {
+                return null;
+            }
+            return SearchIndex.matchesPhrases(lineContent(line, lineSender(line)), query) ? line : null;
+        }
         
+        @Override
+        public void close() throws IOException {
+            if (reader != null) {
+                reader.close();
+                reader = null;
+            }
+        }
+    }
+    
+    /**
+     * Open a history cursor, resuming after a continuation token if one is given
+     * Tokens are "b<segment>.<offset>" for binary logs and "t<yyyy-MM-dd>.<offset>" for text
+     */
+    private HistoryCursor openCursor(LocalDateTime from, LocalDateTime to, String token) {
+        String position = null;
+        if (token != null) {
+            if (token.isEmpty() || token.charAt(0) != (binaryLog != null ? 'b' : 't') || token.indexOf('.') < 0) {
+                throw new IllegalArgumentException("Invalid continuation token: " + token);
+            }
+            position = token.substring(1);
+        }
         try {
-            String fileName = "chat_" + date.format(FILE_DATE_FORMAT) + LOG_FILE_EXTENSION;
-            Path logFile = logDirectory.resolve(fileName);
-            
-            if (Files.exists(logFile)) {
-                history = Files.readAllLines(logFile);
+            int dot = position == null ? -1 : position.lastIndexOf('.');
+            if (binaryLog != null) {
+                LogCursor cursor = binaryLog.cursorBetween(from.atZone(zone).toInstant().toEpochMilli(),
+                        to.atZone(zone).toInstant().toEpochMilli());
+                if (position != null) {
+                    cursor.seek(Long.parseLong(position.substring(0, dot)),
+                            Integer.parseInt(position.substring(dot + 1)));
+                }
+                return new BinaryHistoryCursor(cursor);
             }
-            
-        } catch (IOException e) {
-            System.err.println("Failed to read message history: " + e.getMessage());
+            LocalDate day = from.toLocalDate();
+            long offset = 0;
+            if (position != null) {
+                LocalDate tokenDay = LocalDate.parse(position.substring(0, dot), FILE_DATE_FORMAT);
+                if (tokenDay.isBefore(day) || tokenDay.isAfter(to.toLocalDate())) {
+                    throw new IllegalArgumentException("Continuation token outside the requested range: " + token);
+                }
+                day = tokenDay;
+                offset = Long.parseLong(position.substring(dot + 1));
+            }
+            return new TextHistoryCursor(from, to, day, offset);
+        } catch (NumberFormatException | DateTimeParseException e) {
+            throw new IllegalArgumentException("Invalid continuation token: " + token);
+        }
+    }
+    
+    /**
+     * Reads rendered history entries one at a time
+     */
+    private interface HistoryCursor extends AutoCloseable {
+        
+        /**
+         * @return the next entry, or null when there are no more
+         */
+        String next();
+        
+        /**
+         * Token that resumes just before the entry the next call returns
+         */
+        String token();
+        
+        @Override
+        void close();
+    }
+    
+    private final class BinaryHistoryCursor implements HistoryCursor {
+        
+        private final LogCursor cursor;
+        
+        BinaryHistoryCursor(LogCursor cursor) {
+            this.cursor = cursor;
+        }
+        
+        @Override
+        public String next() {
+            return cursor.next() ? formatRecord(cursor.record()) : null;
         }
         
-        return history;
+        @Override
+        public String token() {
+            return "b" + cursor.getSegmentBaseId() + "." + cursor.getPosition();
+        }
+        
+        @Override
+        public void close() {
+            cursor.close();
+        }
+    }
+    
+    /**
+     * Walks the daily files of a range line by line, keeping lines whose
+     * "[yyyy-MM-dd HH:mm:ss]" prefix falls in the range; the prefix sorts as text
+     */
+    private final class TextHistoryCursor implements HistoryCursor {
+        
+        private final String fromPrefix;
+        private final String toPrefix;
+        private final LocalDate lastDay;
+        private LocalDate day;
+        private long offset;
+        private LogLineReader reader;
+        // A resumed page continues after an entry that was in range
+        private boolean inRange;
+        
+        TextHistoryCursor(LocalDateTime from, LocalDateTime to, LocalDate day, long offset) {
+            this.fromPrefix = from.format(MESSAGE_TIME_FORMAT);
+            this.toPrefix = to.format(MESSAGE_TIME_FORMAT);
+            // Times are kept to the second, so nothing in range is logged on a day starting at to
+            this.lastDay = to.minusSeconds(1).toLocalDate();
+            this.day = day;
+            this.offset = offset;
+            this.inRange = offset > 0;
+        }
+        
+        @Override
+        public String next() {
+            try {
+                while (!day.isAfter(lastDay)) {
+                    if (reader == null) {
+                        reader = openDay(day, offset);
+                        if (reader == null) {
+                            nextDay();
+                            continue;
+                        }
+                    }
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        // Lines without a time prefix continue the previous message
+                        if (line.length() > MESSAGE_TIME_LENGTH && line.charAt(0) == '['
+                                && line.charAt(MESSAGE_TIME_LENGTH + 1) == ']') {
+                            String time = line.substring(1, MESSAGE_TIME_LENGTH + 1);
+                            inRange = time.compareTo(fromPrefix) >= 0 && time.compareTo(toPrefix) < 0;
+                        }
+                        if (inRange) {
+                            return line;
+                        }
+                    }
+                    reader.close();
+                    reader = null;
+                    nextDay();
+                }
+            } catch (IOException e) {
+                System.err.println("Failed to read message history: " + e.getMessage());
+                close();
+                day = lastDay.plusDays(1);
+            }
+            return null;
+        }
+        
+        private void nextDay() {
+            day = day.plusDays(1);
+            offset = 0;
+            inRange = false;
+        }
+        
+        @Override
+        public String token() {
+            return "t" + day.format(FILE_DATE_FORMAT) + "." + (reader == null ? offset : reader.getOffset());
+        }
+        
+        @Override
+        public void close() {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    System.err.println("Failed to close message history: " + e.getMessage());
+                }
+                reader = null;
+            }
+        }
+    }
+    
+    /**
+     * Open a day's history at an offset, from the plain or the compressed file
+     * @return null if the day has no history
+     */
+    private LogLineReader openDay(LocalDate day, long offset) throws IOException {
+        Path logFile = logDirectory.resolve(getLogFileName(day));
+        if (Files.exists(logFile)) {
+            return new LogLineReader(logFile, offset);
+        }
+        Path compressedFile = logDirectory.resolve(getCompressedFileName(day));
+        if (Files.exists(compressedFile)) {
+            return new LogLineReader(BlockCompressedFile.open(compressedFile), offset);
+        }
+        return null;
+    }
+    
+    private String formatRecord(LogRecord record) {
+        LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochMilli(record.getTimestamp()), zone);
+        StringBuilder line = new StringBuilder().append('[').append(time.format(MESSAGE_TIME_FORMAT)).append("] ");
+        String sender = record.getSender();
+        if (sender != null) {
+            line.append(sender);
+            String recipient = record.getRecipient();
+            if (recipient != null) {
+                line.append(" -> ").append(recipient);
+            }
+            line.append(": ");
+        }
+        return line.append(record.getContentString()).toString();
     }
     
     /**
@@ -126,36 +1452,63 @@ public class MessageLogger {
     
     /**
      * Clear message history for a specific date
+     * Runs on the writer thread so the file is not deleted while it is open for appending
      */
     public boolean clearHistory(LocalDateTime date) {
-        try {
-            String fileName = "chat_" + date.format(FILE_DATE_FORMAT) + LOG_FILE_EXTENSION;
-            Path logFile = logDirectory.resolve(fileName);
-            
-            if (Files.exists(logFile)) {
-                Files.delete(logFile);
-                System.out.println("Cleared history for: " + date.format(FILE_DATE_FORMAT));
-                return true;
-            }
-        } catch (IOException e) {
-            System.err.println("Failed to clear history: " + e.getMessage());
+        if (binaryLog != null) {
+            System.err.println("Clearing one day is not supported by the binary message log");
+            return false;
         }
-        return false;
+        return onWriter(() -> {
+            LocalDate day = date.toLocalDate();
+            if (channel != null && day.atStartOfDay(zone).toInstant().toEpochMilli() == dayStart) {
+                sync();
+                closeChannel();
+            }
+            try {
+                Path logFile = logDirectory.resolve(getLogFileName(day));
+                Path compressedFile = logDirectory.resolve(getCompressedFileName(day));
+                
+                if (Files.deleteIfExists(logFile) | Files.deleteIfExists(compressedFile)) {
+                    System.out.println("Cleared history for: " + date.format(FILE_DATE_FORMAT));
+                    return true;
+                }
+            } catch (IOException e) {
+                System.err.println("Failed to clear history: " + e.getMessage());
+            }
+            return false;
+        });
     }
     
     /**
      * Export message history to a specified file
      */
     public boolean exportHistory(LocalDateTime date, Path exportPath) {
+        flush();
         try {
-            String fileName = "chat_" + date.format(FILE_DATE_FORMAT) + LOG_FILE_EXTENSION;
-            Path logFile = logDirectory.resolve(fileName);
+            Path logFile = logDirectory.resolve(getLogFileName(date.toLocalDate()));
             
-            if (Files.exists(logFile)) {
+            if (binaryLog == null && Files.exists(logFile)) {
                 Files.copy(logFile, exportPath);
                 System.out.println("Exported history to: " + exportPath);
                 return true;
             }
+            // Binary and compressed history is rendered entry by entry
+            LocalDateTime start = date.toLocalDate().atStartOfDay();
+            try (Stream<String> history = streamMessageHistory(start, start.plusDays(1))) {
+                Iterator<String> lines = history.iterator();
+                if (!lines.hasNext()) {
+                    return false;
+                }
+                try (BufferedWriter out = Files.newBufferedWriter(exportPath, StandardOpenOption.CREATE_NEW)) {
+                    while (lines.hasNext()) {
+                        out.write(lines.next());
+                        out.newLine();
+                    }
+                }
+            }
+            System.out.println("Exported history to: " + exportPath);
+            return true;
         } catch (IOException e) {
             System.err.println("Failed to export history: " + e.getMessage());
         }
@@ -176,4 +1529,67 @@ public class MessageLogger {
     public boolean isLoggingEnabled() {
         return loggingEnabled;
     }
+    
+    /**
+     * Write and sync everything queued, then stop the writer thread
+     */
+    @Override
+    public void close() {
+        stopMaintenance();
+        closed = true;
+        LockSupport.unpark(writer);
+        awaitWriter();
+    }
+    
+    private synchronized void stopMaintenance() {
+        if (maintenance == null) {
+            return;
+        }
+        // Let a running compression finish so no half-swapped files are left
+        maintenance.shutdown();
+        try {
+            if (!maintenance.awaitTermination(30, TimeUnit.SECONDS)) {
+                maintenance.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            maintenance.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    private void awaitWriter() {
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * A queued log line, or an action to run on the writer thread
+     */
+    private static final class Entry {
+        final long id;
+        final long timestamp;
+        final MessageType type;
+        final String text;
+        final String sender;
+        final String recipient;
+        final byte[] content;
+        final Supplier<Object> action;
+        final CompletableFuture<Object> done;
+        
+        Entry(long id, long timestamp, MessageType type, String text, String sender, String recipient,
+              byte[] content, Supplier<Object> action) {
+            this.id = id;
+            this.timestamp = timestamp;
+            this.type = type;
+            this.text = text;
+            this.sender = sender;
+            this.recipient = recipient;
+            this.content = content;
+            this.action = action;
+            this.done = action == null ? null : new CompletableFuture<>();
+        }
+    }
 }
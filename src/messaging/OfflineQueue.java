@@ -0,0 +1,606 @@
+package messaging;
+
+import main.java.com.securechat.common.Message;
+import main.java.com.securechat.common.MessageType;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32C;
+
+/**
+ * Persistent store-and-forward queue of private messages for offline users
+ *
+ * Messages and acknowledgements are appended to shared segment files
+ * (<number>.oq, 8-byte header "SCOQ" + version) as CRC-32C checked records:
+ *   int   length          whole record including the header
+ *   int   crc             CRC-32C of everything after this field
+ *   byte  kind            MESSAGE or ACK
+ *   byte  reserved
+ *   short recipientLength
+ *   short senderLength
+ *   short reserved
+ *   long  sequence        queue order; for an ACK, the last message delivered
+ *   long  id, timestamp   of the message (0 for an ACK)
+ *   bytes recipient, sender (UTF-8), content
+ * An ACK means everything queued for its recipient up to its sequence was
+ * delivered. Memory holds only the location of each pending message, so a
+ * batch read touches just its own records.
+ *
+ * Segments are deleted oldest first once nothing in them is pending, which
+ * keeps every ACK on disk as long as a message it covers is. When the oldest
+ * segment is mostly delivered its pending messages are copied forward with
+ * their sequence, so one long-offline user cannot pin every later segment.
+ * Opening replays the segments; a torn tail in the newest one is cut off.
+ *
+ * Appends reach the OS immediately and the disk at the next sync().
+ * All methods are thread-safe. Metadata and appends share one monitor, held
+ * only briefly: hasPending() reads a concurrent map without it, and the slow
+ * parts (the fsyncs in sync() and compaction, record reads in peek() and
+ * copy-forward) run outside it, so routing a private message never waits on
+ * the disk while a returning user's queue drains.
+ */
+public class OfflineQueue implements Closeable {
+
+    static final int HEADER_SIZE = 40;
+
+    private static final String EXTENSION = ".oq";
+    private static final int MAGIC = 0x53434F51; // "SCOQ"
+    private static final short VERSION = 1;
+    private static final int FILE_HEADER_SIZE = 8;
+    private static final byte MESSAGE = 0;
+    private static final byte ACK = 1;
+
+    private static final int KIND_OFFSET = 8;
+    private static final int RECIPIENT_LENGTH_OFFSET = 10;
+    private static final int SENDER_LENGTH_OFFSET = 12;
+    private static final int SEQUENCE_OFFSET = 16;
+    private static final int ID_OFFSET = 24;
+    private static final int TIMESTAMP_OFFSET = 32;
+
+    private static final class Segment {
+        final long number;
+        final Path path;
+        final FileChannel channel;
+        long size;
+        int live;
+        long liveBytes;
+        boolean dirty;
+
+        Segment(long number, Path path, FileChannel channel, long size) {
+            this.number = number;
+            this.path = path;
+            this.channel = channel;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Where a pending message is stored
+     */
+    private static final class Location {
+        final long sequence;
+        final long id;
+        final int length;
+        Segment segment;
+        long offset;
+        // Set under the monitor when an ACK covers it
+        boolean acknowledged;
+
+        Location(long sequence, long id, int length, Segment segment, long offset) {
+            this.sequence = sequence;
+            this.id = id;
+            this.length = length;
+            this.segment = segment;
+            this.offset = offset;
+        }
+    }
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final int maxPerRecipient;
+    private final int maxRecipients;
+    private final CRC32C crc = new CRC32C();
+    private final List<Segment> segments = new ArrayList<>();
+    // Changed under the monitor; the map itself may be read without it
+    private final ConcurrentHashMap<String, ArrayDeque<Location>> mailboxes = new ConcurrentHashMap<>();
+    // Held by the one thread compacting; never while waiting for the monitor's holders
+    private final Object compaction = new Object();
+    private Segment active;
+    private long nextSequence;
+    private boolean closed;
+
+    private OfflineQueue(Path directory, int segmentBytes, int maxPerRecipient, int maxRecipients) {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.maxPerRecipient = maxPerRecipient;
+        this.maxRecipients = maxRecipients;
+    }
+
+    /**
+     * Open the queue in a directory, replaying what was pending before
+     * @param segmentBytes roll to a new segment file once one reaches this size
+     * @param maxPerRecipient pending messages a recipient can have before new ones are refused
+     * @param maxRecipients recipients with pending messages before new recipients are refused
+     */
+    public static OfflineQueue open(Path directory, int segmentBytes, int maxPerRecipient,
+                                    int maxRecipients) throws IOException {
+        if (segmentBytes < FILE_HEADER_SIZE + HEADER_SIZE) {
+            throw new IllegalArgumentException("Segment size too small: " + segmentBytes);
+        }
+        Files.createDirectories(directory);
+        OfflineQueue queue = new OfflineQueue(directory, segmentBytes, maxPerRecipient, maxRecipients);
+        TreeMap<Long, Path> files = new TreeMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + EXTENSION)) {
+            for (Path file : stream) {
+                String name = file.getFileName().toString();
+                try {
+                    files.put(Long.parseLong(name.substring(0, name.length() - EXTENSION.length())), file);
+                } catch (NumberFormatException e) {
+                    // Not one of ours
+                }
+            }
+        }
+        Map<String, TreeMap<Long, Location>> messages = new HashMap<>();
+        Map<String, Long> acknowledged = new HashMap<>();
+        for (Map.Entry<Long, Path> file : files.entrySet()) {
+            queue.segments.add(queue.replay(file.getKey(), file.getValue(), file.getKey().equals(files.lastKey()),
+                    messages, acknowledged));
+        }
+        for (Map.Entry<String, TreeMap<Long, Location>> entry : messages.entrySet()) {
+            long acked = acknowledged.getOrDefault(entry.getKey(), -1L);
+            ArrayDeque<Location> pending = new ArrayDeque<>();
+            for (Location location : entry.getValue().tailMap(acked, false).values()) {
+                pending.addLast(location);
+                location.segment.live++;
+                location.segment.liveBytes += location.length;
+            }
+            if (!pending.isEmpty()) {
+                queue.mailboxes.put(entry.getKey(), pending);
+            }
+        }
+        if (!queue.segments.isEmpty()) {
+            queue.active = queue.segments.get(queue.segments.size() - 1);
+        }
+        queue.compact();
+        return queue;
+    }
+
+    /**
+     * Read every intact record of a segment into the replay maps
+     */
+    private Segment replay(long number, Path path, boolean newest, Map<String, TreeMap<Long, Location>> messages,
+                           Map<String, Long> acknowledged) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long fileSize = channel.size();
+        if (fileSize > Integer.MAX_VALUE) {
+            channel.close();
+            throw new IOException("Offline queue segment too large: " + path);
+        }
+        ByteBuffer data = ByteBuffer.allocate((int) fileSize);
+        while (data.hasRemaining() && channel.read(data, data.position()) >= 0) {
+            // Read the whole segment; they are bounded by segmentBytes
+        }
+        data.flip();
+        if (data.remaining() < FILE_HEADER_SIZE) {
+            // Created but its header never reached the disk
+            writeFileHeader(channel);
+            return new Segment(number, path, channel, FILE_HEADER_SIZE);
+        }
+        if (data.getInt(0) != MAGIC || data.getShort(4) != VERSION) {
+            channel.close();
+            throw new IOException("Not an offline queue segment: " + path);
+        }
+        Segment segment = new Segment(number, path, channel, fileSize);
+        int position = FILE_HEADER_SIZE;
+        while (position + HEADER_SIZE <= data.limit()) {
+            int length = data.getInt(position);
+            if (length < HEADER_SIZE || length > data.limit() - position || checksum(data, position, length)
+                    != data.getInt(position + 4)) {
+                break;
+            }
+            String recipient = utf8(data, position + HEADER_SIZE, data.getShort(position + RECIPIENT_LENGTH_OFFSET) & 0xFFFF);
+            long sequence = data.getLong(position + SEQUENCE_OFFSET);
+            if (data.get(position + KIND_OFFSET) == ACK) {
+                acknowledged.merge(recipient, sequence, Math::max);
+            } else {
+                // A later copy of the same message replaces the earlier one
+                messages.computeIfAbsent(recipient, key -> new TreeMap<>()).put(sequence,
+                        new Location(sequence, data.getLong(position + ID_OFFSET), length, segment, position));
+                nextSequence = Math.max(nextSequence, sequence + 1);
+            }
+            position += length;
+        }
+        if (position < data.limit()) {
+            if (newest) {
+                channel.truncate(position);
+                channel.force(true);
+                System.out.println("Recovered offline queue segment " + path.getFileName() + ": discarded "
+                        + (data.limit() - position) + " torn bytes");
+            } else {
+                System.err.println("Offline queue segment " + path.getFileName() + " is damaged after offset "
+                        + position + "; later messages in it are lost");
+            }
+            segment.size = position;
+        }
+        return segment;
+    }
+
+    /**
+     * Queue a message for a recipient
+     * @return false if the recipient's queue or the queue as a whole is full,
+     *         the message too large or the write failed
+     */
+    public synchronized boolean enqueue(long id, long timestamp, String sender, String recipient,
+                                        ByteBuffer content, int offset, int length) {
+        if (closed) {
+            return false;
+        }
+        ArrayDeque<Location> pending = mailboxes.get(recipient);
+        if (pending != null ? pending.size() >= maxPerRecipient : mailboxes.size() >= maxRecipients) {
+            return false;
+        }
+        byte[] recipientBytes = recipient.getBytes(StandardCharsets.UTF_8);
+        byte[] senderBytes = sender.getBytes(StandardCharsets.UTF_8);
+        int size = HEADER_SIZE + recipientBytes.length + senderBytes.length + length;
+        if (recipientBytes.length > 0xFFFF || senderBytes.length > 0xFFFF
+                || size > segmentBytes - FILE_HEADER_SIZE) {
+            return false;
+        }
+        long sequence = nextSequence++;
+        ByteBuffer record = ByteBuffer.allocate(size);
+        record.putInt(size).putInt(0).put(MESSAGE).put((byte) 0)
+                .putShort((short) recipientBytes.length).putShort((short) senderBytes.length).putShort((short) 0)
+                .putLong(sequence).putLong(id).putLong(timestamp)
+                .put(recipientBytes).put(senderBytes);
+        record.put(record.position(), content, offset, length);
+        record.clear();
+        record.putInt(4, checksum(record, 0, size));
+        try {
+            Location location = new Location(sequence, id, size, null, 0);
+            append(record, location);
+            if (pending == null) {
+                pending = new ArrayDeque<>();
+                mailboxes.put(recipient, pending);
+            }
+            pending.addLast(location);
+            location.segment.live++;
+            location.segment.liveBytes += size;
+            return true;
+        } catch (IOException e) {
+            System.err.println("Failed to queue offline message for " + recipient + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Read the oldest pending messages of a recipient without removing them
+     * Only finding them holds the monitor; the records are read after it is released
+     */
+    public List<Message> peek(String recipient, int max) throws IOException {
+        while (true) {
+            List<Location> batch = new ArrayList<>();
+            synchronized (this) {
+                ArrayDeque<Location> pending = mailboxes.get(recipient);
+                if (pending != null) {
+                    for (Location location : pending) {
+                        if (batch.size() == max) {
+                            break;
+                        }
+                        // A copy, since compaction may move the original meanwhile
+                        batch.add(new Location(location.sequence, location.id, location.length,
+                                location.segment, location.offset));
+                    }
+                }
+            }
+            try {
+                return read(recipient, batch);
+            } catch (ClosedChannelException e) {
+                // A segment was compacted away after the locations were taken; find the copies
+                synchronized (this) {
+                    if (closed || Thread.currentThread().isInterrupted()) {
+                        throw e;
+                    }
+                }
+            }
+        }
+    }
+
+    private List<Message> read(String recipient, List<Location> batch) throws IOException {
+        List<Message> messages = new ArrayList<>(batch.size());
+        ZoneId zone = ZoneId.systemDefault();
+        for (Location location : batch) {
+            ByteBuffer record = read(location);
+            int recipientLength = record.getShort(RECIPIENT_LENGTH_OFFSET) & 0xFFFF;
+            int senderLength = record.getShort(SENDER_LENGTH_OFFSET) & 0xFFFF;
+            int contentStart = HEADER_SIZE + recipientLength + senderLength;
+            String sender = utf8(record, HEADER_SIZE + recipientLength, senderLength);
+            Message message = new Message(sender, sender, utf8(record, contentStart, location.length - contentStart),
+                    MessageType.PRIVATE_MESSAGE);
+            message.setId(location.id);
+            message.setRecipientId(recipient);
+            message.setTimestamp(LocalDateTime.ofInstant(
+                    Instant.ofEpochMilli(record.getLong(TIMESTAMP_OFFSET)), zone));
+            messages.add(message);
+        }
+        return messages;
+    }
+
+    /**
+     * Mark a recipient's messages up to and including the one with this id as delivered
+     * Segments left with nothing pending are then compacted away, outside the monitor
+     * @return the number of messages removed; 0 if the id is not pending
+     */
+    public int acknowledge(String recipient, long id) throws IOException {
+        int count = markDelivered(recipient, id);
+        if (count > 0) {
+            compact();
+        }
+        return count;
+    }
+
+    private synchronized int markDelivered(String recipient, long id) throws IOException {
+        ArrayDeque<Location> pending = mailboxes.get(recipient);
+        if (pending == null || closed) {
+            return 0;
+        }
+        int count = 0;
+        Location last = null;
+        for (Location location : pending) {
+            count++;
+            if (location.id == id) {
+                last = location;
+                break;
+            }
+        }
+        if (last == null) {
+            return 0;
+        }
+        byte[] recipientBytes = recipient.getBytes(StandardCharsets.UTF_8);
+        int size = HEADER_SIZE + recipientBytes.length;
+        ByteBuffer record = ByteBuffer.allocate(size);
+        record.putInt(size).putInt(0).put(ACK).put((byte) 0)
+                .putShort((short) recipientBytes.length).putShort((short) 0).putShort((short) 0)
+                .putLong(last.sequence).putLong(0).putLong(0).put(recipientBytes);
+        record.clear();
+        record.putInt(4, checksum(record, 0, size));
+        append(record, null);
+        for (int i = 0; i < count; i++) {
+            Location location = pending.pollFirst();
+            location.acknowledged = true;
+            location.segment.live--;
+            location.segment.liveBytes -= location.length;
+        }
+        if (pending.isEmpty()) {
+            mailboxes.remove(recipient);
+        }
+        return count;
+    }
+
+    /**
+     * Whether a recipient has messages waiting; does not take the monitor
+     */
+    public boolean hasPending(String recipient) {
+        return mailboxes.containsKey(recipient);
+    }
+
+    public synchronized int getPendingCount(String recipient) {
+        ArrayDeque<Location> pending = mailboxes.get(recipient);
+        return pending == null ? 0 : pending.size();
+    }
+
+    /**
+     * Number of segment files on disk
+     */
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Force everything appended so far to disk
+     * The fsync runs outside the monitor, so appends go on meanwhile
+     */
+    public void sync() throws IOException {
+        List<Segment> dirty = new ArrayList<>();
+        synchronized (this) {
+            for (Segment segment : segments) {
+                if (segment.dirty) {
+                    segment.dirty = false;
+                    dirty.add(segment);
+                }
+            }
+        }
+        for (Segment segment : dirty) {
+            try {
+                segment.channel.force(false);
+            } catch (ClosedChannelException e) {
+                // Compacted away, so nothing in it is pending, or the queue closed after syncing
+            } catch (IOException e) {
+                synchronized (this) {
+                    segment.dirty = true;
+                }
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Append a record to the active segment, rolling to a new one when it is full
+     * @param location set to where the record went, or null
+     */
+    private void append(ByteBuffer record, Location location) throws IOException {
+        if (active == null || active.size + record.remaining() > segmentBytes) {
+            roll();
+        }
+        long position = active.size;
+        while (record.hasRemaining()) {
+            active.channel.write(record, position + record.position());
+        }
+        active.size += record.limit();
+        active.dirty = true;
+        if (location != null) {
+            location.segment = active;
+            location.offset = position;
+        }
+    }
+
+    private void roll() throws IOException {
+        long number = active == null ? 0 : active.number + 1;
+        Path path = directory.resolve(String.format("%016d%s", number, EXTENSION));
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        writeFileHeader(channel);
+        active = new Segment(number, path, channel, FILE_HEADER_SIZE);
+        segments.add(active);
+    }
+
+    private static void writeFileHeader(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE).putInt(MAGIC).putShort(VERSION);
+        header.clear();
+        channel.truncate(0);
+        while (header.hasRemaining()) {
+            channel.write(header, header.position());
+        }
+    }
+
+    /**
+     * Delete the oldest segments while nothing in them is pending, first copying
+     * the last few pending messages forward out of a mostly delivered one
+     * Holds the monitor only to pick records, append their copies and drop the
+     * segment; reading the records and the fsync run without it
+     */
+    private void compact() throws IOException {
+        synchronized (compaction) {
+            while (true) {
+                Segment oldest;
+                List<Location> moving = new ArrayList<>();
+                synchronized (this) {
+                    if (closed || segments.size() < 2) {
+                        return;
+                    }
+                    oldest = segments.get(0);
+                    if (oldest.live > 0) {
+                        if (oldest.liveBytes * 4 > segmentBytes) {
+                            return;
+                        }
+                        for (ArrayDeque<Location> pending : mailboxes.values()) {
+                            for (Location location : pending) {
+                                if (location.segment == oldest) {
+                                    moving.add(location);
+                                }
+                            }
+                        }
+                    }
+                }
+                if (!moving.isEmpty() && !copyForward(oldest, moving)) {
+                    return;
+                }
+                synchronized (this) {
+                    if (closed || oldest.live > 0) {
+                        return;
+                    }
+                    segments.remove(oldest);
+                }
+                oldest.channel.close();
+                Files.delete(oldest.path);
+            }
+        }
+    }
+
+    /**
+     * Copy pending records out of a sealed segment, which only compaction
+     * touches, and make the copies durable before the segment can go
+     * @return false if the queue closed meanwhile
+     */
+    private boolean copyForward(Segment segment, List<Location> moving) throws IOException {
+        List<ByteBuffer> records = new ArrayList<>(moving.size());
+        for (Location location : moving) {
+            records.add(read(location));
+        }
+        List<Segment> written = new ArrayList<>();
+        synchronized (this) {
+            if (closed) {
+                return false;
+            }
+            for (int i = 0; i < moving.size(); i++) {
+                Location location = moving.get(i);
+                if (location.acknowledged) {
+                    continue;
+                }
+                segment.live--;
+                segment.liveBytes -= location.length;
+                append(records.get(i), location);
+                location.segment.live++;
+                location.segment.liveBytes += location.length;
+                if (!written.contains(location.segment)) {
+                    written.add(location.segment);
+                }
+            }
+        }
+        try {
+            for (Segment target : written) {
+                target.channel.force(false);
+            }
+        } catch (ClosedChannelException e) {
+            return false;
+        }
+        return true;
+    }
+
+    private ByteBuffer read(Location location) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(location.length);
+        while (record.hasRemaining()) {
+            if (location.segment.channel.read(record, location.offset + record.position()) < 0) {
+                throw new IOException("Offline queue record missing in " + location.segment.path);
+            }
+        }
+        record.flip();
+        return record;
+    }
+
+    private int checksum(ByteBuffer data, int position, int length) {
+        ByteBuffer view = data.duplicate();
+        view.limit(position + length).position(position + 8);
+        crc.reset();
+        crc.update(view);
+        return (int) crc.getValue();
+    }
+
+    private static String utf8(ByteBuffer data, int position, int length) {
+        byte[] bytes = new byte[length];
+        data.get(position, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Sync and close the segment files
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        sync();
+        for (Segment segment : segments) {
+            segment.channel.close();
+        }
+    }
+}
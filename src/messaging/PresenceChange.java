@@ -0,0 +1,32 @@
+package messaging;
+
+/**
+ * One join or leave, numbered by the membership version it produced
+ */
+public final class PresenceChange {
+
+    private final long version;
+    private final String userId;
+    private final boolean joined;
+
+    public PresenceChange(long version, String userId, boolean joined) {
+        this.version = version;
+        this.userId = userId;
+        this.joined = joined;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    /**
+     * Whether the user came online, as opposed to leaving
+     */
+    public boolean isJoined() {
+        return joined;
+    }
+}
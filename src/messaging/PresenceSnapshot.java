@@ -0,0 +1,52 @@
+package messaging;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Immutable view of who was online at one membership version
+ *
+ * The version goes up by one on every join and leave, so two snapshots with
+ * the same version hold the same users and a caller can skip rebuilding
+ * anything derived from a snapshot it has already seen.
+ */
+public final class PresenceSnapshot {
+
+    public static final PresenceSnapshot EMPTY = new PresenceSnapshot(0, new String[0]);
+
+    private final long version;
+    private final List<String> users;
+    private final Set<String> lookup;
+
+    /**
+     * @param users taken over by the snapshot and sorted; must not be modified afterwards
+     */
+    public PresenceSnapshot(long version, String[] users) {
+        Arrays.sort(users);
+        this.version = version;
+        this.users = Collections.unmodifiableList(Arrays.asList(users));
+        this.lookup = Collections.unmodifiableSet(new HashSet<>(this.users));
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Online user IDs in sorted order
+     */
+    public List<String> getUsers() {
+        return users;
+    }
+
+    public boolean contains(String userId) {
+        return lookup.contains(userId);
+    }
+
+    public int size() {
+        return users.size();
+    }
+}
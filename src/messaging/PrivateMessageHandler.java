@@ -3,7 +3,7 @@ package messaging;
 /**
  * MODULE 4: Private Chat Feature - Send direct messages (client-to-client routing via server)
  * Interface for handling private message routing
- * Team Member 4 should implement this functionality
+ * Implemented over the server's client registry by server.RegistryPrivateMessageHandler
  */
 public interface PrivateMessageHandler {
     
@@ -12,7 +12,7 @@ public interface PrivateMessageHandler {
      * @param message The private message to send
      * @param sender The user sending the message
      * @param recipientId The ID of the recipient
-     * @return true if message was delivered, false otherwise
+     * @return true if message was delivered or queued for an offline recipient, false otherwise
      */
     boolean sendPrivateMessage(String message, String sender, String recipientId);
     
@@ -24,8 +24,8 @@ public interface PrivateMessageHandler {
     boolean isUserOnline(String userId);
     
     /**
-     * Get the list of online users
-     * @return Array of online user IDs
+     * Get the online users
+     * @return Immutable snapshot, shared between callers until membership changes
      */
-    String[] getOnlineUsers();
+    PresenceSnapshot getOnlineUsers();
 }
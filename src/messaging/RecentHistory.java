@@ -0,0 +1,375 @@
+package messaging;
+
+import main.java.com.securechat.common.Message;
+import main.java.com.securechat.common.MessageType;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory scrollback: the most recent messages of each conversation
+ *
+ * The group room and every private conversation keep a ring of their newest
+ * messages, bounded by count and by content bytes, so sending the last N
+ * messages to a joining user never touches disk. A ring starts empty after a
+ * restart; the first read fills it once from the MessageLogger. After that the
+ * log is only read again for scrollback older than what the ring still holds.
+ *
+ * Appends lock their own conversation's ring, then briefly a shared list of
+ * conversations ordered by last message. When there are more than
+ * maxConversations, or all rings together hold more than maxTotalBytes, the
+ * head of that list, the one quiet longest, is dropped. A private message only
+ * starts a ring when the caller knows its recipient, so messages to made-up
+ * names cannot push real conversations out.
+ */
+public class RecentHistory {
+
+    /**
+     * Conversation key of the group room
+     */
+    public static final String ROOM = "";
+
+    // How far back the log is searched when filling a ring
+    private static final long MAX_LOOKBACK_MILLIS = 7L * 24 * 60 * 60 * 1000;
+
+    private final int maxMessages;
+    private final long maxBytes;
+    private final int maxConversations;
+    private final long maxTotalBytes;
+    private final MessageLogger logger;
+    // Content bytes held by all rings
+    private final AtomicLong totalBytes = new AtomicLong();
+    private final ConcurrentHashMap<String, Ring> rings = new ConcurrentHashMap<>();
+    // Same rings, quietest first; an access moves a conversation to the end
+    private final LinkedHashMap<String, Ring> byActivity = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * @param maxMessages messages kept per conversation
+     * @param maxBytes content bytes kept per conversation
+     * @param maxConversations conversations kept before the quietest is dropped
+     * @param maxTotalBytes content bytes kept across all conversations before the quietest is dropped
+     * @param logger where older messages are read from, or null to serve memory only
+     */
+    public RecentHistory(int maxMessages, long maxBytes, int maxConversations, long maxTotalBytes,
+                         MessageLogger logger) {
+        if (maxMessages < 1 || maxBytes < 1 || maxConversations < 1 || maxTotalBytes < 1) {
+            throw new IllegalArgumentException("Recent history limits must be positive");
+        }
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+        this.maxConversations = maxConversations;
+        this.maxTotalBytes = maxTotalBytes;
+        this.logger = logger;
+    }
+
+    /**
+     * Key of the conversation a message belongs to: ROOM for group messages,
+     * the two user names in sorted order for private ones, null for anything else
+     */
+    public static String conversationOf(MessageType type, String sender, String recipient) {
+        if (type == MessageType.GROUP_MESSAGE) {
+            return ROOM;
+        }
+        if (type != MessageType.PRIVATE_MESSAGE || sender == null || recipient == null) {
+            return null;
+        }
+        return sender.compareTo(recipient) <= 0 ? sender + '\n' + recipient : recipient + '\n' + sender;
+    }
+
+    /**
+     * Remember a routed message, copying its content slice
+     * @param startConversation whether a conversation not held yet gets a ring; pass
+     *        false for a recipient who is not known, so only existing rings grow
+     */
+    public void add(long id, long timestamp, MessageType type, String sender, String recipient,
+                    ByteBuffer content, int offset, int length, boolean startConversation) {
+        String conversation = conversationOf(type, sender, recipient);
+        if (conversation == null) {
+            return;
+        }
+        byte[] bytes = new byte[length];
+        content.get(offset, bytes);
+        Entry entry = new Entry(id, timestamp, type, sender, recipient, bytes);
+        while (true) {
+            Ring ring = startConversation ? ringFor(conversation) : rings.get(conversation);
+            if (ring == null) {
+                return;
+            }
+            if (ring.add(entry)) {
+                synchronized (byActivity) {
+                    byActivity.get(conversation);
+                    evictOverBudget();
+                }
+                return;
+            }
+            // Dropped as the quietest conversation in the meantime
+            rings.remove(conversation, ring);
+        }
+    }
+
+    /**
+     * Get up to limit of the newest messages in a conversation, oldest first
+     * Served from memory when the ring holds enough; otherwise the older part
+     * is read from the log, up to a week back
+     */
+    public List<Message> getRecent(String conversation, int limit) {
+        List<Message> messages = new ArrayList<>();
+        if (limit <= 0) {
+            return messages;
+        }
+        load(conversation);
+        Ring ring = ringFor(conversation);
+        List<Entry> entries = new ArrayList<>(Math.min(limit, maxMessages));
+        boolean truncated = ring.newest(limit, entries);
+        if (entries.size() < limit && truncated && logger != null) {
+            messages.addAll(olderFromLog(conversation, entries.isEmpty() ? ring.oldest() : entries.get(0),
+                    limit - entries.size()));
+        }
+        for (Entry entry : entries) {
+            messages.add(entry.toMessage());
+        }
+        return messages;
+    }
+
+    /**
+     * Get up to limit of the newest messages a conversation's ring holds, oldest
+     * first, without reading the log; for callers on an I/O thread
+     */
+    public List<Message> getCached(String conversation, int limit) {
+        List<Message> messages = new ArrayList<>();
+        Ring ring = rings.get(conversation);
+        if (limit <= 0 || ring == null) {
+            return messages;
+        }
+        List<Entry> entries = new ArrayList<>(Math.min(limit, maxMessages));
+        ring.newest(limit, entries);
+        for (Entry entry : entries) {
+            messages.add(entry.toMessage());
+        }
+        return messages;
+    }
+
+    /**
+     * Fill a conversation's ring from the log ahead of its first read, so that
+     * read is served from memory
+     */
+    public void load(String conversation) {
+        Ring ring = ringFor(conversation);
+        if (logger != null && !ring.isLoaded()) {
+            ring.load(olderFromLog(conversation, ring.oldest(), maxMessages));
+            synchronized (byActivity) {
+                evictOverBudget();
+            }
+        }
+    }
+
+    /**
+     * Messages of a conversation logged before an entry
+     */
+    private List<Message> olderFromLog(String conversation, Entry before, int limit) {
+        // Entries loaded from text logs have no id
+        long beforeId = before.id == 0 ? Long.MAX_VALUE : before.id;
+        return logger.getMessagesBefore(before.timestamp, beforeId, limit, MAX_LOOKBACK_MILLIS,
+                message -> conversation.equals(
+                        conversationOf(message.getType(), message.getSenderId(), message.getRecipientId())));
+    }
+
+    /**
+     * Number of conversations currently held in memory
+     */
+    public int getConversationCount() {
+        return rings.size();
+    }
+
+    /**
+     * Content bytes held across all conversations
+     */
+    public long getTotalBytes() {
+        return totalBytes.get();
+    }
+
+    private Ring ringFor(String conversation) {
+        Ring ring = rings.get(conversation);
+        if (ring != null) {
+            return ring;
+        }
+        Ring created = new Ring();
+        ring = rings.computeIfAbsent(conversation, key -> created);
+        if (ring == created) {
+            synchronized (byActivity) {
+                byActivity.put(conversation, ring);
+                if (rings.size() > maxConversations) {
+                    evictQuietest();
+                }
+            }
+        }
+        return ring;
+    }
+
+    /**
+     * Drop the quietest conversations until all rings fit maxTotalBytes; caller
+     * holds the byActivity lock
+     */
+    private void evictOverBudget() {
+        while (totalBytes.get() > maxTotalBytes && evictQuietest()) {
+            // Keep dropping
+        }
+    }
+
+    /**
+     * Drop the conversation with the oldest last message; caller holds the byActivity lock
+     * @return false if only the room is left
+     */
+    private boolean evictQuietest() {
+        for (Iterator<Map.Entry<String, Ring>> iterator = byActivity.entrySet().iterator(); iterator.hasNext(); ) {
+            Map.Entry<String, Ring> quietest = iterator.next();
+            if (!quietest.getKey().equals(ROOM)) {
+                iterator.remove();
+                rings.remove(quietest.getKey(), quietest.getValue());
+                quietest.getValue().retire();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A remembered message
+     */
+    private static final class Entry {
+        final long id;
+        final long timestamp;
+        final MessageType type;
+        final String sender;
+        final String recipient;
+        final byte[] content;
+
+        Entry(long id, long timestamp, MessageType type, String sender, String recipient, byte[] content) {
+            this.id = id;
+            this.timestamp = timestamp;
+            this.type = type;
+            this.sender = sender;
+            this.recipient = recipient;
+            this.content = content;
+        }
+
+        Message toMessage() {
+            Message message = new Message(sender, sender, new String(content, StandardCharsets.UTF_8), type);
+            message.setId(id);
+            message.setRecipientId(recipient);
+            // Text logs do not store ids
+            message.setTimestamp(LocalDateTime.ofInstant(Instant.ofEpochMilli(timestamp), ZoneId.systemDefault()));
+            return message;
+        }
+    }
+
+    /**
+     * Newest messages of one conversation, bounded by count and bytes
+     */
+    private final class Ring {
+
+        private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+        private final long createdAt = System.currentTimeMillis();
+        private long bytes;
+        private boolean loaded;
+        // Whether messages older than the ring's oldest are known to exist
+        private boolean truncated;
+        private boolean retired;
+
+        /**
+         * @return false if the ring was dropped and the caller must use a new one
+         */
+        synchronized boolean add(Entry entry) {
+            if (retired) {
+                return false;
+            }
+            long before = bytes;
+            entries.addLast(entry);
+            bytes += entry.content.length;
+            while (entries.size() > maxMessages || (bytes > maxBytes && entries.size() > 1)) {
+                bytes -= entries.pollFirst().content.length;
+                truncated = true;
+            }
+            totalBytes.addAndGet(bytes - before);
+            return true;
+        }
+
+        synchronized void retire() {
+            retired = true;
+            entries.clear();
+            totalBytes.addAndGet(-bytes);
+            bytes = 0;
+        }
+
+        synchronized boolean isLoaded() {
+            return loaded;
+        }
+
+        /**
+         * Oldest entry, or a marker for the ring's creation when it is empty
+         */
+        synchronized Entry oldest() {
+            Entry oldest = entries.peekFirst();
+            return oldest != null ? oldest : new Entry(Long.MAX_VALUE, createdAt, null, null, null, new byte[0]);
+        }
+
+        /**
+         * Copy up to limit of the newest entries, oldest first
+         * @return whether older messages than those copied exist outside the ring
+         */
+        synchronized boolean newest(int limit, List<Entry> into) {
+            int skip = Math.max(0, entries.size() - limit);
+            Iterator<Entry> iterator = entries.iterator();
+            for (int i = 0; iterator.hasNext(); i++) {
+                Entry entry = iterator.next();
+                if (i >= skip) {
+                    into.add(entry);
+                }
+            }
+            return skip > 0 || truncated;
+        }
+
+        /**
+         * Put messages read from the log in front of the ring, as far as the limits allow
+         * Only the first load counts; a concurrent one is discarded
+         * @param older oldest first, all older than the ring's entries at the time of the read
+         */
+        synchronized void load(List<Message> older) {
+            if (loaded || retired) {
+                return;
+            }
+            loaded = true;
+            Entry oldest = entries.peekFirst();
+            for (int i = older.size() - 1; i >= 0; i--) {
+                Message message = older.get(i);
+                // Routed while the log was read, so already in the ring
+                if (oldest != null && message.getId() != 0 && message.getId() >= oldest.id) {
+                    continue;
+                }
+                byte[] content = message.getContent().getBytes(StandardCharsets.UTF_8);
+                if (entries.size() >= maxMessages || bytes + content.length > maxBytes) {
+                    truncated = true;
+                    return;
+                }
+                entries.addFirst(new Entry(message.getId(),
+                        message.getTimestamp().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli(),
+                        message.getType(), message.getSenderId(), message.getRecipientId(), content));
+                bytes += content.length;
+                totalBytes.addAndGet(content.length);
+            }
+            // A read that hit its limit may have stopped with more behind it
+            truncated |= older.size() >= maxMessages;
+        }
+    }
+}
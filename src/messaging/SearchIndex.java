@@ -0,0 +1,502 @@
+package messaging;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Incremental full-text index over the message log
+ *
+ * Every logged message becomes a document numbered in log order. Its location
+ * (segment base id and record offset for binary logs, epoch day and line
+ * offset for text logs), id and timestamp go to docs.dat, DOC_SIZE bytes per
+ * document. Words (lower-cased runs of letters and digits) and the sender
+ * ("@" + name) map to posting lists of document numbers, kept in memory by the
+ * writer thread and written out every flushDocs documents as an IndexSegment
+ * with delta+varint postings. Segments carry their time bounds, so date-range
+ * queries skip whole segments.
+ *
+ * The logger syncs the log before each flush, so segments never refer to
+ * entries a crash can take back. Documents that only lived in memory are
+ * missing after a crash; the logger re-adds everything after lastDoc() when it
+ * starts.
+ *
+ * add(), flush() and snapshot() run on the writer thread; forEachMatch() runs
+ * on any thread against a snapshot.
+ */
+final class SearchIndex implements Closeable {
+
+    static final String SENDER_PREFIX = "@";
+
+    private static final String DOCS_FILE = "docs.dat";
+    private static final int MAGIC = 0x53434454; // "SCDT"
+    private static final short VERSION = 1;
+    private static final int DOCS_HEADER_SIZE = 16;
+    private static final int DOC_SIZE = 32;
+    private static final int MAX_TERM_LENGTH = 64;
+
+    /**
+     * A matching message and where to read it
+     */
+    static final class Doc {
+        final long timestamp;
+        final long id;
+        final long fileKey;
+        final long offset;
+
+        Doc(long timestamp, long id, long fileKey, long offset) {
+            this.timestamp = timestamp;
+            this.id = id;
+            this.fileKey = fileKey;
+            this.offset = offset;
+        }
+    }
+
+    /**
+     * Parsed query: documents must hold every term and be in [from, to);
+     * phrases are checked against the message text by the caller
+     */
+    static final class Query {
+        final List<String> terms;
+        final List<List<String>> phrases;
+        final long from;
+        final long to;
+
+        Query(List<String> terms, List<List<String>> phrases, long from, long to) {
+            this.terms = terms;
+            this.phrases = phrases;
+            this.from = from;
+            this.to = to;
+        }
+    }
+
+    /**
+     * Segments and in-memory matches captured together on the writer thread
+     */
+    static final class Snapshot {
+        final List<IndexSegment> segments;
+        final List<Doc> memoryMatches;
+
+        Snapshot(List<IndexSegment> segments, List<Doc> memoryMatches) {
+            this.segments = segments;
+            this.memoryMatches = memoryMatches;
+        }
+    }
+
+    /**
+     * Growable delta+varint encoded list of ascending document numbers
+     */
+    static final class PostingList {
+        private byte[] data = new byte[8];
+        private int size;
+        private int count;
+        private int lastDoc;
+
+        PostingList(int docStart) {
+            this.lastDoc = docStart - 1;
+        }
+
+        void add(int doc) {
+            if (doc == lastDoc) {
+                return;
+            }
+            if (size + 5 > data.length) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+            int delta = doc - lastDoc;
+            while ((delta & ~0x7F) != 0) {
+                data[size++] = (byte) ((delta & 0x7F) | 0x80);
+                delta >>>= 7;
+            }
+            data[size++] = (byte) delta;
+            lastDoc = doc;
+            count++;
+        }
+
+        int[] decode(int docStart) {
+            int[] docs = new int[count];
+            ByteBuffer in = ByteBuffer.wrap(data, 0, size);
+            int doc = docStart - 1;
+            for (int i = 0; i < count; i++) {
+                doc += IndexSegment.getVarInt(in);
+                docs[i] = doc;
+            }
+            return docs;
+        }
+
+        int size() {
+            return size;
+        }
+
+        int count() {
+            return count;
+        }
+
+        void writeTo(OutputStream out) throws IOException {
+            out.write(data, 0, size);
+        }
+    }
+
+    private final Path directory;
+    private final int flushDocs;
+    private final FileChannel docs;
+    private final List<IndexSegment> segments = new CopyOnWriteArrayList<>();
+
+    // Owned by the writer thread
+    private Map<String, PostingList> memory = new HashMap<>();
+    private ByteBuffer memoryDocs;
+    private int memoryStart;
+    private int docCount;
+    private long memoryMinTimestamp = Long.MAX_VALUE;
+    private long memoryMaxTimestamp = Long.MIN_VALUE;
+
+    private SearchIndex(Path directory, int flushDocs, FileChannel docs) {
+        this.directory = directory;
+        this.flushDocs = flushDocs;
+        this.docs = docs;
+        this.memoryDocs = ByteBuffer.allocate(Math.min(flushDocs, 4096) * DOC_SIZE);
+    }
+
+    /**
+     * Open or create the index in a directory
+     * @param mode identifies the log format the locations refer to; a mismatch starts a new index
+     * @param flushDocs documents held in memory before a segment is written
+     */
+    static SearchIndex open(Path directory, byte mode, int flushDocs) throws IOException {
+        Files.createDirectories(directory);
+        TreeMap<String, Path> files = new TreeMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*{" + IndexSegment.EXTENSION + ",.tmp}")) {
+            for (Path file : stream) {
+                if (file.getFileName().toString().endsWith(".tmp")) {
+                    Files.delete(file);
+                } else {
+                    files.put(file.getFileName().toString(), file);
+                }
+            }
+        }
+        FileChannel docs = FileChannel.open(directory.resolve(DOCS_FILE), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        SearchIndex index = new SearchIndex(directory, flushDocs, docs);
+        // Keep the run of segments that follow each other; retention may have removed a prefix
+        int next = -1;
+        for (Path file : files.values()) {
+            IndexSegment segment = IndexSegment.open(file);
+            if (next >= 0 && segment.getDocStart() != next) {
+                System.err.println("Dropping search index segment " + file.getFileName() + " after a gap");
+                segment.delete();
+                continue;
+            }
+            index.segments.add(segment);
+            next = segment.getDocEnd();
+        }
+        next = Math.max(next, 0);
+        ByteBuffer header = ByteBuffer.allocate(DOCS_HEADER_SIZE);
+        docs.read(header, 0);
+        boolean valid = header.position() == DOCS_HEADER_SIZE && header.getInt(0) == MAGIC
+                && header.getShort(4) == VERSION && header.get(6) == mode
+                && docs.size() >= DOCS_HEADER_SIZE + (long) next * DOC_SIZE;
+        if (!valid) {
+            if (next > 0 || docs.size() > 0) {
+                System.out.println("Rebuilding search index in " + directory);
+            }
+            for (IndexSegment segment : index.segments) {
+                segment.delete();
+            }
+            index.segments.clear();
+            next = 0;
+            docs.truncate(0);
+            header.clear();
+            header.putInt(MAGIC).putShort(VERSION).put(mode);
+            header.clear();
+            docs.write(header, 0);
+        }
+        docs.truncate(DOCS_HEADER_SIZE + (long) next * DOC_SIZE);
+        index.docCount = next;
+        index.memoryStart = next;
+        return index;
+    }
+
+    /**
+     * Last document written to a segment, where catching up resumes; null if none
+     */
+    Doc lastDoc() throws IOException {
+        return memoryStart == 0 || segments.isEmpty() ? null : readDoc(memoryStart - 1);
+    }
+
+    /**
+     * Index one message
+     */
+    void add(long id, long timestamp, long fileKey, long offset, String sender, String content) {
+        int doc = docCount++;
+        if (!memoryDocs.hasRemaining()) {
+            memoryDocs = ByteBuffer.allocate(memoryDocs.capacity() * 2).put(memoryDocs.flip());
+        }
+        memoryDocs.putLong(timestamp).putLong(id).putLong(fileKey).putLong(offset);
+        memoryMinTimestamp = Math.min(memoryMinTimestamp, timestamp);
+        memoryMaxTimestamp = Math.max(memoryMaxTimestamp, timestamp);
+        if (sender != null) {
+            posting(SENDER_PREFIX + sender).add(doc);
+        }
+        if (content != null) {
+            tokenize(content, term -> posting(term).add(doc));
+        }
+    }
+
+    /**
+     * Whether enough documents are in memory to flush()
+     */
+    boolean isFull() {
+        return docCount - memoryStart >= flushDocs;
+    }
+
+    private PostingList posting(String term) {
+        return memory.computeIfAbsent(term, t -> new PostingList(memoryStart));
+    }
+
+    /**
+     * Write the in-memory documents out as a segment
+     * docs.dat is forced first, so a segment never refers to missing documents
+     */
+    void flush() {
+        int count = docCount - memoryStart;
+        if (count == 0) {
+            return;
+        }
+        try {
+            ByteBuffer pending = memoryDocs.duplicate().flip();
+            long position = DOCS_HEADER_SIZE + (long) memoryStart * DOC_SIZE;
+            while (pending.hasRemaining()) {
+                position += docs.write(pending, position);
+            }
+            docs.force(false);
+            List<Map.Entry<byte[], PostingList>> terms = new ArrayList<>(memory.size());
+            for (Map.Entry<String, PostingList> entry : memory.entrySet()) {
+                terms.add(Map.entry(entry.getKey().getBytes(StandardCharsets.UTF_8), entry.getValue()));
+            }
+            terms.sort(Comparator.comparing(Map.Entry::getKey, Arrays::compareUnsigned));
+            byte[][] keys = new byte[terms.size()][];
+            PostingList[] postings = new PostingList[terms.size()];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = terms.get(i).getKey();
+                postings[i] = terms.get(i).getValue();
+            }
+            segments.add(IndexSegment.write(directory, memoryStart, count, memoryMinTimestamp, memoryMaxTimestamp,
+                    keys, postings));
+            memoryStart = docCount;
+        } catch (IOException e) {
+            // Renumber from here; the lost documents come back with the next catch-up
+            System.err.println("Failed to write search index segment: " + e.getMessage());
+            docCount = memoryStart;
+        }
+        memory = new HashMap<>();
+        memoryDocs.clear();
+        memoryMinTimestamp = Long.MAX_VALUE;
+        memoryMaxTimestamp = Long.MIN_VALUE;
+    }
+
+    /**
+     * Capture the segments and match the in-memory documents, on the writer thread
+     */
+    Snapshot snapshot(Query query) {
+        List<Doc> matches = new ArrayList<>();
+        if (docCount > memoryStart && memoryMaxTimestamp >= query.from && memoryMinTimestamp < query.to) {
+            int[] candidates = intersect(query.terms, term -> {
+                PostingList list = memory.get(term);
+                return list == null ? null : list.decode(memoryStart);
+            }, memoryStart, docCount);
+            for (int doc : candidates) {
+                int base = (doc - memoryStart) * DOC_SIZE;
+                long timestamp = memoryDocs.getLong(base);
+                if (timestamp >= query.from && timestamp < query.to) {
+                    matches.add(new Doc(timestamp, memoryDocs.getLong(base + 8), memoryDocs.getLong(base + 16),
+                            memoryDocs.getLong(base + 24)));
+                }
+            }
+        }
+        return new Snapshot(new ArrayList<>(segments), matches);
+    }
+
+    /**
+     * Visit the documents that hold every query term and are in the time range,
+     * in log order, until the visitor returns false
+     */
+    void forEachMatch(Snapshot snapshot, Query query, Predicate<Doc> visitor) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(DOC_SIZE);
+        for (IndexSegment segment : snapshot.segments) {
+            if (segment.getMaxTimestamp() < query.from || segment.getMinTimestamp() >= query.to) {
+                continue;
+            }
+            int[] candidates = intersect(query.terms, term -> segment.postings(term.getBytes(StandardCharsets.UTF_8)),
+                    segment.getDocStart(), segment.getDocEnd());
+            for (int doc : candidates) {
+                Doc match = readDoc(doc, record);
+                if (match.timestamp >= query.from && match.timestamp < query.to && !visitor.test(match)) {
+                    return;
+                }
+            }
+        }
+        for (Doc match : snapshot.memoryMatches) {
+            if (!visitor.test(match)) {
+                return;
+            }
+        }
+    }
+
+    private interface PostingsLookup {
+        int[] lookup(String term);
+    }
+
+    /**
+     * Documents holding every term, ascending; all of [start, end) when there are no terms
+     */
+    private static int[] intersect(List<String> terms, PostingsLookup lookup, int start, int end) {
+        if (terms.isEmpty()) {
+            int[] all = new int[end - start];
+            for (int i = 0; i < all.length; i++) {
+                all[i] = start + i;
+            }
+            return all;
+        }
+        List<int[]> lists = new ArrayList<>(terms.size());
+        for (String term : terms) {
+            int[] docs = lookup.lookup(term);
+            if (docs == null) {
+                return new int[0];
+            }
+            lists.add(docs);
+        }
+        lists.sort(Comparator.comparingInt(docs -> docs.length));
+        int[] result = lists.get(0);
+        for (int i = 1; i < lists.size() && result.length > 0; i++) {
+            int[] other = lists.get(i);
+            int kept = 0;
+            int from = 0;
+            for (int doc : result) {
+                int found = Arrays.binarySearch(other, from, other.length, doc);
+                if (found >= 0) {
+                    result[kept++] = doc;
+                    from = found + 1;
+                } else {
+                    from = -found - 1;
+                }
+            }
+            result = Arrays.copyOf(result, kept);
+        }
+        return result;
+    }
+
+    private Doc readDoc(int doc) throws IOException {
+        return readDoc(doc, ByteBuffer.allocate(DOC_SIZE));
+    }
+
+    private Doc readDoc(int doc, ByteBuffer record) throws IOException {
+        record.clear();
+        long position = DOCS_HEADER_SIZE + (long) doc * DOC_SIZE;
+        while (record.hasRemaining()) {
+            if (docs.read(record, position + record.position()) < 0) {
+                throw new IOException("Search index document " + doc + " is missing");
+            }
+        }
+        return new Doc(record.getLong(0), record.getLong(8), record.getLong(16), record.getLong(24));
+    }
+
+    /**
+     * Delete the oldest segments whose messages are all older than cutoff
+     * Their documents stay in docs.dat but can no longer match
+     */
+    int deleteSegmentsBefore(long cutoff) throws IOException {
+        int deleted = 0;
+        for (IndexSegment segment : segments) {
+            if (segment.getMaxTimestamp() >= cutoff || segments.size() == 1) {
+                break;
+            }
+            segments.remove(segment);
+            segment.delete();
+            deleted++;
+        }
+        return deleted;
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        docs.close();
+    }
+
+    /**
+     * Split text into lower-cased words of letters and digits
+     */
+    static void tokenize(String text, Consumer<String> terms) {
+        int length = text.length();
+        int start = -1;
+        for (int i = 0; i <= length; i++) {
+            boolean word = i < length && Character.isLetterOrDigit(text.charAt(i));
+            if (word && start < 0) {
+                start = i;
+            } else if (!word && start >= 0) {
+                terms.accept(text.substring(start, Math.min(i, start + MAX_TERM_LENGTH)).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+    }
+
+    /**
+     * Parse words and "quoted phrases"; every word of a phrase is also a required term
+     */
+    static Query parse(String text, String sender, long from, long to) {
+        Set<String> terms = new LinkedHashSet<>();
+        List<List<String>> phrases = new ArrayList<>();
+        String[] parts = (text == null ? "" : text).split("\"", -1);
+        for (int i = 0; i < parts.length; i++) {
+            List<String> words = new ArrayList<>();
+            tokenize(parts[i], words::add);
+            terms.addAll(words);
+            // Odd parts sit between quotes
+            if (i % 2 == 1 && words.size() > 1) {
+                phrases.add(words);
+            }
+        }
+        if (sender != null) {
+            terms.add(SENDER_PREFIX + sender);
+        }
+        return new Query(new ArrayList<>(terms), phrases, from, to);
+    }
+
+    /**
+     * Check that every phrase of a query appears in order in a message
+     */
+    static boolean matchesPhrases(String content, Query query) {
+        if (query.phrases.isEmpty()) {
+            return true;
+        }
+        List<String> words = new ArrayList<>();
+        tokenize(content, words::add);
+        for (List<String> phrase : query.phrases) {
+            if (Collections.indexOfSubList(words, phrase) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
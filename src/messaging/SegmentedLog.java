@@ -0,0 +1,326 @@
+package messaging;
+
+import main.java.com.securechat.common.MessageType;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Append-only binary message log made of fixed-size memory-mapped segments
+ *
+ * Records (see LogRecord) are written straight into the mapped active segment,
+ * so an append is a few memory copies plus a CRC-32C, and the kernel writes pages
+ * back sequentially. A new segment starts when a record does not fit or the
+ * active one is older than the roll interval; the old one is sealed with its
+ * length and id/time bounds in the header. sync() forces only the pages written
+ * since the previous sync. Each segment keeps a SparseIndex so id and time
+ * range reads touch only the blocks that can match.
+ *
+ * Sealed segments can be swapped for block-compressed copies and the oldest
+ * deleted by retention; both run off the writer thread on sealed segments only.
+ *
+ * One thread appends and syncs (MessageLogger's writer); any thread may read.
+ */
+public class SegmentedLog implements Closeable {
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final long rollMillis;
+    private final int indexInterval;
+    private final List<LogSegment> segments = new CopyOnWriteArrayList<>();
+    private LogSegment active;
+    private boolean activeDirty;
+    private int lastRecordOffset;
+
+    private SegmentedLog(Path directory, int segmentBytes, long rollMillis, int indexInterval) {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.rollMillis = rollMillis;
+        this.indexInterval = indexInterval;
+    }
+
+    /**
+     * Open the log in a directory, mapping the segments already there
+     * The newest segment keeps taking appends unless it was sealed
+     * @param segmentBytes size of each segment file
+     * @param rollMillis start a new segment once the active one is this old
+     * @param indexInterval records per sparse index entry
+     */
+    public static SegmentedLog open(Path directory, int segmentBytes, long rollMillis,
+                                    int indexInterval) throws IOException {
+        if (segmentBytes < LogSegment.HEADER_SIZE + LogRecord.HEADER_SIZE) {
+            throw new IllegalArgumentException("Segment size too small: " + segmentBytes);
+        }
+        if (indexInterval < 1) {
+            throw new IllegalArgumentException("Index interval must be positive: " + indexInterval);
+        }
+        Files.createDirectories(directory);
+        SegmentedLog log = new SegmentedLog(directory, segmentBytes, rollMillis, indexInterval);
+        // Zero-padded base ids sort by name; a compressed copy wins over its original
+        TreeMap<String, Path> files = new TreeMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory,
+                "*{" + LogSegment.EXTENSION + "," + LogSegment.COMPRESSED_EXTENSION + ",.tmp}")) {
+            for (Path file : stream) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(".tmp")) {
+                    // Left by an interrupted compression
+                    Files.delete(file);
+                    continue;
+                }
+                String base = name.substring(0, name.lastIndexOf('.'));
+                Path other = files.get(base);
+                if (other == null) {
+                    files.put(base, file);
+                } else {
+                    // Compression finished but the original was not deleted yet
+                    boolean compressed = name.endsWith(LogSegment.COMPRESSED_EXTENSION);
+                    Files.delete(compressed ? other : file);
+                    if (compressed) {
+                        files.put(base, file);
+                    }
+                }
+            }
+        }
+        for (Path file : files.values()) {
+            log.segments.add(file.getFileName().toString().endsWith(LogSegment.COMPRESSED_EXTENSION)
+                    ? LogSegment.openCompressed(file, indexInterval)
+                    : LogSegment.open(file, indexInterval));
+        }
+        if (!log.segments.isEmpty()) {
+            LogSegment last = log.segments.get(log.segments.size() - 1);
+            if (!last.isSealed()) {
+                log.active = last;
+            }
+        }
+        return log;
+    }
+
+    /**
+     * Append a message record
+     * @return the record size in bytes
+     */
+    public int append(long id, long timestamp, MessageType type, String sender, String recipient,
+                      ByteBuffer content, int contentOffset, int contentLength) throws IOException {
+        byte[] senderBytes = sender == null ? EMPTY : sender.getBytes(StandardCharsets.UTF_8);
+        byte[] recipientBytes = recipient == null ? EMPTY : recipient.getBytes(StandardCharsets.UTF_8);
+        if (senderBytes.length > 0xFFFF || recipientBytes.length > 0xFFFF) {
+            throw new IllegalArgumentException("User name too long for the message log");
+        }
+        int length = LogRecord.sizeOf(senderBytes.length, recipientBytes.length, contentLength);
+        if (length > segmentBytes - LogSegment.HEADER_SIZE) {
+            throw new IllegalArgumentException("Record of " + length + " bytes does not fit in a "
+                    + segmentBytes + " byte segment");
+        }
+        byte type8 = (byte) type.ordinal();
+        if (active == null || (!active.isEmpty() && timestamp - active.getCreatedAt() >= rollMillis)
+                || !appendToActive(id, timestamp, type8, senderBytes, recipientBytes,
+                content, contentOffset, contentLength)) {
+            roll(id, timestamp);
+            appendToActive(id, timestamp, type8, senderBytes, recipientBytes, content, contentOffset, contentLength);
+        }
+        lastRecordOffset = active.getCommitted() - length;
+        return length;
+    }
+
+    private boolean appendToActive(long id, long timestamp, byte type, byte[] sender, byte[] recipient,
+                                   ByteBuffer content, int contentOffset, int contentLength) {
+        if (!activeDirty) {
+            active.markDirty();
+            activeDirty = true;
+        }
+        return active.append(id, timestamp, type, sender, recipient, content, contentOffset, contentLength);
+    }
+
+    private void roll(long id, long timestamp) throws IOException {
+        if (active != null) {
+            active.seal();
+        }
+        active = LogSegment.create(directory, id, timestamp, segmentBytes, indexInterval);
+        activeDirty = false;
+        segments.add(active);
+    }
+
+    /**
+     * Force everything appended so far to disk
+     */
+    public void sync() {
+        if (active != null) {
+            active.sync();
+        }
+    }
+
+    /**
+     * Base id of the segment holding the last appended record
+     */
+    public long getLastSegmentBaseId() {
+        return active == null ? -1 : active.getBaseId();
+    }
+
+    /**
+     * Offset of the last appended record within its segment
+     */
+    public int getLastRecordOffset() {
+        return lastRecordOffset;
+    }
+
+    /**
+     * Read the record at a position saved from a cursor or getLastRecordOffset()
+     * @return false if the segment is gone or the offset is past its end
+     */
+    public boolean readAt(long segmentBaseId, int offset, Consumer<LogRecord> reader) {
+        for (LogSegment segment : segments) {
+            if (segment.getBaseId() != segmentBaseId) {
+                continue;
+            }
+            if (offset < LogSegment.HEADER_SIZE || offset >= segment.getCommitted()) {
+                return false;
+            }
+            LogSegment.Window window = segment.window(offset);
+            int local = offset - window.start;
+            LogRecord record = new LogRecord();
+            record.wrap(window.buffer, local, window.buffer.getInt(local + LogRecord.LENGTH_OFFSET));
+            reader.accept(record);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Open a cursor over records whose id is at least fromId, oldest segment first.
+     * Sealed segments entirely below fromId are skipped and the index finds where
+     * to start within the first one read. Within a segment records are in append
+     * order, which is nearly but not strictly id order.
+     */
+    public LogCursor cursorFromId(long fromId) {
+        return new LogCursor(segments, fromId, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Open a cursor over records with timestamps in [from, to), skipping sealed
+     * segments outside the range and reading only the index blocks that overlap it
+     */
+    public LogCursor cursorBetween(long from, long to) {
+        return new LogCursor(segments, Long.MIN_VALUE, from, to);
+    }
+
+    /**
+     * Visit records whose id is at least fromId until the visitor returns false
+     */
+    public void forEach(long fromId, Predicate<LogRecord> visitor) {
+        try (LogCursor cursor = cursorFromId(fromId)) {
+            visit(cursor, visitor);
+        }
+    }
+
+    /**
+     * Visit records with timestamps in [from, to) until the visitor returns false
+     */
+    public void forEachBetween(long from, long to, Predicate<LogRecord> visitor) {
+        try (LogCursor cursor = cursorBetween(from, to)) {
+            visit(cursor, visitor);
+        }
+    }
+
+    private static void visit(LogCursor cursor, Predicate<LogRecord> visitor) {
+        while (cursor.next()) {
+            if (!visitor.test(cursor.record())) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Replace sealed segments with block-compressed copies
+     * Safe to call off the writer thread: sealed segments are never written again,
+     * and readers holding the mapped original can finish with it
+     * @return bytes saved on disk
+     */
+    public long compressSealed() throws IOException {
+        long saved = 0;
+        for (LogSegment segment : segments) {
+            if (!segment.isSealed() || segment.isCompressed()) {
+                continue;
+            }
+            long before = segment.getDiskBytes();
+            LogSegment compressed = segment.compress();
+            segments.set(segments.indexOf(segment), compressed);
+            Files.delete(segment.getPath());
+            saved += before - compressed.getDiskBytes();
+        }
+        return saved;
+    }
+
+    /**
+     * Delete the oldest sealed segments while they are older than maxAgeMillis
+     * or the log takes more than maxBytes; the active segment is always kept
+     * Must not run concurrently with compressSealed()
+     * @param maxAgeMillis 0 for no age limit
+     * @param maxBytes 0 for no size limit
+     * @return the number of segments deleted
+     */
+    public int applyRetention(long maxAgeMillis, long maxBytes, long now) throws IOException {
+        long total = 0;
+        for (LogSegment segment : segments) {
+            total += segment.getDiskBytes();
+        }
+        int deleted = 0;
+        for (LogSegment segment : segments) {
+            if (!segment.isSealed()) {
+                break;
+            }
+            boolean expired = maxAgeMillis > 0 && segment.getMaxTimestamp() < now - maxAgeMillis;
+            if (!expired && (maxBytes <= 0 || total <= maxBytes)) {
+                break;
+            }
+            long bytes = segment.getDiskBytes();
+            segments.remove(segment);
+            segment.delete();
+            total -= bytes;
+            deleted++;
+        }
+        return deleted;
+    }
+
+    /**
+     * Earliest timestamp in the oldest segment, or Long.MAX_VALUE if the log is empty
+     */
+    public long getOldestTimestamp() {
+        for (LogSegment segment : segments) {
+            if (!segment.isEmpty()) {
+                return segment.getMinTimestamp();
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Sync and mark the active segment clean so the next open can skip scanning it
+     */
+    @Override
+    public void close() {
+        if (active != null) {
+            active.markClean();
+            activeDirty = false;
+        }
+    }
+}
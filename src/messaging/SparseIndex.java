@@ -0,0 +1,291 @@
+package messaging;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Sparse index over one log segment: one entry per block of records
+ *
+ * Each entry holds a block's start and end offsets and its min/max id and
+ * timestamp. Ids and timestamps are only nearly sorted in the log, so a lookup
+ * binary-searches the running maximum of earlier blocks to find where a range
+ * can start, and the running minimum of later blocks to find where it must end.
+ * Both are monotonic even when individual records are out of order, so no
+ * matching record is ever skipped.
+ *
+ * Persisted next to the segment as <baseId>.idx: 8-byte header ("SCIX",
+ * version, reserved) then ENTRY_SIZE-byte entries. The file is only trusted for
+ * sealed or cleanly closed segments; otherwise it is rebuilt from a scan.
+ *
+ * The writer thread adds entries; readers take a consistent prefix via view().
+ */
+final class SparseIndex {
+
+    static final String EXTENSION = ".idx";
+
+    private static final int MAGIC = 0x53434958; // "SCIX"
+    private static final short VERSION = 1;
+    private static final int FILE_HEADER_SIZE = 8;
+    private static final int ENTRY_SIZE = 40;
+
+    private static final class Blocks {
+        final int[] offsets;
+        final int[] ends;
+        final long[] minIds;
+        final long[] maxIds;
+        final long[] minTimestamps;
+        final long[] maxTimestamps;
+
+        Blocks(int capacity) {
+            offsets = new int[capacity];
+            ends = new int[capacity];
+            minIds = new long[capacity];
+            maxIds = new long[capacity];
+            minTimestamps = new long[capacity];
+            maxTimestamps = new long[capacity];
+        }
+
+        Blocks grow(int size) {
+            Blocks grown = new Blocks(Math.max(16, offsets.length * 2));
+            System.arraycopy(offsets, 0, grown.offsets, 0, size);
+            System.arraycopy(ends, 0, grown.ends, 0, size);
+            System.arraycopy(minIds, 0, grown.minIds, 0, size);
+            System.arraycopy(maxIds, 0, grown.maxIds, 0, size);
+            System.arraycopy(minTimestamps, 0, grown.minTimestamps, 0, size);
+            System.arraycopy(maxTimestamps, 0, grown.maxTimestamps, 0, size);
+            return grown;
+        }
+    }
+
+    /**
+     * Lookup view over a consistent prefix of the entries
+     * before[i] = max over blocks < i, after[i] = min over blocks >= i
+     */
+    static final class View {
+        private final Blocks blocks;
+        private final int size;
+        private final int indexedEnd;
+        private final long[] maxIdBefore;
+        private final long[] maxTimestampBefore;
+        private final long[] minTimestampAfter;
+
+        private View(Blocks blocks, int size) {
+            this.blocks = blocks;
+            this.size = size;
+            this.indexedEnd = size == 0 ? LogSegment.HEADER_SIZE : blocks.ends[size - 1];
+            maxIdBefore = new long[size + 1];
+            maxTimestampBefore = new long[size + 1];
+            minTimestampAfter = new long[size + 1];
+            maxIdBefore[0] = Long.MIN_VALUE;
+            maxTimestampBefore[0] = Long.MIN_VALUE;
+            for (int i = 0; i < size; i++) {
+                maxIdBefore[i + 1] = Math.max(maxIdBefore[i], blocks.maxIds[i]);
+                maxTimestampBefore[i + 1] = Math.max(maxTimestampBefore[i], blocks.maxTimestamps[i]);
+            }
+            minTimestampAfter[size] = Long.MAX_VALUE;
+            for (int i = size - 1; i >= 0; i--) {
+                minTimestampAfter[i] = Math.min(minTimestampAfter[i + 1], blocks.minTimestamps[i]);
+            }
+        }
+
+        /**
+         * End of the indexed blocks, where the unindexed tail starts
+         */
+        int indexedEnd() {
+            return indexedEnd;
+        }
+
+        /**
+         * Offset of the first block that can hold a record with timestamp >= from
+         */
+        int startForTimestamp(long from) {
+            return offsetOf(lastBelow(maxTimestampBefore, size, from));
+        }
+
+        /**
+         * Offset after which no indexed record has timestamp < to
+         */
+        int endForTimestamp(long to) {
+            return offsetOf(firstAtLeast(minTimestampAfter, size, to));
+        }
+
+        /**
+         * Offset of the first block that can hold a record with id >= fromId
+         */
+        int startForId(long fromId) {
+            return offsetOf(lastBelow(maxIdBefore, size, fromId));
+        }
+
+        private int offsetOf(int block) {
+            return block == size ? indexedEnd : blocks.offsets[block];
+        }
+    }
+
+    private final Path path;
+    private volatile Blocks blocks = new Blocks(16);
+    private volatile int size;
+    private volatile View view;
+    private int persisted;
+    private FileChannel channel;
+
+    SparseIndex(Path path) {
+        this.path = path;
+    }
+
+    static Path pathFor(Path segmentPath) {
+        String name = segmentPath.getFileName().toString();
+        // Shared by the mapped and compressed forms of a segment
+        return segmentPath.resolveSibling(name.substring(0, name.lastIndexOf('.')) + EXTENSION);
+    }
+
+    /**
+     * Load a persisted index
+     * @return the index, or null if the file is missing, damaged or does not end at segmentEnd
+     */
+    static SparseIndex load(Path path, int segmentEnd) throws IOException {
+        if (!Files.exists(path)) {
+            return null;
+        }
+        ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(path));
+        if (data.remaining() < FILE_HEADER_SIZE || data.getInt(0) != MAGIC || data.getShort(4) != VERSION
+                || (data.remaining() - FILE_HEADER_SIZE) % ENTRY_SIZE != 0) {
+            return null;
+        }
+        SparseIndex index = new SparseIndex(path);
+        data.position(FILE_HEADER_SIZE);
+        int expectedOffset = LogSegment.HEADER_SIZE;
+        while (data.hasRemaining()) {
+            int offset = data.getInt();
+            int end = data.getInt();
+            long minId = data.getLong();
+            long maxId = data.getLong();
+            long minTimestamp = data.getLong();
+            long maxTimestamp = data.getLong();
+            if (offset != expectedOffset || end <= offset) {
+                return null;
+            }
+            index.add(offset, end, minId, maxId, minTimestamp, maxTimestamp);
+            expectedOffset = end;
+        }
+        if (expectedOffset != segmentEnd) {
+            return null;
+        }
+        index.persisted = index.size;
+        return index;
+    }
+
+    /**
+     * Add the entry for a completed block covering [offset, end)
+     */
+    void add(int offset, int end, long minId, long maxId, long minTimestamp, long maxTimestamp) {
+        int n = size;
+        Blocks current = blocks;
+        if (n == current.offsets.length) {
+            current = current.grow(n);
+            blocks = current;
+        }
+        current.offsets[n] = offset;
+        current.ends[n] = end;
+        current.minIds[n] = minId;
+        current.maxIds[n] = maxId;
+        current.minTimestamps[n] = minTimestamp;
+        current.maxTimestamps[n] = maxTimestamp;
+        size = n + 1;
+    }
+
+    /**
+     * Lookup view over the entries added so far
+     */
+    View view() {
+        int n = size;
+        View current = view;
+        if (current == null || current.size != n) {
+            current = new View(blocks, n);
+            view = current;
+        }
+        return current;
+    }
+
+    /**
+     * Largest i in [0, size] with before[i] < key; before is non-decreasing and before[0] is MIN_VALUE
+     */
+    private static int lastBelow(long[] before, int size, long key) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (before[mid] < key) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return Math.min(low, size);
+    }
+
+    /**
+     * Smallest i in [0, size] with after[i] >= key; after is non-decreasing and after[size] is MAX_VALUE
+     */
+    private static int firstAtLeast(long[] after, int size, long key) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (after[mid] >= key) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Append entries added since the last call to the index file
+     */
+    void persist() throws IOException {
+        int n = size;
+        if (persisted == n) {
+            return;
+        }
+        if (channel == null) {
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            if (persisted == 0) {
+                channel.truncate(0);
+                ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE).putInt(MAGIC).putShort(VERSION);
+                header.clear();
+                channel.write(header, 0);
+            }
+        }
+        Blocks current = blocks;
+        ByteBuffer out = ByteBuffer.allocate((n - persisted) * ENTRY_SIZE);
+        for (int i = persisted; i < n; i++) {
+            out.putInt(current.offsets[i]).putInt(current.ends[i])
+                    .putLong(current.minIds[i]).putLong(current.maxIds[i])
+                    .putLong(current.minTimestamps[i]).putLong(current.maxTimestamps[i]);
+        }
+        out.flip();
+        long position = FILE_HEADER_SIZE + (long) persisted * ENTRY_SIZE;
+        while (out.hasRemaining()) {
+            position += channel.write(out, position);
+        }
+        persisted = n;
+    }
+
+    void force() throws IOException {
+        if (channel != null) {
+            channel.force(false);
+        }
+    }
+
+    void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+}
@@ -1,10 +1,32 @@
 package server;
 
+import main.java.com.securechat.common.MessageIdGenerator;
+import main.java.com.securechat.common.MessageType;
+import main.java.com.securechat.server.ClientHandler;
+import main.java.com.securechat.common.Message;
+import messaging.MessageLogger;
+import messaging.OfflineQueue;
+import messaging.PrivateMessageHandler;
+import messaging.RecentHistory;
+import messaging.SegmentedLog;
+import utils.AesGcmCipher;
+import utils.CipherSuite;
+import utils.EncryptionUtil;
+import utils.MessageCipher;
+
+import javax.crypto.SecretKey;
+
 import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
@@ -20,25 +42,189 @@ public class ChatServer {
     
     private static final int DEFAULT_PORT = 8888;
     private static final int MAX_CLIENTS = 100;
+    private static final int MAX_SESSIONS = 65536;
+    private static final int OUTBOUND_QUEUE_FRAMES = 1024;
+    private static final long OUTBOUND_QUEUE_BYTES = 4L * 1024 * 1024;
     
     private ServerSocket serverSocket;
-    private final ExecutorService threadPool;
-    private final Map<String, Object> connectedClients;  // Changed to Object temporarily
+    private ServerSocketChannel serverChannel;
+    private ExecutorService threadPool;
+    private ExecutorService writerPool;
+    private EventLoop[] eventLoops;
+    private final ClientRegistry connectedClients;
+    private final ProtocolHandler protocolHandler;
+    private final ExecutionMode mode;
+    private final ServerConfig config;
+    private final List<CipherSuite> enabledSuites;
+    private final CipherSuite defaultSuite;
+    // Room cipher per suite id, null when group messages are sent in clear
+    private volatile SecretKey roomKey;
+    private volatile MessageCipher[] roomCiphers;
+    private final int outboundQueueFrames;
+    private final long outboundQueueBytes;
+    private final SlowConsumerPolicy slowConsumerPolicy;
+    private final TlsContext tlsContext;
+    private final SessionHandshake sessionHandshake;
+    private final MessageLogger messageLogger;
+    private final RecentHistory recentHistory;
+    private final int joinScrollback;
+    private final OfflineDelivery offlineDelivery;
+    private final PrivateMessageHandler privateMessageHandler;
+    private final PresenceBroadcaster presence;
     private volatile boolean running = false;
     private final int port;
     
     public ChatServer(int port) {
+        this(port, ServerConfig.load());
+    }
+    
+    public ChatServer(int port, ServerConfig config) {
         this.port = port;
-        this.threadPool = Executors.newFixedThreadPool(MAX_CLIENTS);
-        this.connectedClients = new ConcurrentHashMap<>();
+        this.config = config;
+        this.mode = ExecutionMode.fromString(config.getString("server.mode", null), ExecutionMode.THREAD_POOL);
+        this.connectedClients = new ClientRegistry(config.getInt("server.max.sessions", MAX_SESSIONS));
+        this.protocolHandler = new ProtocolHandler(this);
+        this.privateMessageHandler = new RegistryPrivateMessageHandler(this, connectedClients);
+        MessageIdGenerator.setDefault(new MessageIdGenerator(config.getInt("server.node.id", 0)));
+        this.outboundQueueFrames = config.getInt("outbound.queue.max.frames", OUTBOUND_QUEUE_FRAMES);
+        this.outboundQueueBytes = config.getLong("outbound.queue.max.bytes", OUTBOUND_QUEUE_BYTES);
+        this.slowConsumerPolicy = SlowConsumerPolicy.fromString(
+                config.getString("outbound.queue.policy", null), SlowConsumerPolicy.DROP_OLDEST);
+        
+        CipherSuite configuredSuite = EncryptionUtil.getSuite(config.getString("encryption.mode", AesGcmCipher.NAME));
+        this.defaultSuite = configuredSuite != null ? configuredSuite : EncryptionUtil.getSuite(AesGcmCipher.NAME);
+        List<CipherSuite> suites = EncryptionUtil.parseSuites(config.getString("encryption.suites", null));
+        if (!suites.contains(defaultSuite)) {
+            suites.add(defaultSuite);
+        }
+        this.enabledSuites = suites;
+        this.tlsContext = TlsContext.fromConfig(config);
+        this.sessionHandshake = SessionHandshake.fromConfig(config);
+        this.messageLogger = config.getBoolean("logging.enabled", true) ? createMessageLogger(config) : null;
+        this.recentHistory = new RecentHistory(config.getInt("history.recent.messages", 200),
+                config.getLong("history.recent.bytes", 256 * 1024),
+                config.getInt("history.recent.conversations", 10000),
+                config.getLong("history.recent.total.bytes", 64L * 1024 * 1024), messageLogger);
+        this.joinScrollback = config.getInt("history.join.messages", 50);
+        if (joinScrollback > 0) {
+            recentHistory.load(RecentHistory.ROOM);
+        }
+        this.offlineDelivery = config.getBoolean("offline.enabled", true)
+                ? createOfflineDelivery(config, connectedClients) : null;
+        this.presence = config.getBoolean("presence.enabled", true)
+                ? new PresenceBroadcaster(connectedClients, config.getLong("presence.interval.ms", 200)) : null;
+        String roomKeyValue = config.getString("encryption.room.key", null);
+        if (roomKeyValue != null) {
+            SecretKey configuredKey = EncryptionUtil.stringToKey(roomKeyValue);
+            checkRoomKey(configuredKey);
+            setRoomKey(configuredKey);
+        }
+    }
+    
+    /**
+     * Drop enabled suites that cannot use the configured room key, e.g. chacha20
+     * with a 128-bit AES key; fails only if the default suite cannot use it
+     */
+    private void checkRoomKey(SecretKey key) {
+        for (Iterator<CipherSuite> suites = enabledSuites.iterator(); suites.hasNext(); ) {
+            CipherSuite suite = suites.next();
+            try {
+                suite.newCipher(key);
+            } catch (IllegalArgumentException e) {
+                String problem = "encryption.room.key does not fit cipher suite " + suite.getName() + ": "
+                        + e.getMessage();
+                if (suite == defaultSuite) {
+                    throw new IllegalArgumentException(problem
+                            + "; use a 256-bit key or another encryption.mode");
+                }
+                System.err.println(problem + ", disabling it");
+                suites.remove();
+            }
+        }
+    }
+    
+    /**
+     * Create the message logger from the logging.* settings
+     * logging.format=binary stores messages in memory-mapped segments instead of daily text files
+     */
+    private static MessageLogger createMessageLogger(ServerConfig config) {
+        Path directory = Paths.get(config.getString("logging.directory", "chat_history"));
+        long syncInterval = config.getLong("logging.sync.interval.ms", 1000);
+        long syncBytes = config.getLong("logging.sync.bytes", 1024 * 1024);
+        int maxPending = config.getInt("logging.queue.max", 65536);
+        int searchFlushDocs = config.getBoolean("logging.search.enabled", true)
+                ? config.getInt("logging.search.flush.docs", 65536) : 0;
+        if ("binary".equalsIgnoreCase(config.getString("logging.format", "text"))) {
+            try {
+                SegmentedLog log = SegmentedLog.open(directory,
+                        config.getInt("logging.segment.bytes", 64 * 1024 * 1024),
+                        config.getLong("logging.segment.roll.ms", 3600000),
+                        config.getInt("logging.index.interval", 128));
+                return startMaintenance(new MessageLogger(log, syncInterval, syncBytes, maxPending,
+                        searchFlushDocs), config);
+            } catch (IOException e) {
+                System.err.println("Failed to open binary message log, using text files: " + e.getMessage());
+            }
+        }
+        return startMaintenance(new MessageLogger(directory, syncInterval, syncBytes, maxPending,
+                searchFlushDocs), config);
+    }
+    
+    /**
+     * Open the store-and-forward queue for offline users from the offline.* settings
+     * @return null if the queue cannot be opened, so such messages are dropped as before
+     */
+    private static OfflineDelivery createOfflineDelivery(ServerConfig config, ClientRegistry clients) {
+        try {
+            OfflineQueue queue = OfflineQueue.open(Paths.get(config.getString("offline.directory", "offline_queue")),
+                    config.getInt("offline.segment.bytes", 16 * 1024 * 1024),
+                    config.getInt("offline.max.per.user", 10000),
+                    config.getInt("offline.max.users", 100000));
+            return new OfflineDelivery(clients, queue, config.getInt("offline.batch.size", 100),
+                    config.getLong("offline.delivery.interval.ms", 50));
+        } catch (IOException e) {
+            System.err.println("Failed to open offline message queue: " + e.getMessage());
+            return null;
+        }
+    }
+    
+    /**
+     * Start compression and retention of old history from the logging.retention.* settings
+     */
+    private static MessageLogger startMaintenance(MessageLogger logger, ServerConfig config) {
+        logger.startMaintenance(config.getLong("logging.retention.days", 0) * 24 * 60 * 60 * 1000,
+                config.getLong("logging.retention.bytes", 0),
+                config.getBoolean("logging.compression.enabled", true),
+                config.getLong("logging.maintenance.interval.ms", 600000));
+        return logger;
     }
     
     /**
      * Start the server and begin accepting client connections
      */
     public void start() {
+        if (mode == ExecutionMode.REACTOR) {
+            startReactor();
+        } else {
+            startThreadPool();
+        }
+    }
+    
+    /**
+     * Blocking mode: one thread per client running a ClientHandler,
+     * either from a fixed platform pool or a fresh virtual thread
+     */
+    private void startThreadPool() {
+        threadPool = mode == ExecutionMode.VIRTUAL_THREADS
+                ? newVirtualThreadExecutor()
+                : Executors.newFixedThreadPool(config.getInt("threadpool.size", MAX_CLIENTS));
+        // Writers block on slow sockets, so they never share the reader pool
+        writerPool = mode == ExecutionMode.VIRTUAL_THREADS ? threadPool : Executors.newCachedThreadPool();
         try {
-            serverSocket = new ServerSocket(port);
+            // Accept through a channel so client sockets can write shared ByteBuffers directly
+            serverChannel = ServerSocketChannel.open();
+            serverSocket = serverChannel.socket();
+            serverSocket.bind(new InetSocketAddress(port));
             running = true;
             System.out.println("🚀 Chat Server started on port " + port);
             System.out.println("Waiting for client connections...");
@@ -47,10 +233,12 @@ public class ChatServer {
             while (running) {
                 try {
                     Socket clientSocket = serverSocket.accept();
+                    if (tlsContext != null) {
+                        clientSocket = tlsContext.wrap(clientSocket);
+                    }
                     
-                    // TODO: Create new client handler and submit to thread pool
-                    // ClientHandler clientHandler = new ClientHandler(clientSocket, this);
-                    // threadPool.execute(clientHandler);
+                    ClientHandler clientHandler = new ClientHandler(clientSocket, this);
+                    threadPool.execute(clientHandler);
                     
                     System.out.println("New client connection from: " + clientSocket.getRemoteSocketAddress());
                     
@@ -67,6 +255,64 @@ public class ChatServer {
         }
     }
     
+    /**
+     * Create a virtual-thread-per-task executor
+     * Looked up reflectively so the server still builds and runs on Java 17,
+     * where it falls back to the fixed platform pool
+     */
+    private ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            System.out.println("Running client handlers on virtual threads");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.err.println("Virtual threads require Java 21 or higher. Using fixed thread pool");
+            return Executors.newFixedThreadPool(config.getInt("threadpool.size", MAX_CLIENTS));
+        }
+    }
+    
+    /**
+     * Non-blocking mode: the calling thread accepts, a small set of
+     * selector loops (one per core by default) owns all client I/O
+     */
+    private void startReactor() {
+        int loopCount = config.getInt("server.event.loops", 0);
+        if (loopCount <= 0) {
+            loopCount = Runtime.getRuntime().availableProcessors();
+        }
+        
+        try {
+            eventLoops = new EventLoop[loopCount];
+            for (int i = 0; i < loopCount; i++) {
+                eventLoops[i] = new EventLoop("event-loop-" + i, this);
+                eventLoops[i].start();
+            }
+            
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(port), config.getInt("server.accept.backlog", 1024));
+            running = true;
+            System.out.println("🚀 Chat Server started on port " + port + " (" + loopCount + " event loops)");
+            System.out.println("Waiting for client connections...");
+            
+            int next = 0;
+            while (running) {
+                try {
+                    SocketChannel channel = serverChannel.accept();
+                    eventLoops[next].register(channel);
+                    next = (next + 1) % loopCount;
+                } catch (IOException e) {
+                    if (running) {
+                        System.err.println("Error accepting client connection: " + e.getMessage());
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to start server on port " + port + ": " + e.getMessage());
+        } finally {
+            stop();
+        }
+    }
+    
     /**
      * Stop the server and cleanup resources
      */
@@ -74,20 +320,42 @@ public class ChatServer {
         running = false;
         
         // Close all client connections
-        // TODO: Implement when ClientHandler is available
-        // for (ClientHandler handler : connectedClients.values()) {
-        //     handler.stop();
-        // }
+        connectedClients.forEach(ClientConnection::stop);
         connectedClients.clear();
         
-        // Shutdown thread pool
-        threadPool.shutdown();
+        // Shutdown thread pool and event loops
+        if (threadPool != null) {
+            threadPool.shutdown();
+        }
+        if (writerPool != null) {
+            writerPool.shutdown();
+        }
+        if (eventLoops != null) {
+            for (EventLoop loop : eventLoops) {
+                if (loop != null) {
+                    loop.shutdown();
+                }
+            }
+        }
+        
+        if (presence != null) {
+            presence.close();
+        }
+        if (offlineDelivery != null) {
+            offlineDelivery.close();
+        }
+        if (messageLogger != null) {
+            messageLogger.close();
+        }
         
         // Close server socket
         try {
             if (serverSocket != null && !serverSocket.isClosed()) {
                 serverSocket.close();
             }
+            if (serverChannel != null && serverChannel.isOpen()) {
+                serverChannel.close();
+            }
         } catch (IOException e) {
             System.err.println("Error closing server socket: " + e.getMessage());
         }
@@ -96,28 +364,169 @@ public class ChatServer {
     }
     
     /**
-     * Add a client to the connected clients map
+     * Add a client to the connected clients registry
+     * @return false if the user ID is already connected or the server is full
      */
-    public void addClient(String userId, Object handler) {
-        connectedClients.put(userId, handler);
+    public boolean addClient(String userId, ClientConnection handler) {
+        return addClient(userId, handler, null);
+    }
+    
+    /**
+     * Add a client, running onAccepted before it can receive any broadcast
+     * @return false if the user ID is already connected or the server is full
+     */
+    public boolean addClient(String userId, ClientConnection handler, Runnable onAccepted) {
+        if (!connectedClients.register(userId, handler, onAccepted)) {
+            return false;
+        }
         System.out.println("Client added: " + userId + ". Total clients: " + connectedClients.size());
+        if (offlineDelivery != null) {
+            offlineDelivery.userConnected(userId, handler);
+        }
+        return true;
     }
     
     /**
-     * Remove a client from the connected clients map
+     * Remove a client from the connected clients registry
      */
-    public void removeClient(Object handler) {
-        // TODO: Implementation by Team Member 1
+    public void removeClient(ClientConnection handler) {
+        if (presence != null) {
+            presence.unsubscribe(handler);
+        }
+        if (connectedClients.unregister(handler) == null) {
+            return;
+        }
         System.out.println("Client removed. Total clients: " + connectedClients.size());
     }
     
     /**
      * Broadcast a message to all connected clients
      * Used for group chat functionality
+     *
+     * The payload is encoded (and encrypted with the room key, if one is set)
+     * exactly once; each client only receives a duplicate view of that buffer
      */
     public void broadcastMessage(Object message) {
-        // TODO: Implementation by Team Member 1
-        System.out.println("Broadcasting message to " + connectedClients.size() + " clients");
+        broadcast(WireMessage.server(String.valueOf(message), roomCiphers));
+    }
+    
+    /**
+     * Broadcast a chat message from one user to all connected clients
+     */
+    public void broadcastGroupMessage(String sender, String content) {
+        RoutedMessage message = RoutedMessage.obtain(MessageType.GROUP_MESSAGE, sender, null, content);
+        try {
+            route(message);
+        } finally {
+            message.recycle();
+        }
+    }
+    
+    /**
+     * Deliver a pooled message from a client: group messages go to everyone,
+     * private messages to their recipient
+     * The caller keeps ownership and recycles the message afterwards
+     * @return false if a private message could neither be sent nor queued
+     */
+    public boolean route(RoutedMessage message) {
+        if (messageLogger != null) {
+            messageLogger.logMessage(message.getId(), message.getTimestamp(), message.getType(), message.getSender(),
+                    message.getRecipient(), message.getContent(), message.getContentOffset(),
+                    message.getContentLength());
+        }
+        // Only a connected recipient starts a conversation; the log still has the rest
+        boolean known = message.getType() != MessageType.PRIVATE_MESSAGE
+                || connectedClients.get(message.getRecipient()) != null;
+        recentHistory.add(message.getId(), message.getTimestamp(), message.getType(), message.getSender(),
+                message.getRecipient(), message.getContent(), message.getContentOffset(), message.getContentLength(),
+                known);
+        switch (message.getType()) {
+            case GROUP_MESSAGE:
+                broadcast(WireMessage.of(message, roomCiphers));
+                return true;
+            case PRIVATE_MESSAGE:
+                // Offline recipients, and those still receiving older messages, get it from their queue
+                if (offlineDelivery != null && offlineDelivery.shouldQueue(message.getRecipient())) {
+                    return offlineDelivery.enqueue(message);
+                }
+                return sendPrivateMessage(WireMessage.of(message, null), message.getRecipient());
+            default:
+                return true;
+        }
+    }
+    
+    /**
+     * Send a joining client the room's latest messages, framed like live ones
+     * Runs before the client can receive broadcasts, so scrollback comes first
+     * Runs on the client's I/O thread, so only what the room's ring holds is sent
+     */
+    public void sendScrollback(ClientConnection client) {
+        if (joinScrollback <= 0) {
+            return;
+        }
+        for (Message message : recentHistory.getCached(RecentHistory.ROOM, joinScrollback)) {
+            client.send(WireMessage.group(message.getSenderId(), message.getContent(), roomCiphers)
+                    .frameFor(client).duplicate());
+        }
+    }
+    
+    /**
+     * Get the in-memory scrollback of the room and private conversations
+     */
+    public RecentHistory getRecentHistory() {
+        return recentHistory;
+    }
+    
+    /**
+     * Fan a message out to every client, encoding it at most once per protocol
+     */
+    private void broadcast(WireMessage message) {
+        for (int i = 0, limit = connectedClients.sessionLimit(); i < limit; i++) {
+            ClientConnection client = connectedClients.getBySession(i);
+            if (client != null) {
+                client.send(message.frameFor(client).duplicate(), true);
+            }
+        }
+    }
+    
+    /**
+     * Set the shared room key used to encrypt group broadcasts, or null for plain text
+     * Each enabled cipher suite gets its own cipher over the key
+     */
+    public void setRoomKey(SecretKey roomKey) {
+        this.roomKey = roomKey;
+        if (roomKey == null) {
+            this.roomCiphers = null;
+            return;
+        }
+        MessageCipher[] ciphers = new MessageCipher[EncryptionUtil.getSuiteCount()];
+        for (CipherSuite suite : enabledSuites) {
+            ciphers[suite.getId()] = suite.newCipher(roomKey);
+        }
+        this.roomCiphers = ciphers;
+    }
+    
+    /**
+     * Get the room key handed to clients after the CONNECT key exchange, or null
+     */
+    public SecretKey getRoomKey() {
+        return roomKey;
+    }
+    
+    /**
+     * Get the CONNECT key exchange, or null when encryption.key.exchange is off
+     */
+    public SessionHandshake getSessionHandshake() {
+        return sessionHandshake;
+    }
+    
+    /**
+     * Choose the cipher suite for a client from its comma-separated preference list
+     * Clients that offer nothing, or nothing enabled, get encryption.mode
+     */
+    public CipherSuite negotiateSuite(String offered) {
+        CipherSuite suite = EncryptionUtil.negotiate(offered, enabledSuites);
+        return suite != null ? suite : defaultSuite;
     }
     
     /**
@@ -125,18 +534,100 @@ public class ChatServer {
      * MODULE 4: Private chat feature - Send direct messages (client-to-client routing via server)
      */
     public void sendPrivateMessage(Object message, String recipientId) {
-        // TODO: Implementation by Team Member 4
-        Object recipient = connectedClients.get(recipientId);
-        if (recipient != null) {
-            try {
-                // recipient.sendMessage(message);
-                System.out.println("Sending private message to: " + recipientId);
-            } catch (Exception e) {
-                System.err.println("Failed to send private message to " + recipientId + ": " + e.getMessage());
-            }
+        sendPrivateMessage(WireMessage.server(String.valueOf(message), null), recipientId);
+    }
+    
+    /**
+     * Route a direct message from one user to another
+     * @return false if the recipient is offline and the message could not be queued
+     */
+    public boolean sendPrivateMessage(String sender, String content, String recipientId) {
+        RoutedMessage message = RoutedMessage.obtain(MessageType.PRIVATE_MESSAGE, sender, recipientId, content);
+        try {
+            return route(message);
+        } finally {
+            message.recycle();
+        }
+    }
+    
+    private boolean sendPrivateMessage(WireMessage message, String recipientId) {
+        ClientConnection recipient = connectedClients.get(recipientId);
+        if (recipient == null) {
+            return false;
+        }
+        try {
+            recipient.send(message.frameFor(recipient).duplicate());
+            return true;
+        } catch (Exception e) {
+            System.err.println("Failed to send private message to " + recipientId + ": " + e.getMessage());
+            return false;
         }
     }
     
+    /**
+     * Keep a client's online list current with join/leave deltas from a version it has applied
+     * @param version 0 to start from the full list
+     */
+    public void subscribePresence(ClientConnection client, long version) {
+        if (presence != null) {
+            presence.subscribe(client, version);
+        } else {
+            client.send(WireMessage.error("Presence is disabled").frameFor(client).duplicate());
+        }
+    }
+    
+    /**
+     * A client has shown its offline messages up to this id
+     */
+    public void acknowledgeOffline(ClientConnection client, long id) {
+        if (offlineDelivery != null && client.getUsername() != null) {
+            offlineDelivery.acknowledged(client.getUsername(), client, id);
+        }
+    }
+    
+    /**
+     * Get the private messaging API over this server's connected clients
+     */
+    public PrivateMessageHandler getPrivateMessageHandler() {
+        return privateMessageHandler;
+    }
+    
+    /**
+     * Create a bounded outbound queue using the configured limits and policy
+     */
+    public OutboundQueue newOutboundQueue() {
+        return new OutboundQueue(outboundQueueFrames, outboundQueueBytes, slowConsumerPolicy);
+    }
+    
+    /**
+     * Get the TLS settings for client connections, or null when ssl.enabled is off
+     */
+    public TlsContext getTlsContext() {
+        return tlsContext;
+    }
+    
+    /**
+     * Run a blocking-mode writer task that drains one client's outbound queue
+     */
+    public void executeWriter(Runnable writer) {
+        writerPool.execute(writer);
+    }
+    
+    /**
+     * Get the outbound queue depth for a connected user, or -1 if not connected
+     */
+    public int getOutboundQueueDepth(String userId) {
+        ClientConnection client = connectedClients.get(userId);
+        return client == null ? -1 : client.getOutboundQueueDepth();
+    }
+    
+    /**
+     * Get the shared protocol parser used by all connection types
+     */
+    public ProtocolHandler getProtocolHandler() {
+        return protocolHandler;
+    }
+    
     /**
      * Get count of connected clients
      */
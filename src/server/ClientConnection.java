@@ -0,0 +1,94 @@
+package server;
+
+import utils.CipherSuite;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A connected client as seen by the server, independent of the I/O model
+ * Implemented by the blocking ClientHandler and the non-blocking NioConnection
+ */
+public interface ClientConnection {
+
+    /**
+     * Get the username, or null before CONNECT
+     */
+    String getUsername();
+
+    /**
+     * Set the username once the client has sent CONNECT
+     */
+    void setUsername(String username);
+
+    /**
+     * Get the registry session id, or ClientRegistry.NO_SESSION if not registered
+     */
+    int getSessionId();
+
+    /**
+     * Set by the ClientRegistry on register/unregister
+     */
+    void setSessionId(int sessionId);
+
+    /**
+     * Whether the client negotiated the binary frame protocol at CONNECT
+     */
+    boolean isBinaryProtocol();
+
+    /**
+     * Get the cipher suite used for this client's encrypted broadcasts
+     */
+    CipherSuite getCipherSuite();
+
+    /**
+     * Set at CONNECT, before the client is registered
+     */
+    void setCipherSuite(CipherSuite cipherSuite);
+
+    /**
+     * Whether the client acknowledges offline messages once it has shown them
+     */
+    boolean isAcknowledging();
+
+    /**
+     * Set at CONNECT, before the client is registered
+     */
+    void setAcknowledging(boolean acknowledging);
+
+    /**
+     * Send a text line to this client
+     */
+    void sendMessage(String message);
+
+    /**
+     * Send an already encoded frame; the buffer is a view owned by this
+     * connection but its contents are shared and must not be modified
+     * The frame is never dropped by the slow-consumer policy
+     */
+    default void send(ByteBuffer frame) {
+        send(frame, false);
+    }
+
+    /**
+     * Send an already encoded frame
+     * @param droppable whether a full outbound queue may discard it; only
+     *        broadcast chat is, everything else must arrive
+     */
+    void send(ByteBuffer frame, boolean droppable);
+
+    /**
+     * Number of frames queued but not yet written to the socket
+     */
+    int getOutboundQueueDepth();
+
+    /**
+     * Number of frames sent to this client that were discarded unwritten
+     * because the connection closed
+     */
+    long getLostFrameCount();
+
+    /**
+     * Close the connection
+     */
+    void stop();
+}
@@ -0,0 +1,298 @@
+package server;
+
+import messaging.PresenceChange;
+import messaging.PresenceSnapshot;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * Registry of connected clients with O(1) add, remove and lookup
+ *
+ * Every registered connection is given a dense session id that indexes a slot
+ * array, so removal needs no search and broadcast can walk the slots without
+ * allocating. Free session ids are kept in per-shard lock-free stacks to spread
+ * CAS contention when thousands of clients connect and disconnect at once.
+ *
+ * Every register and unregister also bumps a membership version. Presence
+ * queries share one immutable PresenceSnapshot per version, so polling between
+ * changes costs two volatile reads and allocates nothing. The last
+ * CHANGE_LOG_SIZE changes are kept in a ring indexed by version, so a caller
+ * holding an older version can ask for just what changed since.
+ */
+public class ClientRegistry {
+
+    public static final int NO_SESSION = -1;
+
+    private static final int PAD = 16; // keep shard heads on separate cache lines
+    private static final long TAG_INCREMENT = 1L << 32;
+    private static final int CHANGE_LOG_SIZE = 4096; // power of two
+
+    private final ConcurrentHashMap<String, ClientConnection> byUser;
+    private final AtomicReferenceArray<ClientConnection> slots;
+    private final AtomicReferenceArray<String> slotUsers;
+    private final int[] nextFree;
+    private final AtomicLongArray freeHeads;
+    private final AtomicIntegerArray freshCounters;
+    private final AtomicInteger highWater = new AtomicInteger();
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicLong version = new AtomicLong();
+    private final Object snapshotLock = new Object();
+    private volatile PresenceSnapshot snapshot = PresenceSnapshot.EMPTY;
+    private final AtomicReferenceArray<PresenceChange> changes = new AtomicReferenceArray<>(CHANGE_LOG_SIZE);
+    private final int capacity;
+    private final int shardMask;
+
+    public ClientRegistry(int capacity) {
+        this.capacity = capacity;
+        int shards = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors()) * 2 - 1);
+        this.shardMask = shards - 1;
+        this.byUser = new ConcurrentHashMap<>(Math.min(capacity, 1 << 16));
+        this.slots = new AtomicReferenceArray<>(capacity);
+        this.slotUsers = new AtomicReferenceArray<>(capacity);
+        this.nextFree = new int[capacity];
+        this.freeHeads = new AtomicLongArray(shards * PAD);
+        this.freshCounters = new AtomicIntegerArray(shards * PAD);
+    }
+
+    /**
+     * Register a connection under a user ID
+     * @return false if the name is taken or the registry is full
+     */
+    public boolean register(String userId, ClientConnection connection) {
+        return register(userId, connection, null);
+    }
+
+    /**
+     * Register a connection, running onAccepted once the name is reserved but
+     * before the connection is visible to broadcasts, so anything it queues is
+     * delivered ahead of the first broadcast
+     * @return false if the name is taken or the registry is full
+     */
+    public boolean register(String userId, ClientConnection connection, Runnable onAccepted) {
+        int sessionId = allocate();
+        if (sessionId == NO_SESSION) {
+            System.err.println("Client registry full (" + capacity + " sessions), rejecting " + userId);
+            return false;
+        }
+        if (byUser.putIfAbsent(userId, connection) != null) {
+            release(sessionId);
+            return false;
+        }
+        if (onAccepted != null) {
+            onAccepted.run();
+        }
+        slotUsers.set(sessionId, userId);
+        slots.set(sessionId, connection);
+        connection.setSessionId(sessionId);
+        size.incrementAndGet();
+        recordChange(userId, true);
+        return true;
+    }
+
+    /**
+     * Remove a connection using its session id, no scan required
+     * @return the user ID it was registered under, or null if not registered
+     */
+    public String unregister(ClientConnection connection) {
+        int sessionId = connection.getSessionId();
+        if (sessionId == NO_SESSION || !slots.compareAndSet(sessionId, connection, null)) {
+            return null;
+        }
+        connection.setSessionId(NO_SESSION);
+        String userId = slotUsers.getAndSet(sessionId, null);
+        byUser.remove(userId, connection);
+        size.decrementAndGet();
+        recordChange(userId, false);
+        release(sessionId);
+        return userId;
+    }
+
+    /**
+     * Find a connection by user ID
+     */
+    public ClientConnection get(String userId) {
+        return byUser.get(userId);
+    }
+
+    /**
+     * Find a connection by session id
+     */
+    public ClientConnection getBySession(int sessionId) {
+        return slots.get(sessionId);
+    }
+
+    /**
+     * Reverse lookup from a connection to the user ID it was registered under
+     */
+    public String getUserId(ClientConnection connection) {
+        int sessionId = connection.getSessionId();
+        return sessionId == NO_SESSION ? null : slotUsers.get(sessionId);
+    }
+
+    /**
+     * Upper bound (exclusive) of session ids ever handed out; iterate
+     * 0..sessionLimit() with getBySession() for an allocation-free walk
+     */
+    public int sessionLimit() {
+        return highWater.get();
+    }
+
+    /**
+     * Visit every registered connection
+     */
+    public void forEach(Consumer<ClientConnection> action) {
+        for (int i = 0, limit = highWater.get(); i < limit; i++) {
+            ClientConnection connection = slots.get(i);
+            if (connection != null) {
+                action.accept(connection);
+            }
+        }
+    }
+
+    /**
+     * Membership version, incremented by every register and unregister
+     */
+    public long getVersion() {
+        return version.get();
+    }
+
+    /**
+     * Get the registered user IDs, rebuilding the snapshot only if membership
+     * changed since it was last built
+     * A snapshot holds everyone registered at its version and possibly users
+     * who joined or left while it was built, whose changes carry later versions
+     */
+    public PresenceSnapshot snapshot() {
+        PresenceSnapshot current = snapshot;
+        if (current.getVersion() == version.get()) {
+            return current;
+        }
+        // One rebuild per change, however many callers are waiting for it
+        synchronized (snapshotLock) {
+            current = snapshot;
+            long latest = version.get();
+            if (current.getVersion() == latest) {
+                return current;
+            }
+            List<String> users = new ArrayList<>(size.get());
+            for (int i = 0, limit = highWater.get(); i < limit; i++) {
+                String userId = slotUsers.get(i);
+                if (userId != null) {
+                    users.add(userId);
+                }
+            }
+            current = new PresenceSnapshot(latest, users.toArray(new String[0]));
+            snapshot = current;
+            return current;
+        }
+    }
+
+    private void recordChange(String userId, boolean joined) {
+        long next = version.incrementAndGet();
+        changes.set((int) next & (CHANGE_LOG_SIZE - 1), new PresenceChange(next, userId, joined));
+    }
+
+    /**
+     * Get the changes after a version, oldest first
+     * Stops early at a change whose version is taken but not yet recorded, so
+     * the result always ends at a consistent version
+     * @return null if changes after the version are no longer in the ring
+     */
+    public List<PresenceChange> changesSince(long since) {
+        long latest = version.get();
+        if (since < 0 || since > latest || latest - since > CHANGE_LOG_SIZE) {
+            return null;
+        }
+        List<PresenceChange> result = new ArrayList<>((int) (latest - since));
+        for (long next = since + 1; next <= latest; next++) {
+            PresenceChange change = changes.get((int) next & (CHANGE_LOG_SIZE - 1));
+            if (change == null || change.getVersion() < next) {
+                break;
+            }
+            if (change.getVersion() > next) {
+                // Overwritten while reading
+                return null;
+            }
+            result.add(change);
+        }
+        return result;
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Remove every registered connection
+     */
+    public void clear() {
+        forEach(this::unregister);
+    }
+
+    // Session id allocation: slots are striped across shards (id % shards),
+    // each shard reuses ids through its own Treiber stack tagged against ABA
+
+    private int allocate() {
+        int home = (int) Thread.currentThread().getId() & shardMask;
+        for (int i = 0; i <= shardMask; i++) {
+            int sessionId = allocateFrom((home + i) & shardMask);
+            if (sessionId != NO_SESSION) {
+                return sessionId;
+            }
+        }
+        return NO_SESSION;
+    }
+
+    private int allocateFrom(int shard) {
+        int headIndex = shard * PAD;
+        while (true) {
+            long head = freeHeads.get(headIndex);
+            int top = (int) head - 1;
+            if (top < 0) break;
+            long next = (head & ~0xFFFFFFFFL) + TAG_INCREMENT + (nextFree[top] + 1);
+            if (freeHeads.compareAndSet(headIndex, head, next)) {
+                return top;
+            }
+        }
+
+        int shards = shardMask + 1;
+        int ordinal = freshCounters.get(headIndex);
+        while (true) {
+            long sessionId = (long) ordinal * shards + shard;
+            if (sessionId >= capacity) {
+                return NO_SESSION;
+            }
+            int witness = freshCounters.compareAndExchange(headIndex, ordinal, ordinal + 1);
+            if (witness == ordinal) {
+                int id = (int) sessionId;
+                highWater.accumulateAndGet(id + 1, Math::max);
+                return id;
+            }
+            ordinal = witness;
+        }
+    }
+
+    private void release(int sessionId) {
+        int headIndex = (sessionId & shardMask) * PAD;
+        while (true) {
+            long head = freeHeads.get(headIndex);
+            nextFree[sessionId] = (int) head - 1;
+            long next = (head & ~0xFFFFFFFFL) + TAG_INCREMENT + (sessionId + 1);
+            if (freeHeads.compareAndSet(headIndex, head, next)) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package server;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Single-threaded selector loop that owns reads and writes for many connections
+ * Other threads hand work to the loop through execute(), never touching its keys directly
+ */
+public class EventLoop implements Runnable {
+
+    private final ChatServer server;
+    private final Selector selector;
+    private final Thread thread;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    private volatile boolean running = true;
+
+    public EventLoop(String name, ChatServer server) throws IOException {
+        this.server = server;
+        this.selector = Selector.open();
+        this.thread = new Thread(this, name);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    /**
+     * Check whether the caller is running on this loop's thread
+     */
+    public boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Run a task on the loop thread, waking the selector if needed
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if (!inEventLoop() && wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Hand an accepted channel to this loop
+     */
+    public void register(SocketChannel channel) {
+        execute(() -> {
+            try {
+                channel.configureBlocking(false);
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                key.attach(new NioConnection(channel, key, this, server));
+                System.out.println("Client connected from: " + channel.getRemoteAddress());
+            } catch (IOException e) {
+                System.err.println("Failed to register client: " + e.getMessage());
+                closeQuietly(channel);
+            }
+        });
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                selector.select();
+                wakeupPending.set(false);
+
+                Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+                while (selected.hasNext()) {
+                    SelectionKey key = selected.next();
+                    selected.remove();
+                    try {
+                        processKey(key);
+                    } catch (RuntimeException e) {
+                        // One broken connection must not strand every other one on this loop
+                        System.err.println("Connection failed on event loop: " + e);
+                        closeConnection(key);
+                    }
+                }
+                runTasks();
+            } catch (IOException e) {
+                System.err.println("Event loop error: " + e.getMessage());
+            }
+        }
+        closeAll();
+    }
+
+    private void processKey(SelectionKey key) {
+        NioConnection connection = (NioConnection) key.attachment();
+        if (!key.isValid()) {
+            connection.close();
+            return;
+        }
+        if (key.isReadable()) {
+            connection.onReadable();
+        }
+        if (key.isValid() && key.isWritable()) {
+            connection.onWritable();
+        }
+    }
+
+    /**
+     * Close a connection whose handler failed, even if closing it fails too
+     */
+    private static void closeConnection(SelectionKey key) {
+        key.cancel();
+        try {
+            if (key.attachment() instanceof NioConnection) {
+                ((NioConnection) key.attachment()).close();
+            }
+        } catch (RuntimeException e) {
+            System.err.println("Error closing failed connection: " + e.getMessage());
+        }
+        closeQuietly((SocketChannel) key.channel());
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                System.err.println("Event loop task failed: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Stop the loop and close every connection it owns
+     */
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    private void closeAll() {
+        for (SelectionKey key : selector.keys()) {
+            Object attachment = key.attachment();
+            if (attachment instanceof NioConnection) {
+                ((NioConnection) attachment).close();
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            System.err.println("Error closing selector: " + e.getMessage());
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+            // Already failing, nothing else to do
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package server;
+
+/**
+ * How the server schedules client I/O
+ */
+public enum ExecutionMode {
+    THREAD_POOL,    // One pooled platform thread per client (blocking I/O)
+    VIRTUAL_THREADS, // One virtual thread per client (blocking I/O, Java 21+)
+    REACTOR;        // Selector-based event loops, one per core (non-blocking I/O)
+
+    /**
+     * Parse a mode name from configuration, e.g. "reactor" or "thread_pool"
+     */
+    public static ExecutionMode fromString(String value, ExecutionMode defaultMode) {
+        if (value == null) {
+            return defaultMode;
+        }
+        try {
+            return valueOf(value.trim().toUpperCase().replace('-', '_'));
+        } catch (IllegalArgumentException e) {
+            System.err.println("Unknown server mode: " + value + ". Using " + defaultMode);
+            return defaultMode;
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Helpers for building outbound wire frames
+ * Frames are read-only so one encoded buffer can be shared by many connections,
+ * each taking its own duplicate() view with an independent position
+ */
+public final class Frames {
+
+    private Frames() {
+    }
+
+    /**
+     * Encode a text protocol line (UTF-8, newline terminated)
+     */
+    public static ByteBuffer textLine(String message) {
+        return ByteBuffer.wrap((message + "\n").getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+    }
+}
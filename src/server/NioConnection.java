@@ -0,0 +1,380 @@
+package server;
+
+import main.java.com.securechat.common.Frame;
+import main.java.com.securechat.common.FrameCodec;
+import main.java.com.securechat.common.FrameDecoder;
+import utils.BufferPool;
+import utils.CipherSuite;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Non-blocking connection state for one client owned by an EventLoop
+ * All channel reads and writes happen on the loop thread; other threads only enqueue
+ *
+ * Reads go into a pooled direct buffer that is held only while a partial line or
+ * frame is pending, so idle connections cost no read buffer at all. Frames are
+ * parsed in place and fields decoded only when the protocol handler asks for them.
+ *
+ * With ssl.enabled the socket is wrapped in a TlsChannel; the handshake and all
+ * record processing stay on the loop thread except for the engine's delegated tasks.
+ */
+public class NioConnection implements ClientConnection {
+
+    private static final int MAX_INBOUND_SIZE = FrameCodec.MAX_FRAME_LENGTH + 8;
+
+    private static final int PROTOCOL_UNKNOWN = 0;
+    private static final int PROTOCOL_TEXT = 1;
+    private static final int PROTOCOL_BINARY = 2;
+    private static final int WRITE_BATCH = 16;
+
+    private final SocketChannel channel;
+    private final TlsChannel tls;
+    private final ReadableByteChannel in;
+    private final GatheringByteChannel out;
+    private final SelectionKey key;
+    private final EventLoop loop;
+    private final ChatServer server;
+    private final OutboundQueue outbound;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final ByteBuffer[] writeBatch = new ByteBuffer[WRITE_BATCH];
+    private int batchStart;
+    private int batchEnd;
+
+    private final BufferPool bufferPool = BufferPool.DEFAULT;
+    private final FrameDecoder decoder = new FrameDecoder(bufferPool);
+    private ByteBuffer inbound;
+    private volatile int protocol = PROTOCOL_UNKNOWN;
+    private volatile String username;
+    private volatile CipherSuite cipherSuite;
+    private volatile boolean acknowledging;
+    private volatile int sessionId = ClientRegistry.NO_SESSION;
+    private volatile boolean closed;
+
+    public NioConnection(SocketChannel channel, SelectionKey key, EventLoop loop, ChatServer server)
+            throws IOException {
+        this.channel = channel;
+        this.key = key;
+        this.loop = loop;
+        this.server = server;
+        this.outbound = server.newOutboundQueue();
+        TlsContext tlsContext = server.getTlsContext();
+        this.tls = tlsContext == null ? null : tlsContext.newChannel(channel, () -> loop.execute(this::resumeTls));
+        this.in = tls != null ? tls : channel;
+        this.out = tls != null ? tls : channel;
+    }
+
+    /**
+     * Read whatever is available and dispatch every complete line or frame
+     */
+    void onReadable() {
+        try {
+            int read;
+            do {
+                if (inbound == null) {
+                    inbound = bufferPool.acquire();
+                }
+                read = in.read(inbound);
+                if (read < 0) {
+                    close();
+                    return;
+                }
+                inbound.flip();
+                if (protocol == PROTOCOL_UNKNOWN) {
+                    detectProtocol();
+                }
+                if (protocol == PROTOCOL_BINARY) {
+                    processFrames();
+                } else if (protocol == PROTOCOL_TEXT) {
+                    processLines();
+                }
+                if (closed) return;
+                if (!inbound.hasRemaining()) {
+                    releaseInbound();
+                } else {
+                    inbound.compact();
+                    ensureCapacity();
+                    if (closed) return;
+                }
+                // TLS may hold more decrypted records than one read returned, and the
+                // selector will not fire again for bytes already taken off the socket
+            } while (tls != null && (read > 0 || tls.hasBufferedPlaintext()));
+            if (tls != null) {
+                if (tls.isTaskRunning()) {
+                    // Stop read events until the handshake task completes, see resumeTls
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                }
+                flush();
+            }
+        } catch (IOException e) {
+            System.err.println("Error reading message: " + e.getMessage());
+            close();
+        }
+    }
+
+    /**
+     * Binary clients open with FrameCodec.PREAMBLE, text clients with an ASCII command
+     */
+    private void detectProtocol() {
+        if (!inbound.hasRemaining()) return;
+        if (inbound.get(inbound.position()) != FrameCodec.MAGIC) {
+            protocol = PROTOCOL_TEXT;
+        } else if (inbound.remaining() >= FrameCodec.PREAMBLE.length) {
+            inbound.position(inbound.position() + FrameCodec.PREAMBLE.length);
+            protocol = PROTOCOL_BINARY;
+        }
+    }
+
+    private void processFrames() throws IOException {
+        Frame frame;
+        while (!closed && (frame = decoder.decode(inbound)) != null) {
+            if (!server.getProtocolHandler().handle(this, frame)) {
+                close();
+                return;
+            }
+        }
+    }
+
+    private void processLines() {
+        int start = inbound.position();
+        int end = inbound.limit();
+
+        for (int i = start; i < end && !closed; i++) {
+            if (inbound.get(i) != '\n') continue;
+
+            String line = decodeLine(inbound, start, i - start);
+            start = i + 1;
+            inbound.position(start);
+
+            if (!server.getProtocolHandler().handle(this, line)) {
+                close();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Grow the inbound buffer when a single line or frame does not fit,
+     * up to the protocol maximum
+     */
+    private void ensureCapacity() {
+        if (inbound.hasRemaining()) return;
+        if (inbound.capacity() >= MAX_INBOUND_SIZE) {
+            System.err.println("Message too long from " + username + ", closing connection");
+            close();
+            return;
+        }
+        ByteBuffer larger = ByteBuffer.allocateDirect(Math.min(inbound.capacity() * 2, MAX_INBOUND_SIZE));
+        inbound.flip();
+        larger.put(inbound);
+        bufferPool.release(inbound);
+        inbound = larger;
+    }
+
+    private void releaseInbound() {
+        bufferPool.release(inbound);
+        inbound = null;
+    }
+
+    private static String decodeLine(ByteBuffer buffer, int offset, int length) {
+        if (length > 0 && buffer.get(offset + length - 1) == '\r') {
+            length--;
+        }
+        return FrameCodec.decodeUtf8(buffer, offset, length);
+    }
+
+    /**
+     * Queue a text line for this client; safe to call from any thread
+     */
+    @Override
+    public void sendMessage(String message) {
+        send(WireMessage.server(message, null).frameFor(this));
+    }
+
+    @Override
+    public boolean isBinaryProtocol() {
+        return protocol == PROTOCOL_BINARY;
+    }
+
+    @Override
+    public CipherSuite getCipherSuite() {
+        return cipherSuite;
+    }
+
+    @Override
+    public void setCipherSuite(CipherSuite cipherSuite) {
+        this.cipherSuite = cipherSuite;
+    }
+
+    @Override
+    public boolean isAcknowledging() {
+        return acknowledging;
+    }
+
+    @Override
+    public void setAcknowledging(boolean acknowledging) {
+        this.acknowledging = acknowledging;
+    }
+
+    /**
+     * Queue a pre-encoded frame for this client; safe to call from any thread
+     * A full queue is handled by the configured SlowConsumerPolicy
+     */
+    @Override
+    public void send(ByteBuffer frame, boolean droppable) {
+        if (closed) {
+            outbound.discard(1);
+            return;
+        }
+        if (!outbound.offer(frame, droppable)) {
+            // Also false when close() shut the queue meanwhile; that is no slow consumer
+            if (!closed && !outbound.isClosed()) {
+                System.err.println("Slow consumer " + username + ", disconnecting");
+                stop();
+            }
+            return;
+        }
+        scheduleFlush();
+    }
+
+    @Override
+    public int getOutboundQueueDepth() {
+        return outbound.depth() + (batchEnd - batchStart);
+    }
+
+    @Override
+    public long getLostFrameCount() {
+        return outbound.lostFrames();
+    }
+
+    private void scheduleFlush() {
+        if (loop.inEventLoop()) {
+            flush();
+        } else if (flushScheduled.compareAndSet(false, true)) {
+            loop.execute(() -> {
+                flushScheduled.set(false);
+                flush();
+            });
+        }
+    }
+
+    void onWritable() {
+        flush();
+    }
+
+    /**
+     * Continue the TLS handshake after its delegated tasks finished; runs on the loop
+     */
+    private void resumeTls() {
+        if (closed) return;
+        key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        onReadable();
+    }
+
+    /**
+     * Write queued buffers with gathering writes until the socket would block
+     */
+    private void flush() {
+        if (closed) return;
+        try {
+            if (tls != null) {
+                if (!tls.flushOutput()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                if (tls.isHandshaking()) {
+                    // Queued frames go out once the handshake completes on the read side
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            while (true) {
+                if (batchStart == batchEnd) {
+                    batchStart = 0;
+                    batchEnd = outbound.drainTo(writeBatch);
+                    if (batchEnd == 0) break;
+                }
+                out.write(writeBatch, batchStart, batchEnd - batchStart);
+                while (batchStart < batchEnd && !writeBatch[batchStart].hasRemaining()) {
+                    writeBatch[batchStart++] = null;
+                }
+                if (batchStart < batchEnd) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            if (tls != null && tls.hasPendingOutput()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            } else {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            }
+        } catch (IOException e) {
+            System.err.println("Error writing to " + username + ": " + e.getMessage());
+            close();
+        }
+    }
+
+    @Override
+    public String getUsername() {
+        return username;
+    }
+
+    @Override
+    public void setUsername(String username) {
+        this.username = username;
+    }
+
+    @Override
+    public int getSessionId() {
+        return sessionId;
+    }
+
+    @Override
+    public void setSessionId(int sessionId) {
+        this.sessionId = sessionId;
+    }
+
+    /**
+     * Close the connection from any thread
+     */
+    @Override
+    public void stop() {
+        loop.execute(this::close);
+    }
+
+    /**
+     * Close the connection; must run on the loop thread
+     */
+    void close() {
+        if (closed) return;
+        closed = true;
+        key.cancel();
+        if (tls != null) {
+            tls.close();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("Error during cleanup: " + e.getMessage());
+        }
+        // The unwritten rest of the gathering batch is lost with the queued frames
+        outbound.discard(batchEnd - batchStart);
+        outbound.close();
+        if (inbound != null) {
+            releaseInbound();
+        }
+        Arrays.fill(writeBatch, null);
+        batchStart = batchEnd = 0;
+        if (username != null) {
+            server.removeClient(this);
+            System.out.println("Client disconnected: " + username);
+        }
+    }
+}
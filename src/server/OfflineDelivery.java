@@ -0,0 +1,217 @@
+package server;
+
+import main.java.com.securechat.common.FrameCodec;
+import main.java.com.securechat.common.Message;
+import main.java.com.securechat.common.MessageType;
+import messaging.OfflineQueue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stores private messages for offline users and forwards them on reconnect
+ *
+ * A message for a user who is not connected, or who still has older messages
+ * waiting, goes into the OfflineQueue instead of being dropped. When the user
+ * is back, one background thread sends their queue in batches, and removes a
+ * batch from the queue and sends the next one only once the previous one is
+ * acknowledged. A returning user with thousands of messages waiting therefore
+ * holds one batch in memory at a time and does not crowd other traffic out of
+ * the reader threads or event loops.
+ *
+ * A client that connects with acks=1 (FLAG_ACKS on a binary CONNECT) gets an
+ * ACK:id line or ACK frame after each batch and echoes it once it has shown
+ * the batch. For those clients delivery is at least once: a batch that is not
+ * acknowledged, wherever it was lost, is sent again on the next connection.
+ *
+ * Other clients cannot confirm anything, so their batch counts as delivered
+ * once the connection has written it to the socket without discarding frames.
+ * Anything still in TLS or kernel buffers when such a connection drops is lost.
+ */
+public class OfflineDelivery {
+
+    /**
+     * A user whose queue is being sent over one connection
+     */
+    private static final class Drain {
+        final ClientConnection connection;
+        // Id of the last message of the batch being written, or 0 if none
+        long inFlight;
+        // The connection's lost frame count when that batch was sent
+        long lostAtSend;
+        // Last id the client acknowledged, written by its I/O thread
+        volatile long acknowledged;
+
+        Drain(ClientConnection connection) {
+            this.connection = connection;
+        }
+    }
+
+    private final ClientRegistry clients;
+    private final OfflineQueue queue;
+    private final int batchSize;
+    private final ConcurrentHashMap<String, Drain> draining = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * @param batchSize messages sent per batch; keep it below the outbound queue limit
+     * @param intervalMillis how often batches are checked and sent
+     */
+    public OfflineDelivery(ClientRegistry clients, OfflineQueue queue, int batchSize, long intervalMillis) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Offline batch size must be positive: " + batchSize);
+        }
+        this.clients = clients;
+        this.queue = queue;
+        this.batchSize = batchSize;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "offline-delivery");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::deliver, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Whether a private message for this user must be queued rather than sent
+     * live: they are offline, or older messages for them are still waiting
+     */
+    public boolean shouldQueue(String recipient) {
+        return clients.get(recipient) == null || queue.hasPending(recipient);
+    }
+
+    /**
+     * Queue a private message for later delivery
+     * @return false if the queue refused it
+     */
+    public boolean enqueue(RoutedMessage message) {
+        String recipient = message.getRecipient();
+        if (!queue.enqueue(message.getId(), message.getTimestamp(), message.getSender(), recipient,
+                message.getContent(), message.getContentOffset(), message.getContentLength())) {
+            System.err.println("Offline queue full, dropping private message for " + recipient);
+            return false;
+        }
+        // The recipient may have connected since shouldQueue()
+        ClientConnection connection = clients.get(recipient);
+        if (connection != null) {
+            draining.putIfAbsent(recipient, new Drain(connection));
+        }
+        return true;
+    }
+
+    /**
+     * Start forwarding a user's queued messages after they connect
+     */
+    public void userConnected(String userId, ClientConnection connection) {
+        if (queue.hasPending(userId)) {
+            draining.put(userId, new Drain(connection));
+        }
+    }
+
+    /**
+     * Record a client's ACK; the delivery thread removes the batch from the queue
+     */
+    public void acknowledged(String userId, ClientConnection connection, long id) {
+        Drain drain = draining.get(userId);
+        if (drain != null && drain.connection == connection) {
+            drain.acknowledged = id;
+        }
+    }
+
+    /**
+     * Send one batch per waiting user whose previous batch has been acknowledged
+     */
+    private void deliver() {
+        for (Map.Entry<String, Drain> entry : draining.entrySet()) {
+            String userId = entry.getKey();
+            Drain drain = entry.getValue();
+            try {
+                if (clients.get(userId) != drain.connection) {
+                    // Gone, or reconnected on a new connection that gets its own drain
+                    draining.remove(userId, drain);
+                    continue;
+                }
+                if (drain.inFlight != 0) {
+                    if (drain.connection.isAcknowledging()) {
+                        if (drain.acknowledged != drain.inFlight) {
+                            continue;
+                        }
+                    } else if (drain.connection.getOutboundQueueDepth() > 0) {
+                        continue;
+                    } else if (drain.connection.getLostFrameCount() != drain.lostAtSend) {
+                        // Closing with part of the batch unwritten: keep it for the next connection
+                        drain.inFlight = 0;
+                        continue;
+                    }
+                    queue.acknowledge(userId, drain.inFlight);
+                    drain.inFlight = 0;
+                }
+                List<Message> batch = queue.peek(userId, batchSize);
+                if (batch.isEmpty()) {
+                    draining.remove(userId, drain);
+                    // A message deferred while this drain was finishing
+                    if (queue.hasPending(userId)) {
+                        draining.putIfAbsent(userId, new Drain(drain.connection));
+                    }
+                    continue;
+                }
+                drain.lostAtSend = drain.connection.getLostFrameCount();
+                for (Message message : batch) {
+                    drain.connection.send(WireMessage.privateMessage(message.getSenderId(), message.getContent())
+                            .frameFor(drain.connection).duplicate());
+                }
+                drain.inFlight = batch.get(batch.size() - 1).getId();
+                if (drain.connection.isAcknowledging()) {
+                    drain.connection.send(ackRequest(drain.connection, drain.inFlight));
+                }
+                System.out.println("Forwarded " + batch.size() + " offline messages to " + userId);
+            } catch (Exception e) {
+                System.err.println("Failed to forward offline messages to " + userId + ": " + e.getMessage());
+            }
+        }
+        try {
+            queue.sync();
+        } catch (IOException e) {
+            System.err.println("Failed to sync offline queue: " + e.getMessage());
+        }
+    }
+
+    private static ByteBuffer ackRequest(ClientConnection connection, long id) {
+        return connection.isBinaryProtocol()
+                ? FrameCodec.encode(MessageType.ACK, 0, Long.toString(id))
+                : Frames.textLine("ACK:" + id);
+    }
+
+    /**
+     * Number of pending messages for a user
+     */
+    public int getPendingCount(String userId) {
+        return queue.getPendingCount(userId);
+    }
+
+    /**
+     * Stop forwarding and close the queue; anything unacknowledged is kept for next time
+     */
+    public void close() {
+        scheduler.shutdown();
+        try {
+            if (!scheduler.awaitTermination(5, TimeUnit.SECONDS)) {
+                scheduler.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            scheduler.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        try {
+            queue.close();
+        } catch (IOException e) {
+            System.err.println("Failed to close offline queue: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,317 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue of frames waiting to be written to one client
+ *
+ * Producers (broadcasting threads) never block: when the queue is full by frame
+ * count or bytes the SlowConsumerPolicy decides what happens. The I/O layer takes
+ * frames out before writing them, so a partially written frame is never dropped
+ * or merged. Uses a ReentrantLock rather than synchronized so virtual-thread
+ * writers waiting in take() do not pin their carrier.
+ *
+ * Only frames offered as droppable (broadcast chat) are ever discarded by
+ * DROP_OLDEST. Control frames, private messages and replayed history are
+ * pinned: if they alone fill the queue the connection is closed instead, since
+ * a client missing one of them is left in a broken state. Pinned frames are
+ * queued inside a small wrapper so droppable broadcast frames, the bulk of
+ * the traffic, cost no extra allocation.
+ */
+public class OutboundQueue {
+
+    /**
+     * A queued frame that DROP_OLDEST must not discard
+     */
+    private static final class Pinned {
+        final ByteBuffer frame;
+
+        Pinned(ByteBuffer frame) {
+            this.frame = frame;
+        }
+    }
+
+    // ByteBuffer for droppable frames, Pinned for the rest
+    private final ArrayDeque<Object> frames = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final int maxFrames;
+    private final long maxBytes;
+    private final SlowConsumerPolicy policy;
+
+    private long queuedBytes;
+    private int pinnedFrames;
+    private long droppedFrames;
+    // Frames accepted but never written because the connection closed
+    private long lostFrames;
+    // Whether the frame last returned by take() is still being written
+    private boolean writing;
+    private boolean closed;
+
+    public OutboundQueue(int maxFrames, long maxBytes, SlowConsumerPolicy policy) {
+        this.maxFrames = maxFrames;
+        this.maxBytes = maxBytes;
+        this.policy = policy;
+    }
+
+    /**
+     * Add a pinned frame, applying the slow-consumer policy if the queue is full
+     * @return false if the connection should be closed
+     */
+    public boolean offer(ByteBuffer frame) {
+        return offer(frame, false);
+    }
+
+    /**
+     * Add a frame, applying the slow-consumer policy if the queue is full
+     * @param droppable whether DROP_OLDEST may discard it
+     * @return false if the connection should be closed
+     */
+    public boolean offer(ByteBuffer frame, boolean droppable) {
+        int size = frame.remaining();
+        lock.lock();
+        try {
+            if (closed) {
+                lostFrames++;
+                return false;
+            }
+            if (frames.size() >= maxFrames || queuedBytes + size > maxBytes) {
+                if (!makeRoom(size)) {
+                    if (droppable && policy == SlowConsumerPolicy.DROP_OLDEST) {
+                        // Only pinned frames left ahead of it, so this one goes instead
+                        droppedFrames++;
+                        return true;
+                    }
+                    return false;
+                }
+            }
+            if (droppable) {
+                frames.addLast(frame);
+            } else {
+                frames.addLast(new Pinned(frame));
+                pinnedFrames++;
+            }
+            queuedBytes += size;
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean makeRoom(int incoming) {
+        switch (policy) {
+            case DROP_OLDEST:
+                Iterator<Object> queued = frames.iterator();
+                while (pinnedFrames < frames.size() && queued.hasNext()
+                        && (frames.size() >= maxFrames || queuedBytes + incoming > maxBytes)) {
+                    Object entry = queued.next();
+                    if (entry instanceof ByteBuffer) {
+                        queued.remove();
+                        queuedBytes -= ((ByteBuffer) entry).remaining();
+                        droppedFrames++;
+                    }
+                }
+                return frames.size() < maxFrames && queuedBytes + incoming <= maxBytes;
+            case COALESCE:
+                if (queuedBytes + incoming > maxBytes || maxFrames < 2) {
+                    return false;
+                }
+                // Merge the oldest quarter: frees slots for the next offers too, so
+                // the copying is spread out rather than repeated on every overflow
+                int count = Math.min(frames.size(), Math.max(2, frames.size() / 4));
+                int bytes = 0;
+                Iterator<Object> oldest = frames.iterator();
+                for (int i = 0; i < count; i++) {
+                    bytes += unwrap(oldest.next()).remaining();
+                }
+                ByteBuffer merged = ByteBuffer.allocate(bytes);
+                boolean pinned = false;
+                for (int i = 0; i < count; i++) {
+                    Object entry = frames.pollFirst();
+                    if (entry instanceof Pinned) {
+                        pinned = true;
+                        pinnedFrames--;
+                    }
+                    merged.put(unwrap(entry));
+                }
+                merged.flip();
+                if (pinned) {
+                    frames.addFirst(new Pinned(merged.asReadOnlyBuffer()));
+                    pinnedFrames++;
+                } else {
+                    frames.addFirst(merged.asReadOnlyBuffer());
+                }
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Take the oldest entry's frame; caller holds the lock and the queue is not empty
+     */
+    private ByteBuffer removeFirst() {
+        Object entry = frames.pollFirst();
+        if (entry instanceof Pinned) {
+            pinnedFrames--;
+        }
+        ByteBuffer frame = unwrap(entry);
+        queuedBytes -= frame.remaining();
+        return frame;
+    }
+
+    private static ByteBuffer unwrap(Object entry) {
+        return entry instanceof Pinned ? ((Pinned) entry).frame : (ByteBuffer) entry;
+    }
+
+    /**
+     * Remove the next frame without waiting, or null if empty
+     */
+    public ByteBuffer poll() {
+        lock.lock();
+        try {
+            return frames.isEmpty() ? null : removeFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Move up to batch.length frames into the array for a gathering write
+     * @return number of frames moved
+     */
+    public int drainTo(ByteBuffer[] batch) {
+        lock.lock();
+        try {
+            int count = 0;
+            while (count < batch.length && !frames.isEmpty()) {
+                batch[count++] = removeFirst();
+            }
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait for the next frame; used by blocking writer threads
+     * The frame counts towards depth() until the next call, which means it was written
+     * @return the frame, or null once the queue is closed
+     */
+    public ByteBuffer take() throws InterruptedException {
+        lock.lock();
+        try {
+            writing = false;
+            while (frames.isEmpty()) {
+                if (closed) {
+                    return null;
+                }
+                notEmpty.await();
+            }
+            writing = true;
+            return removeFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Count frames taken out by drainTo() that will never be written
+     */
+    public void discard(int count) {
+        lock.lock();
+        try {
+            lostFrames += count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reject further frames, discard pending ones and wake any waiting writer
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            lostFrames += frames.size() + (writing ? 1 : 0);
+            writing = false;
+            frames.clear();
+            pinnedFrames = 0;
+            queuedBytes = 0;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Number of frames waiting to be written, including one a take() caller is writing
+     */
+    public int depth() {
+        lock.lock();
+        try {
+            return frames.size() + (writing ? 1 : 0);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Number of bytes waiting to be written
+     */
+    public long queuedBytes() {
+        lock.lock();
+        try {
+            return queuedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Number of droppable frames discarded by DROP_OLDEST
+     */
+    public long droppedFrames() {
+        lock.lock();
+        try {
+            return droppedFrames;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Number of frames accepted but never written because the connection closed:
+     * queued or being written at close(), passed to discard(), or offered afterwards
+     */
+    public long lostFrames() {
+        lock.lock();
+        try {
+            return lostFrames;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Whether close() has been called
+     */
+    public boolean isClosed() {
+        lock.lock();
+        try {
+            return closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isEmpty() {
+        return depth() == 0;
+    }
+}
@@ -0,0 +1,222 @@
+package server;
+
+import main.java.com.securechat.common.FrameCodec;
+import main.java.com.securechat.common.MessageType;
+import messaging.PresenceChange;
+import messaging.PresenceSnapshot;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps subscribed clients' online lists current with join/leave deltas
+ *
+ * A client subscribes with the membership version it last applied (USERS:version,
+ * or a USER_LIST frame). Every interval one thread sends each subscriber what
+ * changed since its version and advances it:
+ *   Text:   PRESENCE:from:to:+alice,-bob
+ *   Binary: PRESENCE frame with fields from, to, then one +user or -user each
+ * Only a subscriber whose version has fallen out of the registry's change log,
+ * or who has none yet, gets the full list instead:
+ *   Text:   USERS:version:alice,bob,carol
+ *   Binary: USER_LIST frame with fields version, then one user each
+ * Each user appears once per delta with their latest state, and applying a
+ * change twice is harmless, so a client just adds or removes names.
+ *
+ * All subscribers at the same version share one encoded frame, so a churn
+ * event costs one small frame per subscriber instead of the whole list. A
+ * client that sees a delta not starting at its own version (say one was dropped
+ * by its outbound queue) subscribes again with that version.
+ */
+public class PresenceBroadcaster {
+
+    private static final long NO_VERSION = -1;
+
+    private final ClientRegistry clients;
+    private final ConcurrentHashMap<ClientConnection, AtomicLong> subscribers = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler;
+    // Whether an early publish is already queued for new subscriptions
+    private final AtomicBoolean publishQueued = new AtomicBoolean();
+    // Frames of the last full list sent, touched only by the scheduler thread
+    private PresenceSnapshot snapshot;
+    private ByteBuffer snapshotText;
+    private ByteBuffer snapshotBinary;
+
+    /**
+     * @param intervalMillis how often changes are collected and sent
+     */
+    public PresenceBroadcaster(ClientRegistry clients, long intervalMillis) {
+        this.clients = clients;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "presence");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::publish, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Subscribe a client, or acknowledge the version it has applied
+     * It is brought up to date straight away rather than at the next interval
+     * @param version the client's last applied version, or 0 for the full list
+     */
+    public void subscribe(ClientConnection client, long version) {
+        long base = version > 0 && version <= clients.getVersion() ? version : NO_VERSION;
+        AtomicLong current = subscribers.putIfAbsent(client, new AtomicLong(base));
+        if (current != null) {
+            current.set(base);
+        }
+        if (publishQueued.compareAndSet(false, true)) {
+            scheduler.execute(this::publish);
+        }
+    }
+
+    public void unsubscribe(ClientConnection client) {
+        subscribers.remove(client);
+    }
+
+    public int getSubscriberCount() {
+        return subscribers.size();
+    }
+
+    /**
+     * Send every subscriber that is behind its delta, or the full list
+     */
+    private void publish() {
+        publishQueued.set(false);
+        long latest = clients.getVersion();
+        // Encoded delta per starting version, shared by everyone starting there
+        Map<Long, Delta> deltas = new HashMap<>();
+        for (Map.Entry<ClientConnection, AtomicLong> entry : subscribers.entrySet()) {
+            ClientConnection client = entry.getKey();
+            AtomicLong version = entry.getValue();
+            try {
+                if (client.getSessionId() == ClientRegistry.NO_SESSION) {
+                    subscribers.remove(client, version);
+                    continue;
+                }
+                long base = version.get();
+                if (base == latest) {
+                    continue;
+                }
+                Delta delta = deltas.computeIfAbsent(base, this::delta);
+                if (delta == null) {
+                    PresenceSnapshot current = snapshot();
+                    client.send((client.isBinaryProtocol() ? snapshotBinary : snapshotText).duplicate());
+                    // Lost to a newer subscribe() from the client, which it sees next round
+                    version.compareAndSet(base, current.getVersion());
+                } else if (delta.to > base) {
+                    client.send((client.isBinaryProtocol() ? delta.binary() : delta.text()).duplicate());
+                    version.compareAndSet(base, delta.to);
+                }
+            } catch (Exception e) {
+                System.err.println("Failed to send presence to " + client.getUsername() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Collapse the changes after a version to each user's latest state
+     * @return null if the changes are no longer available
+     */
+    private Delta delta(long since) {
+        if (since == NO_VERSION) {
+            return null;
+        }
+        List<PresenceChange> changes = clients.changesSince(since);
+        if (changes == null) {
+            return null;
+        }
+        Map<String, Boolean> latest = new LinkedHashMap<>();
+        for (PresenceChange change : changes) {
+            latest.remove(change.getUserId());
+            latest.put(change.getUserId(), change.isJoined());
+        }
+        long to = changes.isEmpty() ? since : changes.get(changes.size() - 1).getVersion();
+        return new Delta(since, to, latest);
+    }
+
+    /**
+     * The registry's current list, encoded once per version
+     */
+    private PresenceSnapshot snapshot() {
+        PresenceSnapshot current = clients.snapshot();
+        if (current != snapshot) {
+            List<String> users = current.getUsers();
+            String[] fields = new String[users.size() + 1];
+            fields[0] = Long.toString(current.getVersion());
+            for (int i = 0; i < users.size(); i++) {
+                fields[i + 1] = users.get(i);
+            }
+            // Usernames cannot contain commas (see ProtocolHandler), so the join is unambiguous
+            snapshotText = Frames.textLine("USERS:" + current.getVersion() + ":" + String.join(",", users));
+            snapshotBinary = FrameCodec.encode(MessageType.USER_LIST, 0, fields).asReadOnlyBuffer();
+            snapshot = current;
+        }
+        return current;
+    }
+
+    /**
+     * Stop sending presence updates
+     */
+    public void close() {
+        scheduler.shutdownNow();
+        subscribers.clear();
+    }
+
+    /**
+     * What changed between two versions, encoded lazily per protocol
+     */
+    private static final class Delta {
+        final long from;
+        final long to;
+        final Map<String, Boolean> users;
+        private ByteBuffer text;
+        private ByteBuffer binary;
+
+        Delta(long from, long to, Map<String, Boolean> users) {
+            this.from = from;
+            this.to = to;
+            this.users = users;
+        }
+
+        ByteBuffer text() {
+            if (text == null) {
+                StringBuilder line = new StringBuilder("PRESENCE:").append(from).append(':').append(to).append(':');
+                boolean first = true;
+                for (Map.Entry<String, Boolean> user : users.entrySet()) {
+                    if (!first) {
+                        line.append(',');
+                    }
+                    line.append(user.getValue() ? '+' : '-').append(user.getKey());
+                    first = false;
+                }
+                text = Frames.textLine(line.toString());
+            }
+            return text;
+        }
+
+        ByteBuffer binary() {
+            if (binary == null) {
+                String[] fields = new String[users.size() + 2];
+                fields[0] = Long.toString(from);
+                fields[1] = Long.toString(to);
+                int i = 2;
+                for (Map.Entry<String, Boolean> user : users.entrySet()) {
+                    fields[i++] = (user.getValue() ? "+" : "-") + user.getKey();
+                }
+                binary = FrameCodec.encode(MessageType.PRESENCE, 0, fields).asReadOnlyBuffer();
+            }
+            return binary;
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package server;
+
+import main.java.com.securechat.common.Frame;
+import main.java.com.securechat.common.FrameCodec;
+import main.java.com.securechat.common.MessageType;
+import utils.CipherSuite;
+
+import java.security.InvalidKeyException;
+import java.util.Base64;
+
+/**
+ * Parses client messages and routes them through the server
+ * Shared by every connection type so the protocol lives in one place
+ *
+ * Text protocol: TYPE:data
+ * CONNECT:username[;suites=chacha20,gcm][;key=<X25519 key share>][;ticket=<resumption ticket>][;acks=1]
+ * GROUP:message
+ * PRIVATE:recipient:message
+ * USERS[:version]   subscribe to presence deltas (see PresenceBroadcaster)
+ * ACK:id            offline messages up to id were shown (see OfflineDelivery)
+ * DISCONNECT:username
+ *
+ * Binary protocol: see FrameCodec
+ *
+ * Usernames are shown in text lines and separate fields there, so one with
+ * a control character, a colon or a comma (the text USERS list separator)
+ * is refused at CONNECT.
+ *
+ * A client may list the cipher suites it prefers at CONNECT. The server picks
+ * one and confirms it before any broadcast reaches the client: text clients get
+ * a SUITE:name line, binary clients a CONNECT_ACK carrying the name.
+ *
+ * A client that sends a key share gets a SESSION reply first (see SessionHandshake)
+ * carrying the room key sealed with the derived session key, so the room key no
+ * longer has to be configured on every client.
+ */
+public class ProtocolHandler {
+
+    private static final String[] CONNECT_OPTIONS = {"suites=", "key=", "ticket=", "acks="};
+
+    private final ChatServer server;
+
+    public ProtocolHandler(ChatServer server) {
+        this.server = server;
+    }
+
+    /**
+     * Process one incoming line from a text client
+     * @return false if the client asked to disconnect
+     */
+    public boolean handle(ClientConnection client, String message) {
+        String[] parts = message.split(":", 2);
+        String type = parts[0];
+        String username = client.getUsername();
+
+        switch (type) {
+            case "CONNECT":
+                if (parts.length > 1 && username == null) {
+                    String[] options = new String[CONNECT_OPTIONS.length];
+                    String name = parseOptions(parts[1], options);
+                    try {
+                        connect(client, name, options[0], decodeBase64(options[1]), decodeBase64(options[2]),
+                                "1".equals(options[3]));
+                    } catch (IllegalArgumentException e) {
+                        client.send(WireMessage.error("Malformed CONNECT").frameFor(client).duplicate());
+                    }
+                }
+                break;
+            case "GROUP":
+                if (parts.length > 1 && username != null) {
+                    server.broadcastGroupMessage(username, parts[1]);
+                }
+                break;
+            case "PRIVATE":
+                if (parts.length < 2) break;
+                String[] privateParts = parts[1].split(":", 2);
+                if (privateParts.length == 2 && username != null) {
+                    server.sendPrivateMessage(username, privateParts[1], privateParts[0]);
+                }
+                break;
+            case "USERS":
+                if (username != null) {
+                    server.subscribePresence(client, parts.length > 1 ? parseVersion(parts[1]) : 0);
+                }
+                break;
+            case "ACK":
+                if (parts.length > 1 && username != null) {
+                    server.acknowledgeOffline(client, parseVersion(parts[1]));
+                }
+                break;
+            case "DISCONNECT":
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Process one incoming frame from a binary client
+     * Fields arrive already delimited, so nothing needs splitting or escaping
+     * @return false if the client asked to disconnect
+     */
+    public boolean handle(ClientConnection client, Frame frame) {
+        String username = client.getUsername();
+
+        switch (frame.getType()) {
+            case CONNECT:
+                if (frame.getFieldCount() > 0 && username == null) {
+                    connect(client, frame.getString(0), frame.getString(1),
+                            frame.getFieldCount() > 2 ? frame.getBytes(2) : null,
+                            frame.getFieldCount() > 3 ? frame.getBytes(3) : null,
+                            frame.hasFlag(FrameCodec.FLAG_ACKS));
+                }
+                break;
+            case GROUP_MESSAGE:
+                if (frame.getFieldCount() > 0 && username != null) {
+                    route(frame, MessageType.GROUP_MESSAGE, username, null, 0);
+                }
+                break;
+            case PRIVATE_MESSAGE:
+                if (frame.getFieldCount() > 1 && username != null) {
+                    route(frame, MessageType.PRIVATE_MESSAGE, username, frame.getString(0), 1);
+                }
+                break;
+            case USER_LIST:
+                if (username != null) {
+                    server.subscribePresence(client, frame.getFieldCount() > 0 ? parseVersion(frame.getString(0)) : 0);
+                }
+                break;
+            case ACK:
+                if (frame.getFieldCount() > 0 && username != null) {
+                    server.acknowledgeOffline(client, parseVersion(frame.getString(0)));
+                }
+                break;
+            case DISCONNECT:
+                return false;
+            default:
+                break;
+        }
+        return true;
+    }
+
+    /**
+     * A presence version or message id sent by a client, or 0 if it is not a number
+     */
+    private static long parseVersion(String value) {
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Route a frame field as content through a pooled message, without copying it
+     */
+    private void route(Frame frame, MessageType type, String sender, String recipient, int contentField) {
+        RoutedMessage message = RoutedMessage.obtain(type, sender, recipient, frame.getBuffer(),
+                frame.getFieldOffset(contentField), frame.getFieldLength(contentField));
+        try {
+            server.route(message);
+        } finally {
+            message.recycle();
+        }
+    }
+
+    /**
+     * Split trailing ;option=value pairs off a text CONNECT argument
+     * @param values filled with each option's value in CONNECT_OPTIONS order, null if absent
+     * @return the username
+     */
+    private static String parseOptions(String argument, String[] values) {
+        String name = argument;
+        int separator;
+        while ((separator = name.lastIndexOf(';')) >= 0) {
+            int option = optionAt(name, separator + 1);
+            if (option < 0) {
+                break;
+            }
+            values[option] = name.substring(separator + 1 + CONNECT_OPTIONS[option].length());
+            name = name.substring(0, separator);
+        }
+        return name;
+    }
+
+    private static int optionAt(String text, int offset) {
+        for (int i = 0; i < CONNECT_OPTIONS.length; i++) {
+            if (text.startsWith(CONNECT_OPTIONS[i], offset)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isValidUsername(String username) {
+        if (username == null || username.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < username.length(); i++) {
+            char c = username.charAt(i);
+            if (Character.isISOControl(c) || c == ':' || c == ',') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] decodeBase64(String value) {
+        return value == null ? null : Base64.getDecoder().decode(value);
+    }
+
+    /**
+     * Register the client under its username with a negotiated cipher suite
+     * @param offered comma-separated suite preferences, or null if none were sent
+     * @param keyShare the client's X25519 public key, or null to skip the key exchange
+     * @param ticket the resumption ticket from an earlier session, or null
+     * @param acknowledging whether the client sends ACK for offline messages it has shown
+     */
+    private boolean connect(ClientConnection client, String username, String offered,
+                            byte[] keyShare, byte[] ticket, boolean acknowledging) {
+        if (!isValidUsername(username)) {
+            client.send(WireMessage.error("Invalid username").frameFor(client).duplicate());
+            return false;
+        }
+        SessionHandshake handshake = server.getSessionHandshake();
+        SessionHandshake.Session session = null;
+        if (keyShare != null && handshake != null) {
+            try {
+                session = handshake.accept(keyShare, ticket);
+            } catch (InvalidKeyException e) {
+                client.send(WireMessage.error("Key exchange failed").frameFor(client).duplicate());
+                return false;
+            }
+        }
+        CipherSuite suite = server.negotiateSuite(offered);
+        client.setUsername(username);
+        client.setCipherSuite(suite);
+        client.setAcknowledging(acknowledging);
+        SessionHandshake.Session established = session;
+        Runnable acknowledge = () -> {
+            if (established != null) {
+                client.send(established.frame(client.isBinaryProtocol(), server.getRoomKey()));
+            }
+            if (client.isBinaryProtocol()) {
+                client.send(WireMessage.connectAck(offered == null ? null : suite).frameFor(client).duplicate());
+            } else if (offered != null) {
+                client.sendMessage("SUITE:" + suite.getName());
+            }
+            server.sendScrollback(client);
+        };
+        if (!server.addClient(username, client, acknowledge)) {
+            client.setUsername(null);
+            client.send(WireMessage.error("Unable to join as " + username).frameFor(client).duplicate());
+            return false;
+        }
+        System.out.println("User connected: " + username
+                + (session == null ? "" : session.isResumed() ? " (session resumed)" : " (key exchanged)"));
+        return true;
+    }
+}
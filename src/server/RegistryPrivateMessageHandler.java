@@ -0,0 +1,42 @@
+package server;
+
+import messaging.PresenceSnapshot;
+import messaging.PrivateMessageHandler;
+
+/**
+ * PrivateMessageHandler over the server's ClientRegistry
+ *
+ * Sending goes through ChatServer.route, so a direct message is logged,
+ * remembered for scrollback and queued for an offline recipient exactly like
+ * one from a client. Finding the recipient is a lock-free registry lookup,
+ * so senders to online users never wait on a shared lock. Presence queries
+ * return the registry's shared snapshot.
+ */
+public class RegistryPrivateMessageHandler implements PrivateMessageHandler {
+
+    private final ChatServer server;
+    private final ClientRegistry clients;
+
+    public RegistryPrivateMessageHandler(ChatServer server, ClientRegistry clients) {
+        this.server = server;
+        this.clients = clients;
+    }
+
+    @Override
+    public boolean sendPrivateMessage(String message, String sender, String recipientId) {
+        if (message == null || sender == null || recipientId == null) {
+            return false;
+        }
+        return server.sendPrivateMessage(sender, message, recipientId);
+    }
+
+    @Override
+    public boolean isUserOnline(String userId) {
+        return userId != null && clients.get(userId) != null;
+    }
+
+    @Override
+    public PresenceSnapshot getOnlineUsers() {
+        return clients.snapshot();
+    }
+}
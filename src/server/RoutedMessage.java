@@ -0,0 +1,144 @@
+package server;
+
+import main.java.com.securechat.common.FrameCodec;
+import main.java.com.securechat.common.Message;
+import main.java.com.securechat.common.MessageIdGenerator;
+import main.java.com.securechat.common.MessageType;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+
+/**
+ * Recyclable message used internally while routing
+ *
+ * Unlike Message it has a time-ordered numeric id, a millisecond timestamp and
+ * content held as a slice (buffer, offset, length) of the bytes it arrived in,
+ * so routing a message allocates nothing beyond its encoded frames. Instances come from a
+ * per-thread pool: the thread that obtains one routes it and recycles it, and
+ * nothing may keep a reference afterwards. Convert with toMessage() at API edges.
+ */
+public final class RoutedMessage {
+
+    private static final int MAX_POOLED_PER_THREAD = 64;
+    private static final ThreadLocal<ArrayDeque<RoutedMessage>> POOL =
+            ThreadLocal.withInitial(() -> new ArrayDeque<>(MAX_POOLED_PER_THREAD));
+
+    private long id;
+    private long timestamp;
+    private MessageType type;
+    private String sender;
+    private String recipient;
+    private ByteBuffer content;
+    private int contentOffset;
+    private int contentLength;
+
+    private RoutedMessage() {
+    }
+
+    /**
+     * Take a message from this thread's pool and stamp it with a fresh id and timestamp
+     * The content slice must stay valid until the message is recycled
+     */
+    public static RoutedMessage obtain(MessageType type, String sender, String recipient,
+                                       ByteBuffer content, int offset, int length) {
+        RoutedMessage message = POOL.get().pollFirst();
+        if (message == null) {
+            message = new RoutedMessage();
+        }
+        message.id = MessageIdGenerator.getDefault().nextId();
+        message.timestamp = MessageIdGenerator.timestampOf(message.id);
+        message.type = type;
+        message.sender = sender;
+        message.recipient = recipient;
+        message.content = content;
+        message.contentOffset = offset;
+        message.contentLength = length;
+        return message;
+    }
+
+    /**
+     * Take a message whose content is a String, for callers outside the frame path
+     */
+    public static RoutedMessage obtain(MessageType type, String sender, String recipient, String content) {
+        byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        return obtain(type, sender, recipient, ByteBuffer.wrap(bytes), 0, bytes.length);
+    }
+
+    /**
+     * Return this message to the current thread's pool
+     */
+    public void recycle() {
+        sender = null;
+        recipient = null;
+        content = null;
+        ArrayDeque<RoutedMessage> pool = POOL.get();
+        if (pool.size() < MAX_POOLED_PER_THREAD) {
+            pool.addFirst(this);
+        }
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public MessageType getType() {
+        return type;
+    }
+
+    public String getSender() {
+        return sender;
+    }
+
+    public String getRecipient() {
+        return recipient;
+    }
+
+    /**
+     * Get the buffer holding the content; bytes are at getContentOffset() for getContentLength()
+     */
+    public ByteBuffer getContent() {
+        return content;
+    }
+
+    public int getContentOffset() {
+        return contentOffset;
+    }
+
+    public int getContentLength() {
+        return contentLength;
+    }
+
+    /**
+     * Decode the content as a UTF-8 string
+     */
+    public String getContentString() {
+        return FrameCodec.decodeUtf8(content, contentOffset, contentLength);
+    }
+
+    /**
+     * Copy this message into the public Message representation
+     */
+    public Message toMessage() {
+        Message message = new Message(sender, sender, getContentString(), type);
+        message.setId(id);
+        message.setRecipientId(recipient);
+        return message;
+    }
+
+    @Override
+    public String toString() {
+        return "RoutedMessage{" +
+                "id=" + id +
+                ", type=" + type +
+                ", sender='" + sender + '\'' +
+                ", recipient='" + recipient + '\'' +
+                ", timestamp=" + timestamp +
+                ", contentLength=" + contentLength +
+                '}';
+    }
+}
@@ -0,0 +1,205 @@
+package server;
+
+import main.java.com.securechat.common.FrameCodec;
+import main.java.com.securechat.common.MessageType;
+import utils.AesGcmCipher;
+import utils.EncryptionUtil;
+import utils.KeyExchange;
+import utils.MessageCipher;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.KeyPair;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * Server side of the CONNECT key exchange, with stateless resumption tickets
+ *
+ * A full handshake costs one X25519 key generation and agreement. The server
+ * then issues a ticket holding the resumption secret and its issue time, sealed
+ * with a ticket key only servers know. A reconnecting client presents the ticket
+ * with a fresh key share and both sides derive new keys from the secret inside,
+ * so a reconnect storm after a rolling restart costs symmetric crypto only.
+ *
+ * Nodes that share session.ticket.key accept each other's tickets, including
+ * tickets issued before a restart; without it each process picks a random key.
+ * Tickets keep no per-client state on the server.
+ *
+ * Tickets are not sealed with the shared key itself. Each process draws a
+ * random 128-bit key id and seals with HMAC-SHA256(ticket key, label || id);
+ * the id travels in front of the ticket so any node can derive the same
+ * subkey to open it. Every process therefore encrypts under its own key,
+ * however many nodes and restarts share session.ticket.key.
+ */
+public class SessionHandshake {
+
+    public static final String FULL = "full";
+    public static final String RESUMED = "resumed";
+
+    private static final int TICKET_PLAIN_SIZE = Long.BYTES + KeyExchange.SECRET_SIZE;
+    private static final int KEY_ID_SIZE = 16;
+    private static final byte[] TICKET_LABEL = "securechat ticket key".getBytes(StandardCharsets.US_ASCII);
+
+    private final byte[] ticketKey;
+    // Id and cipher of this process's ticket subkey
+    private final byte[] keyId = new byte[KEY_ID_SIZE];
+    private final MessageCipher ticketCipher;
+    private final long ticketLifetimeMillis;
+    private final SecureRandom random = new SecureRandom();
+
+    public SessionHandshake(SecretKey ticketKey, long ticketLifetimeMillis) {
+        this.ticketKey = ticketKey.getEncoded();
+        random.nextBytes(keyId);
+        this.ticketCipher = ticketCipher(keyId);
+        this.ticketLifetimeMillis = ticketLifetimeMillis;
+    }
+
+    /**
+     * Derive the cipher for the ticket subkey with this id
+     */
+    private MessageCipher ticketCipher(byte[] id) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(ticketKey, "HmacSHA256"));
+            mac.update(TICKET_LABEL);
+            byte[] subkey = mac.doFinal(id);
+            MessageCipher cipher = new AesGcmCipher(new SecretKeySpec(subkey, "AES"));
+            Arrays.fill(subkey, (byte) 0);
+            return cipher;
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("Ticket key derivation failed", e);
+        }
+    }
+
+    /**
+     * Build the handshake from session.* settings, or return null if encryption.key.exchange is off
+     */
+    public static SessionHandshake fromConfig(ServerConfig config) {
+        if (!config.getBoolean("encryption.key.exchange", true)) {
+            return null;
+        }
+        String ticketKey = config.getString("session.ticket.key", null);
+        return new SessionHandshake(
+                ticketKey != null ? EncryptionUtil.stringToKey(ticketKey) : EncryptionUtil.generateKey(),
+                config.getLong("session.ticket.lifetime", 86400) * 1000);
+    }
+
+    /**
+     * Answer a client's key share, resuming from its ticket while that is still valid
+     * @param ticket the ticket from the client's previous session, or null
+     * @throws InvalidKeyException if a full handshake is needed and the key share is not an X25519 key
+     */
+    public Session accept(byte[] clientShare, byte[] ticket) throws InvalidKeyException {
+        byte[] secret = ticket == null ? null : redeem(ticket);
+        boolean resumed = secret != null;
+        byte[] serverShare;
+        if (resumed) {
+            serverShare = new byte[KeyExchange.SECRET_SIZE];
+            random.nextBytes(serverShare);
+        } else {
+            KeyPair keyPair = KeyExchange.generateKeyPair();
+            secret = KeyExchange.sharedSecret(keyPair.getPrivate(), clientShare);
+            serverShare = KeyExchange.encodePublicKey(keyPair.getPublic());
+        }
+        SecretKey sessionKey = KeyExchange.sessionKey(secret, clientShare, serverShare);
+        byte[] next = KeyExchange.resumptionSecret(secret, clientShare, serverShare);
+        Arrays.fill(secret, (byte) 0);
+        return new Session(resumed, serverShare, issue(next), sessionKey);
+    }
+
+    /**
+     * Seal a resumption secret with its issue time
+     */
+    private byte[] issue(byte[] secret) {
+        ByteBuffer plain = ByteBuffer.allocate(TICKET_PLAIN_SIZE);
+        plain.putLong(System.currentTimeMillis()).put(secret);
+        byte[] sealed = ticketCipher.encrypt(plain.array());
+        Arrays.fill(plain.array(), (byte) 0);
+        return ByteBuffer.allocate(KEY_ID_SIZE + sealed.length).put(keyId).put(sealed).array();
+    }
+
+    /**
+     * Open a ticket
+     * @return its resumption secret, or null if the ticket is forged, damaged or expired
+     */
+    private byte[] redeem(byte[] ticket) {
+        if (ticket.length <= KEY_ID_SIZE) {
+            return null;
+        }
+        byte[] id = Arrays.copyOf(ticket, KEY_ID_SIZE);
+        // Issued by another node, or by this one before a restart
+        MessageCipher cipher = Arrays.equals(id, keyId) ? ticketCipher : ticketCipher(id);
+        byte[] plain;
+        try {
+            plain = cipher.decrypt(Arrays.copyOfRange(ticket, KEY_ID_SIZE, ticket.length));
+        } catch (AEADBadTagException e) {
+            return null;
+        }
+        if (plain.length != TICKET_PLAIN_SIZE) {
+            return null;
+        }
+        long age = System.currentTimeMillis() - ByteBuffer.wrap(plain).getLong();
+        if (age < 0 || age > ticketLifetimeMillis) {
+            return null;
+        }
+        return Arrays.copyOfRange(plain, Long.BYTES, plain.length);
+    }
+
+    /**
+     * The outcome of one handshake, sent to the client before anything else
+     *
+     * Text:   SESSION:mode:serverShare:ticket[:roomKey], byte values in Base64
+     * Binary: SESSION frame with the same fields as raw bytes
+     *
+     * serverShare is the server's public key for a full handshake and a random
+     * nonce for a resumed one. roomKey is the room key sealed with the session key.
+     */
+    public static final class Session {
+
+        private final boolean resumed;
+        private final byte[] serverShare;
+        private final byte[] ticket;
+        private final SecretKey sessionKey;
+
+        private Session(boolean resumed, byte[] serverShare, byte[] ticket, SecretKey sessionKey) {
+            this.resumed = resumed;
+            this.serverShare = serverShare;
+            this.ticket = ticket;
+            this.sessionKey = sessionKey;
+        }
+
+        public boolean isResumed() {
+            return resumed;
+        }
+
+        public SecretKey getSessionKey() {
+            return sessionKey;
+        }
+
+        /**
+         * Encode the reply, sealing the room key if there is one
+         */
+        public ByteBuffer frame(boolean binary, SecretKey roomKey) {
+            byte[] mode = (resumed ? RESUMED : FULL).getBytes(StandardCharsets.US_ASCII);
+            byte[] sealed = roomKey == null ? null : new AesGcmCipher(sessionKey).encrypt(roomKey.getEncoded());
+            if (binary) {
+                return sealed == null
+                        ? FrameCodec.encode(MessageType.SESSION, 0, mode, serverShare, ticket)
+                        : FrameCodec.encode(MessageType.SESSION, 0, mode, serverShare, ticket, sealed);
+            }
+            Base64.Encoder base64 = Base64.getEncoder();
+            return Frames.textLine("SESSION:" + (resumed ? RESUMED : FULL)
+                    + ":" + base64.encodeToString(serverShare)
+                    + ":" + base64.encodeToString(ticket)
+                    + (sealed == null ? "" : ":" + base64.encodeToString(sealed)));
+        }
+    }
+}
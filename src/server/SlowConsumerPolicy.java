@@ -0,0 +1,25 @@
+package server;
+
+/**
+ * What a connection does when its outbound queue is full
+ */
+public enum SlowConsumerPolicy {
+    DROP_OLDEST,    // Discard the oldest unsent frame to make room
+    COALESCE,       // Merge unsent frames into one buffer (frees slots, bytes still bounded)
+    DISCONNECT;     // Close the connection
+
+    /**
+     * Parse a policy name from configuration, e.g. "drop_oldest"
+     */
+    public static SlowConsumerPolicy fromString(String value, SlowConsumerPolicy defaultPolicy) {
+        if (value == null) {
+            return defaultPolicy;
+        }
+        try {
+            return valueOf(value.trim().toUpperCase().replace('-', '_'));
+        } catch (IllegalArgumentException e) {
+            System.err.println("Unknown slow consumer policy: " + value + ". Using " + defaultPolicy);
+            return defaultPolicy;
+        }
+    }
+}
@@ -0,0 +1,342 @@
+package server;
+
+import utils.BufferPool;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
+
+/**
+ * Non-blocking TLS over a SocketChannel, driven by an SSLEngine
+ *
+ * Reads and writes plaintext like the socket it wraps, so NioConnection can use
+ * either one. Calls return 0 instead of blocking whenever the handshake needs the
+ * network or a delegated task; the owner retries on the next readable or writable
+ * event, or when onTasksDone fires. Records that could not be written yet stay
+ * buffered (hasPendingOutput) until the socket is writable again.
+ *
+ * Record buffers are taken from a pool only while they hold data, so an idle TLS
+ * connection keeps no buffers. Not thread-safe: only the owning loop calls in.
+ */
+public class TlsChannel implements ByteChannel, GatheringByteChannel {
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    private final BufferPool pool;
+    private final Executor taskExecutor;
+    private final Runnable onTasksDone;
+
+    private ByteBuffer netIn;   // write mode: ciphertext read from the socket
+    private ByteBuffer appIn;   // read mode: plaintext not yet handed to the caller
+    private ByteBuffer netOut;  // read mode: ciphertext not yet written to the socket
+    private volatile boolean tasksRunning;
+    private boolean inboundDone;
+
+    TlsChannel(SocketChannel channel, SSLEngine engine, BufferPool pool,
+               Executor taskExecutor, Runnable onTasksDone) {
+        this.channel = channel;
+        this.engine = engine;
+        this.pool = pool;
+        this.taskExecutor = taskExecutor;
+        this.onTasksDone = onTasksDone;
+    }
+
+    /**
+     * Read decrypted bytes, advancing the handshake as needed
+     * @return bytes read, 0 if nothing is available yet, or -1 at end of stream
+     */
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        int transferred = transferAppIn(dst);
+        if (transferred > 0) {
+            return transferred;
+        }
+        if (inboundDone) {
+            return -1;
+        }
+        while (!tasksRunning) {
+            HandshakeStatus status = engine.getHandshakeStatus();
+            if (status == HandshakeStatus.NEED_TASK) {
+                runDelegatedTasks();
+                return 0;
+            }
+            if (status == HandshakeStatus.NEED_WRAP) {
+                if (!wrap(EMPTY)) {
+                    return 0;
+                }
+                continue;
+            }
+
+            SSLEngineResult result = unwrap();
+            if (result == null || result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                int read = fill();
+                if (read < 0) {
+                    inboundDone = true;
+                    releaseNetIn();
+                    try {
+                        engine.closeInbound();
+                    } catch (SSLException e) {
+                        // Peer closed without close_notify; nothing was lost that a record had completed
+                    }
+                    return -1;
+                }
+                if (read == 0) {
+                    releaseNetIn();
+                    return 0;
+                }
+                continue;
+            }
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                inboundDone = true;
+                releaseNetIn();
+                transferred = transferAppIn(dst);
+                return transferred > 0 ? transferred : -1;
+            }
+            transferred = transferAppIn(dst);
+            if (transferred > 0 || result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                // On overflow the caller has to make room first; the record stays in netIn
+                return transferred;
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        return (int) write(new ByteBuffer[]{src}, 0, 1);
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    }
+
+    /**
+     * Encrypt and write plaintext; stops early (possibly at 0) while the
+     * handshake is in progress or the socket cannot take more records
+     * @return plaintext bytes consumed from srcs
+     */
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        if (!flushOutput()) {
+            return 0;
+        }
+        long consumed = 0;
+        while (!tasksRunning && remaining(srcs, offset, length) > 0) {
+            HandshakeStatus status = engine.getHandshakeStatus();
+            if (status == HandshakeStatus.NEED_UNWRAP || status == HandshakeStatus.NEED_UNWRAP_AGAIN) {
+                break;
+            }
+            if (status == HandshakeStatus.NEED_TASK) {
+                runDelegatedTasks();
+                break;
+            }
+            acquireNetOut();
+            netOut.compact();
+            SSLEngineResult result;
+            try {
+                result = engine.wrap(srcs, offset, length, netOut);
+            } finally {
+                netOut.flip();
+            }
+            consumed += result.bytesConsumed();
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                throw new SSLException("TLS connection closed");
+            }
+            if (!flushOutput() || (result.bytesConsumed() == 0 && result.bytesProduced() == 0)) {
+                break;
+            }
+        }
+        return consumed;
+    }
+
+    /**
+     * Whether encrypted records are waiting for the socket to become writable
+     */
+    public boolean hasPendingOutput() {
+        return netOut != null && netOut.hasRemaining();
+    }
+
+    /**
+     * Write buffered records to the socket
+     * @return true once nothing is left pending
+     */
+    public boolean flushOutput() throws IOException {
+        if (netOut == null) {
+            return true;
+        }
+        channel.write(netOut);
+        if (netOut.hasRemaining()) {
+            return false;
+        }
+        pool.release(netOut);
+        netOut = null;
+        return true;
+    }
+
+    /**
+     * Whether decrypted bytes are waiting because the caller's buffer was full
+     */
+    public boolean hasBufferedPlaintext() {
+        return appIn != null && appIn.hasRemaining();
+    }
+
+    /**
+     * Whether delegated handshake tasks are running; reads and writes return 0 until onTasksDone
+     */
+    public boolean isTaskRunning() {
+        return tasksRunning;
+    }
+
+    public boolean isHandshaking() {
+        HandshakeStatus status = engine.getHandshakeStatus();
+        return status != HandshakeStatus.NOT_HANDSHAKING && status != HandshakeStatus.FINISHED;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    /**
+     * Send close_notify if the socket takes it straight away and release all buffers
+     * The underlying channel is left for the owner to close
+     */
+    @Override
+    public void close() {
+        engine.closeOutbound();
+        try {
+            if (!tasksRunning && flushOutput()) {
+                wrap(EMPTY);
+            }
+        } catch (IOException e) {
+            // Best effort; the connection is going away anyway
+        }
+        if (netIn != null) {
+            pool.release(netIn);
+            netIn = null;
+        }
+        if (netOut != null) {
+            pool.release(netOut);
+            netOut = null;
+        }
+        if (appIn != null) {
+            pool.release(appIn);
+            appIn = null;
+        }
+    }
+
+    /**
+     * Produce one handshake or close record and try to send it
+     * @return false if the record is still waiting for the socket
+     */
+    private boolean wrap(ByteBuffer src) throws IOException {
+        acquireNetOut();
+        netOut.compact();
+        try {
+            engine.wrap(src, netOut);
+        } finally {
+            netOut.flip();
+        }
+        return flushOutput();
+    }
+
+    /**
+     * Decrypt one record from netIn into appIn
+     * @return the engine result, or null if netIn holds no bytes
+     */
+    private SSLEngineResult unwrap() throws SSLException {
+        if (netIn == null || netIn.position() == 0) {
+            return null;
+        }
+        if (appIn == null) {
+            appIn = pool.acquire();
+            appIn.flip();
+        }
+        netIn.flip();
+        appIn.compact();
+        try {
+            return engine.unwrap(netIn, appIn);
+        } finally {
+            appIn.flip();
+            netIn.compact();
+        }
+    }
+
+    /**
+     * Read ciphertext from the socket into netIn
+     */
+    private int fill() throws IOException {
+        if (netIn == null) {
+            netIn = pool.acquire();
+        }
+        if (!netIn.hasRemaining()) {
+            throw new SSLException("TLS record larger than " + netIn.capacity() + " bytes");
+        }
+        return channel.read(netIn);
+    }
+
+    private int transferAppIn(ByteBuffer dst) {
+        if (appIn == null) {
+            return 0;
+        }
+        int count = Math.min(appIn.remaining(), dst.remaining());
+        if (count > 0) {
+            dst.put(dst.position(), appIn, appIn.position(), count);
+            dst.position(dst.position() + count);
+            appIn.position(appIn.position() + count);
+        }
+        if (!appIn.hasRemaining()) {
+            pool.release(appIn);
+            appIn = null;
+        }
+        return count;
+    }
+
+    /**
+     * Run the engine's delegated tasks (key exchange, certificate work) off the
+     * event loop, then let the owner resume
+     */
+    private void runDelegatedTasks() {
+        tasksRunning = true;
+        taskExecutor.execute(() -> {
+            Runnable task;
+            while ((task = engine.getDelegatedTask()) != null) {
+                task.run();
+            }
+            tasksRunning = false;
+            onTasksDone.run();
+        });
+    }
+
+    private void acquireNetOut() {
+        if (netOut == null) {
+            netOut = pool.acquire();
+            netOut.flip();
+        }
+    }
+
+    private void releaseNetIn() {
+        if (netIn != null && netIn.position() == 0) {
+            pool.release(netIn);
+            netIn = null;
+        }
+    }
+
+    private static long remaining(ByteBuffer[] buffers, int offset, int length) {
+        long total = 0;
+        for (int i = offset; i < offset + length; i++) {
+            total += buffers[i].remaining();
+        }
+        return total;
+    }
+}
@@ -0,0 +1,102 @@
+package server;
+
+import utils.BufferPool;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Server-side TLS settings built from the ssl.* configuration keys
+ *
+ * One SSLContext is shared by every connection so its session cache can resume
+ * sessions: TLS 1.2 clients by session id, TLS 1.3 clients through stateless
+ * session tickets. A reconnect storm then costs abbreviated handshakes instead
+ * of full key exchanges. Record buffers for the reactor come from a pool sized
+ * to the TLS packet size, and handshake work runs off the event loops.
+ */
+public class TlsContext {
+
+    private static final String TICKET_PROPERTY = "jdk.tls.server.enableSessionTicketExtension";
+
+    private final SSLContext sslContext;
+    private final BufferPool recordPool;
+    private final Executor handshakeExecutor = ForkJoinPool.commonPool();
+
+    private TlsContext(SSLContext sslContext) {
+        this.sslContext = sslContext;
+        SSLEngine probe = sslContext.createSSLEngine();
+        int recordSize = Math.max(probe.getSession().getPacketBufferSize(),
+                probe.getSession().getApplicationBufferSize());
+        this.recordPool = new BufferPool(recordSize, 32, 1024);
+    }
+
+    /**
+     * Build the TLS context if ssl.enabled is set
+     * @return the context, or null when TLS is disabled
+     */
+    public static TlsContext fromConfig(ServerConfig config) {
+        if (!config.getBoolean("ssl.enabled", false)) {
+            return null;
+        }
+        if (System.getProperty(TICKET_PROPERTY) == null) {
+            // Must be set before the JSSE provider reads it
+            System.setProperty(TICKET_PROPERTY, String.valueOf(config.getBoolean("ssl.session.tickets", true)));
+        }
+        String path = config.getString("ssl.keystore.path", null);
+        if (path == null) {
+            throw new IllegalStateException("ssl.enabled is set but ssl.keystore.path is empty");
+        }
+        char[] password = config.getString("ssl.keystore.password", "").toCharArray();
+        try (InputStream in = Files.newInputStream(Paths.get(path))) {
+            KeyStore keyStore = KeyStore.getInstance(config.getString("ssl.keystore.type", "PKCS12"));
+            keyStore.load(in, password);
+            KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagers.init(keyStore, password);
+
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(keyManagers.getKeyManagers(), null, null);
+            SSLSessionContext sessions = context.getServerSessionContext();
+            sessions.setSessionCacheSize(config.getInt("ssl.session.cache.size", 20480));
+            sessions.setSessionTimeout(config.getInt("ssl.session.timeout", 86400));
+            System.out.println("TLS enabled (keystore " + path + ")");
+            return new TlsContext(context);
+        } catch (IOException | GeneralSecurityException e) {
+            throw new IllegalStateException("Failed to initialise TLS: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Wrap a non-blocking channel for an event loop
+     * @param onTasksDone run on a handshake thread once delegated tasks finish,
+     *                    so the owner can resume the handshake on its loop
+     */
+    public TlsChannel newChannel(SocketChannel channel, Runnable onTasksDone) throws IOException {
+        SSLEngine engine = sslContext.createSSLEngine();
+        engine.setUseClientMode(false);
+        engine.beginHandshake();
+        return new TlsChannel(channel, engine, recordPool, handshakeExecutor, onTasksDone);
+    }
+
+    /**
+     * Layer TLS over an accepted blocking socket; the handshake runs on first read
+     */
+    public Socket wrap(Socket socket) throws IOException {
+        SSLSocket tls = (SSLSocket) sslContext.getSocketFactory()
+                .createSocket(socket, null, socket.getPort(), true);
+        tls.setUseClientMode(false);
+        return tls;
+    }
+}
@@ -0,0 +1,263 @@
+package server;
+
+import main.java.com.securechat.common.FrameCodec;
+import main.java.com.securechat.common.MessageType;
+import utils.CipherSuite;
+import utils.MessageCipher;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * An outbound message that is encoded at most once per wire protocol
+ * Fan-out paths ask each connection for its protocol and share the resulting frame
+ *
+ * With a room key the text line is sent as ENC:<ciphertext of the whole line>,
+ * while the binary frame keeps the sender in clear and carries the content as
+ * raw ciphertext bytes
+ *
+ * Encrypted messages are encoded once per cipher suite in use, not per client.
+ *
+ * Content from binary clients may hold line breaks, which would let it forge
+ * extra lines for text clients; text renderings replace CR and LF with spaces.
+ *
+ * Not thread-safe: frames are built lazily on the thread doing the fan-out.
+ * A WireMessage built from a RoutedMessage reads its content slice, so it must
+ * be fully fanned out before that message is recycled.
+ */
+public class WireMessage {
+
+    private static final byte[] GROUP_SEPARATOR = ": ".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] PRIVATE_SEPARATOR = " (private): ".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] ERROR_PREFIX = "ERROR:".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] EMPTY = new byte[0];
+
+    private final MessageType type;
+    private final String sender;
+    private final ByteBuffer content;
+    private final int contentOffset;
+    private final int contentLength;
+    // Room cipher per suite id, or null for a message sent in clear
+    private final MessageCipher[] roomCiphers;
+    // Encoded frames per suite id (a single slot when sent in clear)
+    private final ByteBuffer[] textFrames;
+    private final ByteBuffer[] binaryFrames;
+
+    private WireMessage(MessageType type, String sender, ByteBuffer content, int offset, int length,
+                        MessageCipher[] roomCiphers) {
+        this.type = type;
+        this.sender = sender;
+        this.content = content;
+        this.contentOffset = offset;
+        this.contentLength = length;
+        this.roomCiphers = roomCiphers;
+        int slots = roomCiphers == null ? 1 : roomCiphers.length;
+        this.textFrames = new ByteBuffer[slots];
+        this.binaryFrames = new ByteBuffer[slots];
+    }
+
+    private static WireMessage of(MessageType type, String sender, String content, MessageCipher[] roomCiphers) {
+        if (content == null) {
+            return new WireMessage(type, sender, null, 0, 0, roomCiphers);
+        }
+        byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        return new WireMessage(type, sender, ByteBuffer.wrap(bytes), 0, bytes.length, roomCiphers);
+    }
+
+    /**
+     * Wrap a routed message without copying its content
+     * Only group messages are encrypted with the room key
+     */
+    public static WireMessage of(RoutedMessage message, MessageCipher[] roomCiphers) {
+        MessageCipher[] ciphers = message.getType() == MessageType.GROUP_MESSAGE ? roomCiphers : null;
+        return new WireMessage(message.getType(), message.getSender(), message.getContent(),
+                message.getContentOffset(), message.getContentLength(), ciphers);
+    }
+
+    /**
+     * A group message, encrypted with the room ciphers (indexed by suite id) if given
+     */
+    public static WireMessage group(String sender, String content, MessageCipher[] roomCiphers) {
+        return of(MessageType.GROUP_MESSAGE, sender, content, roomCiphers);
+    }
+
+    public static WireMessage privateMessage(String sender, String content) {
+        return of(MessageType.PRIVATE_MESSAGE, sender, content, null);
+    }
+
+    public static WireMessage server(String text, MessageCipher[] roomCiphers) {
+        return of(MessageType.SERVER_MESSAGE, null, text, roomCiphers);
+    }
+
+    /**
+     * Acknowledge CONNECT, naming the negotiated cipher suite if the client offered any
+     */
+    public static WireMessage connectAck(CipherSuite suite) {
+        return of(MessageType.CONNECT_ACK, null, suite == null ? null : suite.getName(), null);
+    }
+
+    public static WireMessage error(String text) {
+        return of(MessageType.ERROR, null, text, null);
+    }
+
+    /**
+     * Get the shared read-only frame for the connection's protocol and cipher suite
+     * Callers hand out duplicate() views, never the frame itself
+     */
+    public ByteBuffer frameFor(ClientConnection connection) {
+        CipherSuite suite = connection.getCipherSuite();
+        return connection.isBinaryProtocol() ? binaryFrame(suite) : textFrame(suite);
+    }
+
+    public ByteBuffer textFrame(CipherSuite suite) {
+        int slot = slotFor(suite);
+        if (textFrames[slot] == null) {
+            MessageCipher cipher = roomCiphers == null ? null : roomCiphers[slot];
+            if (cipher != null) {
+                textFrames[slot] = Frames.textLine("ENC:" + cipher.encrypt(toTextLine()));
+            } else {
+                textFrames[slot] = encodeTextLine().asReadOnlyBuffer();
+            }
+        }
+        return textFrames[slot];
+    }
+
+    public ByteBuffer binaryFrame(CipherSuite suite) {
+        int slot = slotFor(suite);
+        if (binaryFrames[slot] == null) {
+            if (content == null) {
+                binaryFrames[slot] = FrameCodec.encode(type, 0, new byte[0][]).asReadOnlyBuffer();
+            } else {
+                binaryFrames[slot] = encodeBinary(roomCiphers == null ? null : roomCiphers[slot]).asReadOnlyBuffer();
+            }
+        }
+        return binaryFrames[slot];
+    }
+
+    /**
+     * Map a suite to its frame slot; a suite without a room cipher falls back to
+     * the first one that has one
+     */
+    private int slotFor(CipherSuite suite) {
+        if (roomCiphers == null) {
+            return 0;
+        }
+        if (suite != null && suite.getId() >= 0 && suite.getId() < roomCiphers.length
+                && roomCiphers[suite.getId()] != null) {
+            return suite.getId();
+        }
+        for (int i = 0; i < roomCiphers.length; i++) {
+            if (roomCiphers[i] != null) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Encode the binary frame straight from the content bytes
+     * With a room key the content is encrypted directly into the frame
+     */
+    private ByteBuffer encodeBinary(MessageCipher roomCipher) {
+        byte[] senderBytes = sender == null ? null : sender.getBytes(StandardCharsets.UTF_8);
+        int payloadLength = roomCipher == null ? contentLength : roomCipher.encryptedSize(contentLength);
+        int bodyLength = 2 + FrameCodec.varintSize(payloadLength) + payloadLength;
+        if (senderBytes != null) {
+            bodyLength += FrameCodec.varintSize(senderBytes.length) + senderBytes.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(FrameCodec.varintSize(bodyLength) + bodyLength);
+        FrameCodec.writeVarint(buffer, bodyLength);
+        buffer.put((byte) type.ordinal());
+        buffer.put((byte) (roomCipher == null ? 0 : FrameCodec.FLAG_ENCRYPTED));
+        if (senderBytes != null) {
+            FrameCodec.writeVarint(buffer, senderBytes.length);
+            buffer.put(senderBytes);
+        }
+        FrameCodec.writeVarint(buffer, payloadLength);
+        if (roomCipher == null) {
+            putContent(buffer);
+        } else {
+            ByteBuffer plain = content.duplicate();
+            plain.limit(contentOffset + contentLength).position(contentOffset);
+            roomCipher.encrypt(plain, buffer);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Encode the plain text line straight from the content bytes
+     */
+    private ByteBuffer encodeTextLine() {
+        byte[] prefix;
+        byte[] separator;
+        switch (type) {
+            case GROUP_MESSAGE:
+                prefix = sender.getBytes(StandardCharsets.UTF_8);
+                separator = GROUP_SEPARATOR;
+                break;
+            case PRIVATE_MESSAGE:
+                prefix = sender.getBytes(StandardCharsets.UTF_8);
+                separator = PRIVATE_SEPARATOR;
+                break;
+            case ERROR:
+                prefix = ERROR_PREFIX;
+                separator = EMPTY;
+                break;
+            default:
+                prefix = EMPTY;
+                separator = EMPTY;
+                break;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(prefix.length + separator.length + contentLength + 1);
+        buffer.put(prefix).put(separator);
+        int contentStart = buffer.position();
+        putContent(buffer);
+        // Neither byte occurs inside a multi-byte UTF-8 sequence
+        for (int i = contentStart; i < buffer.position(); i++) {
+            byte b = buffer.get(i);
+            if (b == '\n' || b == '\r') {
+                buffer.put(i, (byte) ' ');
+            }
+        }
+        buffer.put((byte) '\n');
+        buffer.flip();
+        return buffer;
+    }
+
+    private void putContent(ByteBuffer buffer) {
+        if (content != null) {
+            buffer.put(buffer.position(), content, contentOffset, contentLength);
+            buffer.position(buffer.position() + contentLength);
+        }
+    }
+
+    private String toTextLine() {
+        String text = getContent();
+        if (text != null) {
+            text = text.replace('\n', ' ').replace('\r', ' ');
+        }
+        switch (type) {
+            case GROUP_MESSAGE:
+                return sender + ": " + text;
+            case PRIVATE_MESSAGE:
+                return sender + " (private): " + text;
+            case ERROR:
+                return "ERROR:" + text;
+            default:
+                return text;
+        }
+    }
+
+    public MessageType getType() {
+        return type;
+    }
+
+    public String getSender() {
+        return sender;
+    }
+
+    public String getContent() {
+        return content == null ? null : FrameCodec.decodeUtf8(content, contentOffset, contentLength);
+    }
+}
@@ -0,0 +1,105 @@
+package utils;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.spec.AlgorithmParameterSpec;
+
+/**
+ * Base for AEAD ciphers with 96-bit nonces and 128-bit tags
+ *
+ * Output layout: 12-byte nonce, ciphertext, 16-byte tag.
+ * Every nonce is 96 random bits. Keys such as the room key outlive any one
+ * instance: they survive restarts, are shared by every node and client, and
+ * get a fresh instance per suite on each setRoomKey. A per-instance counter
+ * would restart under the same key, so a nonce could repeat. Random nonces stay
+ * unique without coordination up to about 2^32 messages per key; rotate a
+ * long-lived key well before that.
+ */
+public abstract class AeadCipher implements MessageCipher {
+
+    protected static final int NONCE_SIZE = 12;
+    protected static final int TAG_SIZE = 16;
+
+    // A DRBG per thread: concurrent encryptions share no generator state and do
+    // not read the OS entropy source for every nonce
+    private static final ThreadLocal<SecureRandom> RANDOMS = ThreadLocal.withInitial(() -> {
+        try {
+            return SecureRandom.getInstance("DRBG");
+        } catch (NoSuchAlgorithmException e) {
+            return new SecureRandom();
+        }
+    });
+
+    private final SecretKey key;
+
+    protected AeadCipher(SecretKey key) {
+        this.key = key;
+    }
+
+    /**
+     * Get this thread's Cipher instance for the algorithm
+     */
+    protected abstract Cipher cipher();
+
+    /**
+     * Build the algorithm parameters for a nonce
+     */
+    protected abstract AlgorithmParameterSpec parameters(byte[] nonce);
+
+    @Override
+    public int encryptedSize(int plainLength) {
+        return NONCE_SIZE + plainLength + TAG_SIZE;
+    }
+
+    @Override
+    public int encrypt(ByteBuffer input, ByteBuffer output) {
+        byte[] nonce = new byte[NONCE_SIZE];
+        RANDOMS.get().nextBytes(nonce);
+        try {
+            Cipher cipher = cipher();
+            cipher.init(Cipher.ENCRYPT_MODE, key, parameters(nonce));
+            output.put(nonce);
+            return NONCE_SIZE + cipher.doFinal(input, output);
+        } catch (GeneralSecurityException e) {
+            System.err.println("Encryption failed: " + e.getMessage());
+            throw new RuntimeException("Message encryption failed", e);
+        }
+    }
+
+    @Override
+    public int decrypt(ByteBuffer input, ByteBuffer output) throws AEADBadTagException {
+        if (input.remaining() < NONCE_SIZE + TAG_SIZE) {
+            throw new AEADBadTagException("Ciphertext too short");
+        }
+        byte[] nonce = new byte[NONCE_SIZE];
+        input.get(nonce);
+        try {
+            Cipher cipher = cipher();
+            cipher.init(Cipher.DECRYPT_MODE, key, parameters(nonce));
+            return cipher.doFinal(input, output);
+        } catch (AEADBadTagException e) {
+            throw e;
+        } catch (GeneralSecurityException e) {
+            System.err.println("Decryption failed: " + e.getMessage());
+            throw new RuntimeException("Message decryption failed", e);
+        }
+    }
+
+    /**
+     * Create a per-thread Cipher supplier for a transformation
+     */
+    protected static ThreadLocal<Cipher> threadLocalCipher(String transformation) {
+        return ThreadLocal.withInitial(() -> {
+            try {
+                return Cipher.getInstance(transformation);
+            } catch (GeneralSecurityException e) {
+                throw new RuntimeException(transformation + " is not available", e);
+            }
+        });
+    }
+}
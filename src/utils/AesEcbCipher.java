@@ -0,0 +1,40 @@
+package utils;
+
+import javax.crypto.SecretKey;
+import java.nio.ByteBuffer;
+
+/**
+ * The original "AES" (AES/ECB/PKCS5Padding) mode
+ * Kept for peers that have not moved to an authenticated mode: identical blocks
+ * encrypt identically and nothing detects tampering
+ */
+public class AesEcbCipher implements MessageCipher {
+
+    public static final String NAME = "ecb";
+
+    private final SecretKey key;
+
+    public AesEcbCipher(SecretKey key) {
+        this.key = key;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public int encryptedSize(int plainLength) {
+        return EncryptionUtil.encryptedSize(plainLength);
+    }
+
+    @Override
+    public int encrypt(ByteBuffer input, ByteBuffer output) {
+        return EncryptionUtil.encrypt(input, output, key);
+    }
+
+    @Override
+    public int decrypt(ByteBuffer input, ByteBuffer output) {
+        return EncryptionUtil.decrypt(input, output, key);
+    }
+}
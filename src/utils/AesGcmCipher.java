@@ -0,0 +1,36 @@
+package utils;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import java.security.spec.AlgorithmParameterSpec;
+
+/**
+ * AES/GCM authenticated encryption: confidentiality and integrity in one pass
+ * Fastest where the CPU has AES instructions (see AeadCipher for the layout)
+ */
+public class AesGcmCipher extends AeadCipher {
+
+    public static final String NAME = "gcm";
+
+    private static final ThreadLocal<Cipher> CIPHERS = threadLocalCipher("AES/GCM/NoPadding");
+
+    public AesGcmCipher(SecretKey key) {
+        super(key);
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    protected Cipher cipher() {
+        return CIPHERS.get();
+    }
+
+    @Override
+    protected AlgorithmParameterSpec parameters(byte[] nonce) {
+        return new GCMParameterSpec(TAG_SIZE * 8, nonce);
+    }
+}
@@ -0,0 +1,76 @@
+package utils;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of fixed-size direct ByteBuffers for socket reads
+ *
+ * Each thread keeps a small private cache so an event loop that acquires and
+ * releases on the same thread never allocates or contends; surplus buffers
+ * spill to a shared queue bounded by maxShared.
+ */
+public class BufferPool {
+
+    public static final int DEFAULT_BUFFER_SIZE = 16 * 1024;
+
+    /** Process-wide pool used by the server connections and the client */
+    public static final BufferPool DEFAULT = new BufferPool(DEFAULT_BUFFER_SIZE, 32, 1024);
+
+    private final int bufferSize;
+    private final int maxPerThread;
+    private final int maxShared;
+    private final Queue<ByteBuffer> shared = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger sharedCount = new AtomicInteger();
+    private final ThreadLocal<ArrayDeque<ByteBuffer>> local;
+
+    public BufferPool(int bufferSize, int maxPerThread, int maxShared) {
+        this.bufferSize = bufferSize;
+        this.maxPerThread = maxPerThread;
+        this.maxShared = maxShared;
+        this.local = ThreadLocal.withInitial(() -> new ArrayDeque<>(maxPerThread));
+    }
+
+    /**
+     * Get a cleared direct buffer of bufferSize() bytes
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = local.get().pollFirst();
+        if (buffer == null) {
+            buffer = shared.poll();
+            if (buffer != null) {
+                sharedCount.decrementAndGet();
+            }
+        }
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Return a buffer to the pool
+     * Buffers not created by this pool (wrong size or heap) are left to the GC
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect() || buffer.capacity() != bufferSize) {
+            return;
+        }
+        ArrayDeque<ByteBuffer> cache = local.get();
+        if (cache.size() < maxPerThread) {
+            cache.addFirst(buffer);
+        } else if (sharedCount.incrementAndGet() <= maxShared) {
+            shared.offer(buffer);
+        } else {
+            sharedCount.decrementAndGet();
+        }
+    }
+
+    public int bufferSize() {
+        return bufferSize;
+    }
+}
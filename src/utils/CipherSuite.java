@@ -0,0 +1,48 @@
+package utils;
+
+import javax.crypto.SecretKey;
+import java.util.function.Function;
+
+/**
+ * A named cipher suite that can be negotiated with a client at CONNECT
+ * Suites are registered with EncryptionUtil, which gives each a small id so
+ * per-suite state can be kept in arrays
+ */
+public final class CipherSuite {
+
+    private final String name;
+    private final Function<SecretKey, MessageCipher> factory;
+    private int id = -1;
+
+    public CipherSuite(String name, Function<SecretKey, MessageCipher> factory) {
+        this.name = name;
+        this.factory = factory;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Get the id assigned at registration, or -1 if not registered
+     */
+    public int getId() {
+        return id;
+    }
+
+    void setId(int id) {
+        this.id = id;
+    }
+
+    /**
+     * Create a cipher of this suite bound to the key
+     */
+    public MessageCipher newCipher(SecretKey key) {
+        return factory.apply(key);
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
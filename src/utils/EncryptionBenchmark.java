@@ -0,0 +1,98 @@
+package utils;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Throughput benchmark for EncryptionUtil
+ * Compares the original per-call Cipher.getInstance/init path against the cached
+ * String API and the ByteBuffer API, and the ECB path against the AES/GCM and
+ * ChaCha20-Poly1305 suites, for 64 B, 1 KB and 16 KB payloads
+ *
+ * Run: java -cp target/classes utils.EncryptionBenchmark [seconds per case]
+ */
+public class EncryptionBenchmark {
+
+    private static final int[] PAYLOAD_SIZES = {64, 1024, 16 * 1024};
+
+    public static void main(String[] args) throws Exception {
+        long millis = (args.length > 0 ? Long.parseLong(args[0]) : 2) * 1000;
+        SecretKey key = EncryptionUtil.generateKey();
+        MessageCipher ecb = new AesEcbCipher(key);
+        MessageCipher gcm = new AesGcmCipher(key);
+        MessageCipher chacha = new ChaCha20Poly1305Cipher(key);
+
+        System.out.printf("%-24s %8s %14s%n", "case", "payload", "ops/s");
+        for (int size : PAYLOAD_SIZES) {
+            byte[] plain = new byte[size];
+            Arrays.fill(plain, (byte) 'x');
+            String message = new String(plain, StandardCharsets.US_ASCII);
+            ByteBuffer input = ByteBuffer.allocate(size);
+            ByteBuffer output = ByteBuffer.allocate(gcm.encryptedSize(size));
+
+            run("uncached (String)", size, millis, i -> uncachedEncrypt(message, key).length());
+            run("cached (String)", size, millis, i -> EncryptionUtil.encrypt(message, key).length());
+            run("ecb (ByteBuffer)", size, millis, i -> {
+                input.clear().position(size).flip();
+                output.clear();
+                return ecb.encrypt(input, output);
+            });
+            run("gcm (String)", size, millis, i -> gcm.encrypt(message).length());
+            run("gcm (ByteBuffer)", size, millis, i -> {
+                input.clear().position(size).flip();
+                output.clear();
+                return gcm.encrypt(input, output);
+            });
+            run("chacha20 (ByteBuffer)", size, millis, i -> {
+                input.clear().position(size).flip();
+                output.clear();
+                return chacha.encrypt(input, output);
+            });
+        }
+    }
+
+    /**
+     * The encrypt path as it was before ciphers were cached
+     */
+    private static String uncachedEncrypt(String message, SecretKey key) {
+        try {
+            Cipher cipher = Cipher.getInstance("AES");
+            cipher.init(Cipher.ENCRYPT_MODE, key);
+            return Base64.getEncoder().encodeToString(cipher.doFinal(message.getBytes()));
+        } catch (Exception e) {
+            throw new RuntimeException("Message encryption failed", e);
+        }
+    }
+
+    /**
+     * Warm up for a third of the time, then report operations per second
+     */
+    private static void run(String name, int size, long millis, IntUnaryOperator operation) {
+        long sink = measure(operation, millis / 3);
+        long start = System.nanoTime();
+        long deadline = start + millis * 1_000_000L;
+        long ops = 0;
+        while (System.nanoTime() < deadline) {
+            for (int i = 0; i < 64; i++) {
+                sink += operation.applyAsInt(i);
+            }
+            ops += 64;
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%-24s %8d %14.0f%s%n", name, size, ops / seconds, sink == 42 ? " " : "");
+    }
+
+    private static long measure(IntUnaryOperator operation, long millis) {
+        long sink = 0;
+        long deadline = System.nanoTime() + millis * 1_000_000L;
+        while (System.nanoTime() < deadline) {
+            sink += operation.applyAsInt(0);
+        }
+        return sink;
+    }
+}
@@ -4,9 +4,18 @@ import javax.crypto.Cipher;
 import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * MODULE 3: Encryption Module - Use Java's javax.crypto for AES encryption
@@ -15,11 +24,32 @@ import java.util.Base64;
  * 
  * Java Version: 17 LTS (Long Term Support)
  * Requires JDK 17 or higher
+ *
+ * Initialised Cipher instances are cached per thread and per key, so the
+ * provider lookup and key expansion happen once rather than on every message.
+ * The ByteBuffer variants work on raw bytes and skip the Base64 and String
+ * conversions of the String API.
+ *
+ * Cipher suites are pluggable: gcm, chacha20 and ecb are registered by default
+ * and more can be added with registerSuite(). Clients offer suites at CONNECT
+ * and the server picks one with negotiate().
  */
 public class EncryptionUtil {
     
     private static final String ALGORITHM = "AES";
     private static final int KEY_SIZE = 256; // 256-bit AES encryption
+    private static final int BLOCK_SIZE = 16;
+    private static final int MAX_CACHED_KEYS = 16;
+    
+    private static final ThreadLocal<CipherCache> CIPHERS = ThreadLocal.withInitial(CipherCache::new);
+    
+    private static final Map<String, CipherSuite> SUITES = new ConcurrentHashMap<>();
+    
+    static {
+        registerSuite(new CipherSuite(AesGcmCipher.NAME, AesGcmCipher::new));
+        registerSuite(new CipherSuite(ChaCha20Poly1305Cipher.NAME, ChaCha20Poly1305Cipher::new));
+        registerSuite(new CipherSuite(AesEcbCipher.NAME, AesEcbCipher::new));
+    }
     
     /**
      * Generate a new AES encryption key
@@ -55,6 +85,79 @@ public class EncryptionUtil {
         return new SecretKeySpec(decodedKey, 0, decodedKey.length, ALGORITHM);
     }
     
+    /**
+     * Register a cipher suite under its (case-insensitive) name and assign its id
+     * @return The registered suite
+     */
+    public static synchronized CipherSuite registerSuite(CipherSuite suite) {
+        String name = suite.getName().toLowerCase(Locale.ROOT);
+        if (SUITES.containsKey(name)) {
+            throw new IllegalArgumentException("Cipher suite already registered: " + name);
+        }
+        suite.setId(SUITES.size());
+        SUITES.put(name, suite);
+        return suite;
+    }
+    
+    /**
+     * Find a registered suite by name
+     * @return The suite, or null if none is registered under that name
+     */
+    public static CipherSuite getSuite(String name) {
+        return name == null ? null : SUITES.get(name.trim().toLowerCase(Locale.ROOT));
+    }
+    
+    /**
+     * Number of registered suites; suite ids are below this
+     */
+    public static int getSuiteCount() {
+        return SUITES.size();
+    }
+    
+    /**
+     * Parse a comma-separated list of suite names, skipping unknown ones
+     */
+    public static List<CipherSuite> parseSuites(String names) {
+        List<CipherSuite> suites = new ArrayList<>();
+        if (names != null) {
+            for (String name : names.split(",")) {
+                CipherSuite suite = getSuite(name);
+                if (suite != null && !suites.contains(suite)) {
+                    suites.add(suite);
+                }
+            }
+        }
+        return suites;
+    }
+    
+    /**
+     * Pick the first suite in the client's preference list that the server enables
+     * @param offered Comma-separated suite names, most preferred first
+     * @param enabled Suites the server accepts
+     * @return The chosen suite, or null if there is none in common
+     */
+    public static CipherSuite negotiate(String offered, List<CipherSuite> enabled) {
+        for (CipherSuite suite : parseSuites(offered)) {
+            if (enabled.contains(suite)) {
+                return suite;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Create a cipher for the given suite ("gcm", "chacha20", "ecb", ...)
+     * @param suite Suite name, case-insensitive; null selects the default (gcm)
+     * @param key SecretKey the cipher is bound to
+     */
+    public static MessageCipher newCipher(String suite, SecretKey key) {
+        CipherSuite found = getSuite(suite == null || suite.isBlank() ? AesGcmCipher.NAME : suite);
+        if (found == null) {
+            throw new IllegalArgumentException("Unknown cipher suite: " + suite);
+        }
+        return found.newCipher(key);
+    }
+    
     /**
      * Encrypt a message using AES
      * @param message Plain text message to encrypt
@@ -63,10 +166,7 @@ public class EncryptionUtil {
      */
     public static String encrypt(String message, SecretKey key) {
         try {
-            // TODO: Full implementation by Team Member 3
-            Cipher cipher = Cipher.getInstance(ALGORITHM);
-            cipher.init(Cipher.ENCRYPT_MODE, key);
-            byte[] encryptedBytes = cipher.doFinal(message.getBytes());
+            byte[] encryptedBytes = cipher(Cipher.ENCRYPT_MODE, key).doFinal(message.getBytes(StandardCharsets.UTF_8));
             return Base64.getEncoder().encodeToString(encryptedBytes);
         } catch (Exception e) {
             System.err.println("Encryption failed: " + e.getMessage());
@@ -82,18 +182,88 @@ public class EncryptionUtil {
      */
     public static String decrypt(String encryptedMessage, SecretKey key) {
         try {
-            // TODO: Full implementation by Team Member 3
-            Cipher cipher = Cipher.getInstance(ALGORITHM);
-            cipher.init(Cipher.DECRYPT_MODE, key);
             byte[] decodedBytes = Base64.getDecoder().decode(encryptedMessage);
-            byte[] decryptedBytes = cipher.doFinal(decodedBytes);
-            return new String(decryptedBytes);
+            byte[] decryptedBytes = cipher(Cipher.DECRYPT_MODE, key).doFinal(decodedBytes);
+            return new String(decryptedBytes, StandardCharsets.UTF_8);
         } catch (Exception e) {
+            CIPHERS.get().remove(key);
+            System.err.println("Decryption failed: " + e.getMessage());
+            throw new RuntimeException("Message decryption failed", e);
+        }
+    }
+    
+    /**
+     * Encrypt the remaining bytes of input into output
+     * Both buffers advance; output needs encryptedSize(input.remaining()) bytes free
+     * @return Number of bytes written to output
+     */
+    public static int encrypt(ByteBuffer input, ByteBuffer output, SecretKey key) {
+        try {
+            return cipher(Cipher.ENCRYPT_MODE, key).doFinal(input, output);
+        } catch (GeneralSecurityException e) {
+            System.err.println("Encryption failed: " + e.getMessage());
+            throw new RuntimeException("Message encryption failed", e);
+        }
+    }
+    
+    /**
+     * Decrypt the remaining bytes of input into output
+     * Both buffers advance; output needs at least input.remaining() bytes free
+     * @return Number of bytes written to output
+     */
+    public static int decrypt(ByteBuffer input, ByteBuffer output, SecretKey key) {
+        try {
+            return cipher(Cipher.DECRYPT_MODE, key).doFinal(input, output);
+        } catch (GeneralSecurityException e) {
+            CIPHERS.get().remove(key);
             System.err.println("Decryption failed: " + e.getMessage());
             throw new RuntimeException("Message decryption failed", e);
         }
     }
     
+    /**
+     * Size of the ciphertext produced for a plain text of the given length
+     */
+    public static int encryptedSize(int plainLength) {
+        // PKCS5 always adds between 1 and BLOCK_SIZE bytes of padding
+        return (plainLength / BLOCK_SIZE + 1) * BLOCK_SIZE;
+    }
+    
+    /**
+     * Get this thread's initialised cipher for the key
+     * A cipher returns to its initialised state after doFinal, so it can be reused as is
+     */
+    private static Cipher cipher(int mode, SecretKey key) throws GeneralSecurityException {
+        CipherCache cache = CIPHERS.get();
+        Cipher[] ciphers = cache.get(key);
+        if (ciphers == null) {
+            Cipher encryptCipher = Cipher.getInstance(ALGORITHM);
+            encryptCipher.init(Cipher.ENCRYPT_MODE, key);
+            Cipher decryptCipher = Cipher.getInstance(ALGORITHM);
+            decryptCipher.init(Cipher.DECRYPT_MODE, key);
+            ciphers = new Cipher[]{encryptCipher, decryptCipher};
+            cache.put(key, ciphers);
+        }
+        return mode == Cipher.ENCRYPT_MODE ? ciphers[0] : ciphers[1];
+    }
+    
+    /**
+     * Per-thread LRU of initialised {encrypt, decrypt} ciphers by key
+     */
+    private static final class CipherCache extends LinkedHashMap<SecretKey, Cipher[]> {
+        
+        private static final long serialVersionUID = 1L;
+        
+        CipherCache() {
+            super(MAX_CACHED_KEYS * 2, 0.75f, true);
+        }
+        
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<SecretKey, Cipher[]> eldest) {
+            return size() > MAX_CACHED_KEYS;
+        }
+    }
+    
     /**
      * Test the encryption/decryption functionality
      */
@@ -0,0 +1,140 @@
+package utils;
+
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+
+/**
+ * X25519 key agreement and HKDF-SHA256 key derivation for the CONNECT handshake
+ *
+ * Client and server each generate an ephemeral key pair and exchange public keys
+ * (X.509 encoded, 44 bytes). Both derive the same session key and resumption
+ * secret from the shared secret, salted with both public values, so the session
+ * key never crosses the wire. A resumed session derives its keys from the
+ * previous resumption secret instead, skipping the asymmetric step.
+ *
+ * Generators, key agreements and MACs are cached per thread like the ciphers in
+ * EncryptionUtil.
+ */
+public final class KeyExchange {
+
+    public static final String ALGORITHM = "X25519";
+    public static final int SECRET_SIZE = 32;
+
+    private static final byte[] SESSION_LABEL = "securechat session key".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] RESUMPTION_LABEL = "securechat resumption".getBytes(StandardCharsets.US_ASCII);
+
+    private static final ThreadLocal<KeyPairGenerator> GENERATORS = ThreadLocal.withInitial(() -> {
+        try {
+            return KeyPairGenerator.getInstance(ALGORITHM);
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("X25519 is not available", e);
+        }
+    });
+    private static final ThreadLocal<KeyAgreement> AGREEMENTS = ThreadLocal.withInitial(() -> {
+        try {
+            return KeyAgreement.getInstance(ALGORITHM);
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("X25519 is not available", e);
+        }
+    });
+    private static final ThreadLocal<KeyFactory> KEY_FACTORIES = ThreadLocal.withInitial(() -> {
+        try {
+            return KeyFactory.getInstance(ALGORITHM);
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("X25519 is not available", e);
+        }
+    });
+    private static final ThreadLocal<Mac> MACS = ThreadLocal.withInitial(() -> {
+        try {
+            return Mac.getInstance("HmacSHA256");
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("HmacSHA256 is not available", e);
+        }
+    });
+
+    private KeyExchange() {
+    }
+
+    /**
+     * Generate an ephemeral key pair for one handshake
+     */
+    public static KeyPair generateKeyPair() {
+        return GENERATORS.get().generateKeyPair();
+    }
+
+    /**
+     * Get the wire form of a public key
+     */
+    public static byte[] encodePublicKey(PublicKey key) {
+        return key.getEncoded();
+    }
+
+    /**
+     * Compute the X25519 shared secret with a peer's encoded public key
+     * @throws InvalidKeyException if the peer sent something that is not an X25519 public key
+     */
+    public static byte[] sharedSecret(PrivateKey own, byte[] peerPublicKey) throws InvalidKeyException {
+        try {
+            PublicKey peer = KEY_FACTORIES.get().generatePublic(new X509EncodedKeySpec(peerPublicKey));
+            KeyAgreement agreement = AGREEMENTS.get();
+            agreement.init(own);
+            agreement.doPhase(peer, true);
+            return agreement.generateSecret();
+        } catch (InvalidKeySpecException | IllegalArgumentException e) {
+            throw new InvalidKeyException("Invalid X25519 public key", e);
+        }
+    }
+
+    /**
+     * Derive the AES-256 session key for a handshake
+     * @param secret the X25519 shared secret, or the resumption secret when resuming
+     */
+    public static SecretKey sessionKey(byte[] secret, byte[] clientShare, byte[] serverShare) {
+        return new SecretKeySpec(derive(secret, clientShare, serverShare, SESSION_LABEL), "AES");
+    }
+
+    /**
+     * Derive the secret a later handshake can resume from
+     */
+    public static byte[] resumptionSecret(byte[] secret, byte[] clientShare, byte[] serverShare) {
+        return derive(secret, clientShare, serverShare, RESUMPTION_LABEL);
+    }
+
+    /**
+     * HKDF-SHA256 (RFC 5869) with both handshake shares as salt, one output block
+     */
+    private static byte[] derive(byte[] secret, byte[] clientShare, byte[] serverShare, byte[] label) {
+        try {
+            Mac mac = MACS.get();
+            mac.init(new SecretKeySpec(concat(clientShare, serverShare), "HmacSHA256"));
+            byte[] prk = mac.doFinal(secret);
+            mac.init(new SecretKeySpec(prk, "HmacSHA256"));
+            mac.update(label);
+            mac.update((byte) 1);
+            byte[] okm = mac.doFinal();
+            Arrays.fill(prk, (byte) 0);
+            return okm;
+        } catch (InvalidKeyException e) {
+            throw new RuntimeException("Key derivation failed", e);
+        }
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] result = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+}
@@ -0,0 +1,81 @@
+package utils;
+
+import javax.crypto.AEADBadTagException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * A symmetric cipher for chat payloads, bound to one key
+ * Create instances with EncryptionUtil.newCipher()
+ *
+ * encrypt() output is self-contained: anything decrypt() needs besides the key
+ * (IV, nonce, tag) travels inside the ciphertext. Implementations are thread-safe.
+ */
+public interface MessageCipher {
+
+    /**
+     * Short name of the mode, as used in configuration
+     */
+    String getName();
+
+    /**
+     * Size of the ciphertext produced for a plain text of the given length
+     */
+    int encryptedSize(int plainLength);
+
+    /**
+     * Encrypt the remaining bytes of input into output
+     * Both buffers advance; output needs encryptedSize(input.remaining()) bytes free
+     * @return Number of bytes written to output
+     */
+    int encrypt(ByteBuffer input, ByteBuffer output);
+
+    /**
+     * Decrypt the remaining bytes of input into output
+     * Both buffers advance; output needs at least input.remaining() bytes free
+     * @return Number of bytes written to output
+     * @throws AEADBadTagException if an authenticated mode finds the data was altered
+     */
+    int decrypt(ByteBuffer input, ByteBuffer output) throws AEADBadTagException;
+
+    /**
+     * Encrypt a message
+     * @return Encrypted message as Base64 string
+     */
+    default String encrypt(String message) {
+        ByteBuffer plain = ByteBuffer.wrap(message.getBytes(StandardCharsets.UTF_8));
+        ByteBuffer sealed = ByteBuffer.allocate(encryptedSize(plain.remaining()));
+        encrypt(plain, sealed);
+        return Base64.getEncoder().encodeToString(sealed.array());
+    }
+
+    /**
+     * Decrypt a Base64 message produced by encrypt(String)
+     */
+    default String decrypt(String encryptedMessage) throws AEADBadTagException {
+        ByteBuffer sealed = ByteBuffer.wrap(Base64.getDecoder().decode(encryptedMessage));
+        ByteBuffer plain = ByteBuffer.allocate(sealed.remaining());
+        decrypt(sealed, plain);
+        return new String(plain.array(), 0, plain.position(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Encrypt a byte array, e.g. key material
+     */
+    default byte[] encrypt(byte[] plain) {
+        ByteBuffer sealed = ByteBuffer.allocate(encryptedSize(plain.length));
+        encrypt(ByteBuffer.wrap(plain), sealed);
+        return sealed.array();
+    }
+
+    /**
+     * Decrypt a byte array produced by encrypt(byte[])
+     */
+    default byte[] decrypt(byte[] sealed) throws AEADBadTagException {
+        ByteBuffer plain = ByteBuffer.allocate(sealed.length);
+        decrypt(ByteBuffer.wrap(sealed), plain);
+        return Arrays.copyOf(plain.array(), plain.position());
+    }
+}